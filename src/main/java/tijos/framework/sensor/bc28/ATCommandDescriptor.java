@@ -0,0 +1,175 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * How an AT command completes
+ * Each command type has its own timeout for the final result, the prefix of
+ * its information response, and for commands whose outcome arrives as a URC
+ * after OK the prefixes of that URC and the time to wait for it. A query
+ * ("AT+XXX?") of a command whose setting takes long has its own short
+ * timeout.
+ *
+ * @author lemon
+ */
+public class ATCommandDescriptor {
+
+    /**
+     * Timeout in ms of commands not listed in the table
+     */
+    public static final int DEFAULT_TIMEOUT = 5000;
+
+    private static final ATCommandDescriptor[] TABLE = new ATCommandDescriptor[BC28Metrics.CMD_COUNT];
+
+    // queries answered at once, null if the query uses the command descriptor
+    private static final ATCommandDescriptor[] QUERIES = new ATCommandDescriptor[BC28Metrics.CMD_COUNT];
+
+    static {
+        define(BC28Metrics.CMD_OTHER, DEFAULT_TIMEOUT, null);
+        define(BC28Metrics.CMD_CONFIG, DEFAULT_TIMEOUT, null);
+
+        // radio on/off may take up to 85s according to the BC28 manual
+        define(BC28Metrics.CMD_CFUN, 85000, "+CFUN:");
+        define(BC28Metrics.CMD_CGATT, 10000, "+CGATT:");
+        QUERIES[BC28Metrics.CMD_CFUN] = new ATCommandDescriptor(2000, "+CFUN:", null, null, 0);
+        QUERIES[BC28Metrics.CMD_CGATT] = new ATCommandDescriptor(2000, "+CGATT:", null, null, 0);
+        define(BC28Metrics.CMD_CEREG, 2000, "+CEREG:");
+        define(BC28Metrics.CMD_CSCON, 2000, "+CSCON:");
+        define(BC28Metrics.CMD_CSQ, 2000, "+CSQ:");
+        define(BC28Metrics.CMD_CIMI, 2000, null);
+        define(BC28Metrics.CMD_CGSN, 2000, "+CGSN:");
+        define(BC28Metrics.CMD_CGPADDR, 2000, "+CGPADDR:");
+        define(BC28Metrics.CMD_NUESTATS, 2000, null);
+        define(BC28Metrics.CMD_CCLK, 2000, "+CCLK:");
+        define(BC28Metrics.CMD_CPSMS, 2000, "+CPSMS:");
+        define(BC28Metrics.CMD_CEDRXS, 2000, "+CEDRXS:");
+        define(BC28Metrics.CMD_NRB, 10000, null);
+
+        define(BC28Metrics.CMD_NSOCR, 2000, null);
+        define(BC28Metrics.CMD_NSOST, 3000, null);
+        define(BC28Metrics.CMD_NSOSTF, 3000, null);
+        define(BC28Metrics.CMD_NSORF, 2000, null);
+        define(BC28Metrics.CMD_NSOCL, 2000, null);
+        define(BC28Metrics.CMD_NMGS, 3000, null);
+        define(BC28Metrics.CMD_NMGSEXT, 3000, null);
+        define(BC28Metrics.CMD_NQMGS, 2000, null);
+        define(BC28Metrics.CMD_NNMI, DEFAULT_TIMEOUT, "+NNMI:");
+        define(BC28Metrics.CMD_NSMI, DEFAULT_TIMEOUT, "+NSMI:");
+
+        // OK only means the request was accepted, the reply comes as +NPING or +NPINGERR
+        TABLE[BC28Metrics.CMD_NPING] = new ATCommandDescriptor(2000, null, "+NPING:", "+NPINGERR:", 12000);
+    }
+
+    private static void define(int type, int timeout, String responsePrefix) {
+        TABLE[type] = new ATCommandDescriptor(timeout, responsePrefix, null, null, 0);
+    }
+
+    /**
+     * Descriptor of a command type
+     *
+     * @param type BC28Metrics.CMD_XXX
+     * @return
+     */
+    public static ATCommandDescriptor forType(int type) {
+        return TABLE[type];
+    }
+
+    /**
+     * Descriptor of a command type, for the query or the other forms of the
+     * command
+     *
+     * @param type  BC28Metrics.CMD_XXX
+     * @param query true for "AT+XXX?"
+     * @return
+     */
+    public static ATCommandDescriptor forType(int type, boolean query) {
+        if (query && QUERIES[type] != null)
+            return QUERIES[type];
+
+        return TABLE[type];
+    }
+
+    /**
+     * Change the timeout of a command type, e.g. after checking the latency
+     * histograms of BC28Metrics in the field, the query keeps its own timeout
+     *
+     * @param type    BC28Metrics.CMD_XXX
+     * @param timeout time in ms waiting for the final result
+     */
+    public static void setTimeout(int type, int timeout) {
+        TABLE[type].timeout = timeout;
+    }
+
+    private int timeout;
+
+    private String responsePrefix;
+
+    private String urcPrefix;
+    private String urcErrorPrefix;
+    private int urcTimeout;
+
+    private ATCommandDescriptor(int timeout, String responsePrefix, String urcPrefix, String urcErrorPrefix,
+                                int urcTimeout) {
+        this.timeout = timeout;
+        this.responsePrefix = responsePrefix;
+        this.urcPrefix = urcPrefix;
+        this.urcErrorPrefix = urcErrorPrefix;
+        this.urcTimeout = urcTimeout;
+    }
+
+    /**
+     * Time in ms waiting for OK, ERROR or +CME ERROR after the command is written
+     *
+     * @return
+     */
+    public int getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Prefix of the information response, null if the response has no prefix
+     *
+     * @return
+     */
+    public String getResponsePrefix() {
+        return this.responsePrefix;
+    }
+
+    /**
+     * Check if the command completes with a URC after OK
+     *
+     * @return
+     */
+    public boolean isAsynchronous() {
+        return this.urcPrefix != null;
+    }
+
+    public String getURCPrefix() {
+        return this.urcPrefix;
+    }
+
+    public String getURCErrorPrefix() {
+        return this.urcErrorPrefix;
+    }
+
+    /**
+     * Time in ms waiting for the URC after OK
+     *
+     * @return
+     */
+    public int getURCTimeout() {
+        return this.urcTimeout;
+    }
+
+    /**
+     * Check if a line starting with '+' is the information response of the
+     * command, lines of other prefixes are unsolicited
+     *
+     * @param line
+     * @return
+     */
+    boolean acceptsLine(byte[] line, int len) {
+        if (this.responsePrefix == null || len == 0 || line[0] != '+')
+            return true;
+
+        return URCParser.startsWith(line, len, this.responsePrefix);
+    }
+}
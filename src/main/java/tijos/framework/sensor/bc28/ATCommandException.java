@@ -0,0 +1,61 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * AT command completed with ERROR or +CME ERROR
+ *
+ * @author lemon
+ */
+public class ATCommandException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private String command;
+    private int result;
+    private int errorCode;
+
+    /**
+     * @param command   AT command
+     * @param result    ATResponse.ERROR, CME_ERROR or TIMEOUT
+     * @param errorCode error code of +CME ERROR or of the error URC
+     */
+    public ATCommandException(String command, int result, int errorCode) {
+        super(message(command, result, errorCode));
+        this.command = command;
+        this.result = result;
+        this.errorCode = errorCode;
+    }
+
+    private static String message(String command, int result, int errorCode) {
+        if (result == ATResponse.TIMEOUT)
+            return "Timeout: " + command;
+
+        if (result == ATResponse.CME_ERROR)
+            return "+CME ERROR:" + errorCode + " " + command;
+
+        return "Error: " + command;
+    }
+
+    public String getCommand() {
+        return this.command;
+    }
+
+    /**
+     * Final result of the command
+     *
+     * @return ATResponse.ERROR, CME_ERROR or TIMEOUT
+     */
+    public int getResult() {
+        return this.result;
+    }
+
+    /**
+     * Error code of +CME ERROR:&lt;n&gt;
+     *
+     * @return
+     */
+    public int getErrorCode() {
+        return this.errorCode;
+    }
+}
@@ -0,0 +1,354 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Queue of pending AT commands
+ * The module handles one command at a time, the next queued command is written
+ * as soon as the current one gets its final result, so callers can queue
+ * several commands back-to-back without waiting for each other.
+ * An asynchronous command such as AT+NPING leaves the queue on OK and waits
+ * aside for its URC while the following commands are written.
+ *
+ * @author lemon
+ */
+public class ATCommandQueue {
+
+    private OutputStream output;
+
+    // ring of pending commands, the head is the one in flight
+    private ATResponse[] queue;
+    private int head = 0;
+    private int count = 0;
+
+    // asynchronous commands waiting for their URC
+    private ATResponse[] awaiting = new ATResponse[4];
+
+    private BC28Metrics metrics;
+
+    // text commands are encoded here before writing
+    private ATFrameBuilder scratch = new ATFrameBuilder(64);
+
+    /**
+     * @param output   UART output stream
+     * @param capacity max number of pending commands
+     */
+    public ATCommandQueue(OutputStream output, int capacity) {
+        this.output = output;
+        this.queue = new ATResponse[capacity];
+    }
+
+    /**
+     * Record latency, results and written bytes of the commands
+     *
+     * @param metrics may be null
+     */
+    public void setMetrics(BC28Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queue a command, it is written at once if no command is in flight. Once
+     * queued the command completes through its response, a failed write
+     * included
+     *
+     * @param resp pending command
+     * @throws IOException the queue is full, the command is not queued
+     */
+    public void submit(ATResponse resp) throws IOException {
+        resp.reset();
+        synchronized (this) {
+            if (this.count == this.queue.length)
+                throw new IOException("AT command queue full");
+
+            this.queue[(this.head + this.count) % this.queue.length] = resp;
+            this.count++;
+        }
+
+        this.writeNext();
+    }
+
+    /**
+     * Command in flight
+     *
+     * @return null if no command is in flight
+     */
+    public synchronized ATResponse current() {
+        if (this.count == 0)
+            return null;
+
+        return this.queue[this.head];
+    }
+
+    /**
+     * Number of pending commands including the one in flight
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * Response line received for the command in flight or URC completing an
+     * asynchronous command
+     *
+     * @param line
+     * @return false if the line belongs to no command
+     */
+    public boolean onLine(String line) {
+        byte[] b = line.getBytes();
+        return this.onLine(b, b.length);
+    }
+
+    /**
+     * Line from the module, the bytes are copied into the response
+     *
+     * @param line line buffer
+     * @param len  line length
+     * @return false if the line belongs to no command
+     */
+    boolean onLine(byte[] line, int len) {
+        ATResponse resp = null;
+        int result = ATResponse.OK;
+        int errorCode = 0;
+
+        synchronized (this) {
+            for (int i = 0; i < this.awaiting.length; i++) {
+                ATResponse r = this.awaiting[i];
+                if (r == null)
+                    continue;
+
+                ATCommandDescriptor desc = r.descriptor;
+                if (URCParser.startsWith(line, len, desc.getURCPrefix())) {
+                    resp = r;
+                } else if (desc.getURCErrorPrefix() != null
+                        && URCParser.startsWith(line, len, desc.getURCErrorPrefix())) {
+                    resp = r;
+                    result = ATResponse.ERROR;
+                    errorCode = parseCode(line, desc.getURCErrorPrefix().length(), len);
+                }
+
+                if (resp != null) {
+                    this.awaiting[i] = null;
+                    break;
+                }
+            }
+
+            if (resp == null) {
+                ATResponse head = this.count == 0 ? null : this.queue[this.head];
+                if (head == null || head.sentTime == 0 || !head.descriptor.acceptsLine(line, len))
+                    return false;
+
+                head.addLine(line, 0, len);
+                return true;
+            }
+        }
+
+        resp.addLine(line, 0, len);
+        this.finish(resp, result, errorCode);
+        return true;
+    }
+
+    /**
+     * Final result received for the command in flight
+     *
+     * @param result    ATResponse.OK, ERROR or CME_ERROR
+     * @param errorCode error code of +CME ERROR
+     * @throws IOException
+     */
+    public void onResult(int result, int errorCode) throws IOException {
+        ATResponse resp;
+        synchronized (this) {
+            if (this.count == 0)
+                return;
+
+            resp = this.removeHead();
+
+            if (result == ATResponse.OK && resp.descriptor.isAsynchronous()) {
+                resp.awaitingURC = true;
+                if (!this.await(resp)) {
+                    resp.awaitingURC = false;
+                    result = ATResponse.ERROR;
+                }
+            }
+        }
+
+        if (!resp.awaitingURC)
+            this.finish(resp, result, errorCode);
+
+        this.writeNext();
+    }
+
+    /**
+     * Time out the command in flight if its deadline has passed
+     *
+     * @param now current time in ms
+     * @throws IOException
+     */
+    public void checkTimeout(long now) throws IOException {
+        for (int i = 0; i < this.awaiting.length; i++) {
+            ATResponse resp;
+            synchronized (this) {
+                resp = this.awaiting[i];
+                if (resp == null || now - resp.sentTime < resp.timeout + resp.urcTimeout)
+                    continue;
+
+                this.awaiting[i] = null;
+            }
+            this.finish(resp, ATResponse.TIMEOUT, 0);
+        }
+
+        ATResponse resp;
+        synchronized (this) {
+            if (this.count == 0)
+                return;
+
+            resp = this.queue[this.head];
+            if (resp.sentTime == 0 || now - resp.sentTime < resp.timeout)
+                return;
+
+            this.removeHead();
+        }
+
+        this.finish(resp, ATResponse.TIMEOUT, 0);
+        this.writeNext();
+    }
+
+    /**
+     * Give up a command whose caller stopped waiting, the next command is
+     * written if it was in flight
+     *
+     * @param resp
+     * @throws IOException
+     */
+    public void cancel(ATResponse resp) throws IOException {
+        boolean aside = false;
+        synchronized (this) {
+            for (int i = 0; i < this.awaiting.length; i++) {
+                if (this.awaiting[i] == resp) {
+                    this.awaiting[i] = null;
+                    aside = true;
+                }
+            }
+        }
+
+        if (aside) {
+            this.finish(resp, ATResponse.TIMEOUT, 0);
+            return;
+        }
+
+        synchronized (this) {
+            int pos = -1;
+            for (int i = 0; i < this.count; i++) {
+                if (this.queue[(this.head + i) % this.queue.length] == resp) {
+                    pos = i;
+                    break;
+                }
+            }
+
+            if (pos < 0)
+                return;
+
+            if (pos == 0) {
+                this.removeHead();
+            } else {
+                // close the gap, keep the order of the rest
+                for (int i = pos; i < this.count - 1; i++) {
+                    this.queue[(this.head + i) % this.queue.length] = this.queue[(this.head + i + 1) % this.queue.length];
+                }
+                this.count--;
+                this.queue[(this.head + this.count) % this.queue.length] = null;
+            }
+        }
+
+        this.finish(resp, ATResponse.TIMEOUT, 0);
+        this.writeNext();
+    }
+
+    /**
+     * Record and complete a command removed from the queue
+     */
+    private void finish(ATResponse resp, int result, int errorCode) {
+        if (this.metrics != null && !resp.isDone()) {
+            long latency = resp.sentTime == 0 ? 0 : System.currentTimeMillis() - resp.sentTime;
+            this.metrics.recordCommand(resp.type, latency, result);
+        }
+
+        resp.complete(result, errorCode);
+    }
+
+    /**
+     * Put an asynchronous command aside until its URC, must hold the lock
+     *
+     * @return false if too many commands are waiting
+     */
+    private boolean await(ATResponse resp) {
+        for (int i = 0; i < this.awaiting.length; i++) {
+            if (this.awaiting[i] == null) {
+                this.awaiting[i] = resp;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decimal error code after the prefix, 0 if there is none
+     */
+    private static int parseCode(byte[] line, int begin, int len) {
+        int code = 0;
+        for (int i = begin; i < len; i++) {
+            int d = line[i] - '0';
+            if (d >= 0 && d <= 9) {
+                code = code * 10 + d;
+            } else if (line[i] != ' ') {
+                return 0;
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Remove the command in flight, must hold the lock
+     */
+    private ATResponse removeHead() {
+        ATResponse resp = this.queue[this.head];
+        this.queue[this.head] = null;
+        this.head = (this.head + 1) % this.queue.length;
+        this.count--;
+        return resp;
+    }
+
+    /**
+     * Write the head command if it has not been written yet. A command that
+     * cannot be written fails with ERROR and the next one is tried, the
+     * caller queueing a command never sees the failure of another one
+     */
+    private void writeNext() {
+        while (true) {
+            ATResponse resp;
+            synchronized (this) {
+                if (this.count == 0)
+                    return;
+
+                resp = this.queue[this.head];
+                if (resp.sentTime != 0)
+                    return;
+
+                resp.sentTime = System.currentTimeMillis();
+                try {
+                    int written = resp.writeTo(this.output, this.scratch);
+                    if (this.metrics != null)
+                        this.metrics.recordSent(written);
+                    return;
+                } catch (IOException ex) {
+                    this.removeHead();
+                }
+            }
+
+            this.finish(resp, ATResponse.ERROR, 0);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds an AT command straight into a reusable byte buffer
+ * The command prefix, decimal arguments and hex payload are written without
+ * temporary strings, the frame goes to the UART in one write. The buffer
+ * grows when a longer frame is built and is kept for the next one.
+ *
+ * @author lemon
+ */
+public class ATFrameBuilder {
+
+    private byte[] buffer;
+    private int length = 0;
+
+    // owned by a pending command, see TiBC28.acquireFrame
+    volatile boolean inUse = false;
+
+    /**
+     * @param capacity initial buffer size
+     */
+    public ATFrameBuilder(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Start a new frame
+     *
+     * @return this
+     */
+    public ATFrameBuilder reset() {
+        this.length = 0;
+        return this;
+    }
+
+    /**
+     * Make room for the payload to come, so that appending it does not grow
+     * the buffer several times
+     *
+     * @param len number of bytes to be appended
+     * @return this
+     */
+    public ATFrameBuilder reserve(int len) {
+        this.ensureCapacity(this.length + len);
+        return this;
+    }
+
+    /**
+     * Append ASCII text
+     *
+     * @return this
+     */
+    public ATFrameBuilder append(String text) {
+        int len = text.length();
+        this.ensureCapacity(this.length + len);
+        for (int i = 0; i < len; i++) {
+            this.buffer[this.length++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    public ATFrameBuilder append(char c) {
+        this.ensureCapacity(this.length + 1);
+        this.buffer[this.length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Append a decimal number
+     *
+     * @return this
+     */
+    public ATFrameBuilder append(int value) {
+        this.ensureCapacity(this.length + 11);
+        if (value < 0) {
+            this.buffer[this.length++] = '-';
+            if (value == Integer.MIN_VALUE) {
+                // -2147483648 has no positive counterpart
+                return this.append("2147483648");
+            }
+            value = -value;
+        }
+
+        int begin = this.length;
+        do {
+            this.buffer[this.length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        // digits were written in reverse order
+        int end = this.length - 1;
+        while (begin < end) {
+            byte temp = this.buffer[begin];
+            this.buffer[begin++] = this.buffer[end];
+            this.buffer[end--] = temp;
+        }
+        return this;
+    }
+
+    /**
+     * Append data as upper case hex
+     *
+     * @return this
+     */
+    public ATFrameBuilder appendHex(byte[] data, int off, int len) {
+        this.ensureCapacity(this.length + len * 2);
+        this.length = HexCodec.encode(data, off, len, this.buffer, this.length);
+        return this;
+    }
+
+    /**
+     * Append the low bytes of a value as big endian upper case hex
+     *
+     * @param value value to append
+     * @param size  number of bytes, 1 - 4
+     * @return this
+     */
+    public ATFrameBuilder appendHexValue(int value, int size) {
+        this.ensureCapacity(this.length + size * 2);
+        this.length = HexCodec.encodeValue(value, size, this.buffer, this.length);
+        return this;
+    }
+
+    /**
+     * Terminate the frame with CR/LF
+     *
+     * @return this
+     */
+    public ATFrameBuilder end() {
+        this.ensureCapacity(this.length + 2);
+        this.buffer[this.length++] = '\r';
+        this.buffer[this.length++] = '\n';
+        return this;
+    }
+
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    /**
+     * Write the frame in one call
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(this.buffer, 0, this.length);
+    }
+
+    /**
+     * Give the builder back after the command using it has completed
+     */
+    void release() {
+        this.inUse = false;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= this.buffer.length)
+            return;
+
+        byte[] temp = new byte[Math.max(size, this.buffer.length * 2)];
+        System.arraycopy(this.buffer, 0, temp, 0, this.length);
+        this.buffer = temp;
+    }
+}
@@ -0,0 +1,187 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Byte level line framer for the AT channel.
+ * Bytes are read from the input stream in bulk into a ring buffer and scanned
+ * in place, a line is terminated by CR, LF or CRLF. The line content is copied
+ * out in runs between terminators instead of byte by byte. A CRLF pair split
+ * over two reads is recognized, and a partial line is kept until the rest of
+ * it arrives regardless of how long that takes.
+ *
+ * @author lemon
+ */
+public class ATLineReader {
+
+    private static final int CR = 0x0D;
+    private static final int LF = 0x0A;
+
+    // last byte was data
+    private static final int STATE_DATA = 0;
+    // last byte was CR, a following LF belongs to the same terminator
+    private static final int STATE_CR = 1;
+
+    private InputStream input;
+
+    // raw bytes from the input stream
+    private ByteRingBuffer ring;
+
+    // current line
+    private byte[] line;
+    private int lineLen = 0;
+    private boolean lineReady = false;
+
+    private int state = STATE_DATA;
+
+    /**
+     * Initialize the line reader
+     *
+     * @param input      input stream of the UART
+     * @param lineLength initial line buffer size, grows if a longer line arrives
+     */
+    public ATLineReader(InputStream input, int lineLength) {
+        this(input, lineLength, 1024);
+    }
+
+    /**
+     * Initialize the line reader
+     *
+     * @param input        input stream of the UART
+     * @param lineLength   initial line buffer size, grows if a longer line arrives
+     * @param ringCapacity size of the receive ring buffer
+     */
+    public ATLineReader(InputStream input, int lineLength, int ringCapacity) {
+        this.input = input;
+        this.ring = new ByteRingBuffer(ringCapacity);
+        this.line = new byte[lineLength];
+    }
+
+    /**
+     * Read the next non-empty line
+     *
+     * @return length of the line, -1 if no complete line arrived within the
+     * read timeout of the input stream
+     * @throws IOException
+     */
+    public int readLine() throws IOException {
+        return this.readLine(true);
+    }
+
+    /**
+     * Read the next non-empty line
+     *
+     * @param wait false to return at once when the input stream has no data
+     *             available, for polling several modules from one thread
+     * @return length of the line, -1 if no complete line is available
+     * @throws IOException
+     */
+    public int readLine(boolean wait) throws IOException {
+        if (this.lineReady) {
+            this.lineReady = false;
+            this.lineLen = 0;
+        }
+
+        while (true) {
+            while (this.ring.available() > 0) {
+                int val = this.ring.peek(0);
+
+                if (val == CR) {
+                    this.ring.skip(1);
+                    this.state = STATE_CR;
+                    if (this.lineLen > 0)
+                        return this.ready();
+                } else if (val == LF) {
+                    this.ring.skip(1);
+                    if (this.state == STATE_CR) {
+                        this.state = STATE_DATA;
+                    } else if (this.lineLen > 0) {
+                        return this.ready();
+                    }
+                } else {
+                    // copy the run up to the next terminator at once
+                    this.state = STATE_DATA;
+                    this.append(this.ring.indexOf(CR, LF, 0));
+                }
+            }
+
+            if (!wait && this.input.available() == 0)
+                return -1;
+
+            int len = this.ring.fill(this.input);
+            if (len < 0)
+                throw new IOException("End of stream");
+
+            if (len == 0)
+                return -1;
+        }
+    }
+
+    /**
+     * Number of received bytes not yet returned as lines
+     *
+     * @return
+     */
+    public int available() {
+        return this.ring.available();
+    }
+
+    /**
+     * Discard buffered bytes and the partial line
+     */
+    public void clear() {
+        this.ring.clear();
+        this.lineLen = 0;
+        this.lineReady = false;
+        this.state = STATE_DATA;
+    }
+
+    /**
+     * Buffer of the last line returned by readLine, valid until the next call
+     *
+     * @return line buffer
+     */
+    public byte[] getLine() {
+        return this.line;
+    }
+
+    /**
+     * Length of the last line returned by readLine
+     *
+     * @return
+     */
+    public int getLineLength() {
+        return this.lineLen;
+    }
+
+    /**
+     * The last line as string
+     *
+     * @return
+     */
+    public String getLineString() {
+        return new String(this.line, 0, this.lineLen);
+    }
+
+    private int ready() {
+        this.lineReady = true;
+        return this.lineLen;
+    }
+
+    /**
+     * Move bytes from the ring to the line
+     *
+     * @param len number of bytes
+     */
+    private void append(int len) {
+        if (this.lineLen + len > this.line.length) {
+            byte[] temp = new byte[Math.max(this.line.length * 2, this.lineLen + len)];
+            System.arraycopy(this.line, 0, temp, 0, this.lineLen);
+            this.line = temp;
+        }
+
+        this.lineLen += this.ring.read(this.line, this.lineLen, len);
+    }
+
+}
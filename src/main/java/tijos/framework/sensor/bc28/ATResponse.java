@@ -1,22 +1,533 @@
 package tijos.framework.sensor.bc28;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Pending AT command, holds the response lines and the final result of the
+ * command. It can be waited on like a future or completed through a listener.
+ * The response lines are stored back to back in one byte buffer with their
+ * end offsets, they are looked up by index or prefix without joining or
+ * splitting strings. Only the UART reading thread appends lines, the final
+ * result is published through a volatile field, so reading a completed
+ * response takes no lock.
+ */
 public class ATResponse {
 
+    /**
+     * Final result of the command
+     */
+    public static final int PENDING = 0;
+    public static final int OK = 1;
+    public static final int ERROR = 2;
+    public static final int CME_ERROR = 3;
+    public static final int TIMEOUT = 4;
+
+    private String command;
+
+    // encoded command including CR/LF, used instead of command for payloads
+    private byte[] frame;
+    private int frameLength;
+
+    // pooled builder holding the frame, given back when the command completes
+    private ATFrameBuilder builder;
+
+    // response lines, allocated with the first line and kept over reset
+    private byte[] lines;
+    private int linesLength = 0;
+    private int[] lineEnds;
+    private int lineCount = 0;
+
+    // lines joined by getResponse, null until asked for
     private String response;
 
+    private volatile int result = PENDING;
+
+    private int errorCode = 0;
+
+    // threads in waitFor, notified on completion only if there are any
+    private int waiters = 0;
+
+    // max time in ms waiting for the final result after the command is written
+    int timeout;
+
+    // max time in ms waiting for the completing URC after OK
+    int urcTimeout;
+
+    // OK received, waiting for the URC of an asynchronous command
+    volatile boolean awaitingURC = false;
+
+    ATCommandDescriptor descriptor;
+
+    // time the command was written to the UART, 0 if still queued
+    volatile long sentTime = 0;
+
+    // time the final result arrived
+    private long doneTime = 0;
+
+    private IATResponseListener listener;
+
+    // calls the listener of an application command off the UART reading thread
+    private EventDispatcher dispatcher;
+
+    // BC28Metrics.CMD_XXX
+    int type;
+
+    // "AT+XXX?"
+    boolean query;
+
+    /**
+     * @param command  AT command without CR/LF
+     * @param timeout  max time in ms waiting for the final result, 0 for the
+     *                 timeout of the command descriptor
+     * @param listener notified when the command completes, may be null
+     */
+    public ATResponse(String command, int timeout, IATResponseListener listener) {
+        this.command = command;
+        this.listener = listener;
+        this.setType(command != null ? BC28Metrics.commandType(command) : BC28Metrics.CMD_OTHER,
+                command != null && command.endsWith("?"), timeout);
+        this.reset();
+    }
+
+    /**
+     * Command already encoded as bytes
+     *
+     * @param frame       AT command terminated by CR/LF
+     * @param frameLength length of the command in frame
+     * @param timeout     max time in ms waiting for the final result, 0 for
+     *                    the timeout of the command descriptor
+     * @param listener    notified when the command completes, may be null
+     */
+    public ATResponse(byte[] frame, int frameLength, int timeout, IATResponseListener listener) {
+        this((String) null, timeout, listener);
+        this.frame = frame;
+        this.frameLength = frameLength;
+        this.setType(BC28Metrics.commandType(frame, frameLength), isQuery(frame, frameLength), timeout);
+    }
+
+    /**
+     * Command built by a pooled frame builder, the builder is released when
+     * the command completes and the frame is not available afterwards
+     *
+     * @param builder  frame terminated by CR/LF
+     * @param timeout  max time in ms waiting for the final result
+     * @param listener notified when the command completes, may be null
+     */
+    ATResponse(ATFrameBuilder builder, int timeout, IATResponseListener listener) {
+        this(builder.getBuffer(), builder.length(), timeout, listener);
+        this.builder = builder;
+    }
+
+    private void setType(int type, boolean query, int timeout) {
+        this.type = type;
+        this.query = query;
+        this.descriptor = ATCommandDescriptor.forType(type, query);
+        this.timeout = timeout > 0 ? timeout : this.descriptor.getTimeout();
+        this.urcTimeout = this.descriptor.getURCTimeout();
+    }
+
+    /**
+     * Check if the frame is a query, the last character before CR/LF is '?'
+     */
+    private static boolean isQuery(byte[] frame, int len) {
+        while (len > 0 && (frame[len - 1] == '\r' || frame[len - 1] == '\n'))
+            len--;
+
+        return len > 0 && frame[len - 1] == '?';
+    }
+
     public void reset() {
-        this.response = "";
+        this.linesLength = 0;
+        this.lineCount = 0;
+        this.response = null;
+        this.result = PENDING;
+        this.errorCode = 0;
+        this.sentTime = 0;
+        this.doneTime = 0;
+        this.awaitingURC = false;
     }
 
     public void setResponse(String resp) {
-        if (this.response.length() > 0)
-            this.response += "\n";
+        byte[] line = resp.getBytes();
+        this.addLine(line, 0, line.length);
+    }
+
+    /**
+     * Append a response line
+     *
+     * @param line buffer holding the line
+     * @param off  offset of the line
+     * @param len  length of the line without CR/LF
+     */
+    void addLine(byte[] line, int off, int len) {
+        if (this.lines == null) {
+            this.lines = new byte[Math.max(64, len)];
+            this.lineEnds = new int[4];
+        }
+
+        if (this.linesLength + len > this.lines.length) {
+            byte[] temp = new byte[Math.max(this.linesLength + len, this.lines.length * 2)];
+            System.arraycopy(this.lines, 0, temp, 0, this.linesLength);
+            this.lines = temp;
+        }
+        if (this.lineCount == this.lineEnds.length) {
+            int[] temp = new int[this.lineEnds.length * 2];
+            System.arraycopy(this.lineEnds, 0, temp, 0, this.lineCount);
+            this.lineEnds = temp;
+        }
 
-        this.response += resp;
+        System.arraycopy(line, off, this.lines, this.linesLength, len);
+        this.linesLength += len;
+        this.lineEnds[this.lineCount++] = this.linesLength;
+        this.response = null;
     }
 
+    /**
+     * Response lines joined by '\n', the string is built once
+     *
+     * @return
+     */
     public String getResponse() {
+        if (this.response == null) {
+            StringBuffer sb = new StringBuffer(this.linesLength + this.lineCount);
+            for (int i = 0; i < this.lineCount; i++) {
+                if (i > 0)
+                    sb.append('\n');
+
+                for (int j = this.lineStart(i); j < this.lineEnds[i]; j++) {
+                    sb.append((char) (this.lines[j] & 0xFF));
+                }
+            }
+            this.response = sb.toString();
+        }
         return this.response;
     }
 
+    /**
+     * Time in ms from writing the command to its final result
+     *
+     * @return -1 if the command was not written or has not completed
+     */
+    public int getLatency() {
+        if (this.result == PENDING || this.sentTime == 0)
+            return -1;
+
+        return (int) (this.doneTime - this.sentTime);
+    }
+
+    public int getLineCount() {
+        return this.lineCount;
+    }
+
+    public String getLine(int index) {
+        int start = this.lineStart(index);
+        return new String(this.lines, start, this.lineEnds[index] - start);
+    }
+
+    /**
+     * All response lines
+     *
+     * @return
+     */
+    public String[] getLines() {
+        String[] result = new String[this.lineCount];
+        for (int i = 0; i < this.lineCount; i++) {
+            result[i] = this.getLine(i);
+        }
+        return result;
+    }
+
+    /**
+     * First line starting with the prefix, e.g. "+CSQ:"
+     *
+     * @param prefix
+     * @return index of the line, -1 if none
+     */
+    public int findLine(String prefix) {
+        int n = prefix.length();
+        for (int i = 0; i < this.lineCount; i++) {
+            int start = this.lineStart(i);
+            if (this.lineEnds[i] - start < n)
+                continue;
+
+            int j = 0;
+            while (j < n && this.lines[start + j] == prefix.charAt(j)) {
+                j++;
+            }
+            if (j == n)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Comma separated field of a line, counted after the ':' of a "+XXX:"
+     * line, e.g. field 1 of "+CGPADDR:0,10.45.12.7" is "10.45.12.7"
+     *
+     * @param index line index
+     * @param field field index
+     * @return null if the line has fewer fields
+     */
+    public String getField(int index, int field) {
+        int start = this.fieldStart(index, field);
+        if (start < 0)
+            return null;
+
+        return new String(this.lines, start, this.fieldEnd(index, start) - start);
+    }
+
+    /**
+     * Decimal field of a line, see getField, no string is created
+     *
+     * @param index line index
+     * @param field field index
+     * @return
+     * @throws IOException if the field is missing or not a number
+     */
+    public int getIntField(int index, int field) throws IOException {
+        int start = this.fieldStart(index, field);
+        if (start < 0)
+            throw new IOException("Wrong response");
+
+        int end = this.fieldEnd(index, start);
+        boolean negative = start < end && this.lines[start] == '-';
+        int pos = negative ? start + 1 : start;
+        if (pos == end)
+            throw new IOException("Wrong response");
+
+        int value = 0;
+        for (; pos < end; pos++) {
+            int c = this.lines[pos] - '0';
+            if (c < 0 || c > 9)
+                throw new IOException("Wrong response");
+            value = value * 10 + c;
+        }
+        return negative ? -value : value;
+    }
+
+    private int lineStart(int index) {
+        return index == 0 ? 0 : this.lineEnds[index - 1];
+    }
+
+    private int fieldStart(int index, int field) {
+        int pos = this.lineStart(index);
+        int end = this.lineEnds[index];
+
+        if (pos < end && this.lines[pos] == '+') {
+            while (pos < end && this.lines[pos] != ':') {
+                pos++;
+            }
+            if (pos == end)
+                return -1;
+            pos++;
+        }
+
+        while (field > 0) {
+            while (pos < end && this.lines[pos] != ',') {
+                pos++;
+            }
+            if (pos == end)
+                return -1;
+            pos++;
+            field--;
+        }
+
+        // the BC28 puts no space after ':', some firmware does
+        while (pos < end && this.lines[pos] == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int fieldEnd(int index, int start) {
+        int end = this.lineEnds[index];
+        int pos = start;
+        while (pos < end && this.lines[pos] != ',') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * AT command without CR/LF
+     *
+     * @return
+     */
+    public String getCommand() {
+        if (this.command == null && this.frame != null)
+            return new String(this.frame, 0, this.frameLength - 2);
+
+        return this.command;
+    }
+
+    /**
+     * Write the command to the UART
+     *
+     * @param output
+     * @param scratch builder to encode a text command in
+     * @return number of bytes written
+     * @throws IOException
+     */
+    int writeTo(OutputStream output, ATFrameBuilder scratch) throws IOException {
+        if (this.frame != null) {
+            output.write(this.frame, 0, this.frameLength);
+            return this.frameLength;
+        }
+
+        scratch.reset().append(this.command).end().writeTo(output);
+        return scratch.length();
+    }
+
+    /**
+     * Final result of the command
+     *
+     * @return PENDING, OK, ERROR, CME_ERROR or TIMEOUT
+     */
+    public int getResult() {
+        return this.result;
+    }
+
+    /**
+     * Error code of +CME ERROR:&lt;n&gt;
+     *
+     * @return
+     */
+    public int getErrorCode() {
+        return this.errorCode;
+    }
+
+    public boolean isDone() {
+        return this.result != PENDING;
+    }
+
+    /**
+     * Throw the failure of a completed command
+     *
+     * @throws ATTimeoutException if the command timed out or is still pending
+     * @throws ATCommandException if the command completed with an error
+     */
+    public void check() throws ATCommandException {
+        int result = this.getResult();
+        if (result == OK)
+            return;
+
+        // the frame of a pooled builder may be reused already, use its name
+        String cmd = this.builder != null ? BC28Metrics.commandName(this.type) : this.getCommand();
+        if (result == TIMEOUT || result == PENDING)
+            throw new ATTimeoutException(cmd);
+
+        throw new ATCommandException(cmd, result, this.errorCode);
+    }
+
+    /**
+     * Wait for the final result of the command
+     *
+     * @param timeout max time in ms
+     * @return true if the command completed
+     */
+    public boolean waitFor(long timeout) {
+        if (this.result != PENDING)
+            return true;
+
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            this.waiters++;
+            try {
+                while (this.result == PENDING) {
+                    long left = end - System.currentTimeMillis();
+                    if (left <= 0)
+                        return false;
+
+                    this.wait(left);
+                }
+            } catch (InterruptedException ie) {
+                return false;
+            } finally {
+                this.waiters--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait until the command completes or its timeout elapses after it has
+     * been written to the UART, the time spent in the queue is not counted.
+     * For an asynchronous command the time waiting for its URC is included
+     *
+     * @return true if the command completed
+     */
+    public boolean waitFor() {
+        if (this.result != PENDING)
+            return true;
+
+        synchronized (this) {
+            this.waiters++;
+            try {
+                while (this.result == PENDING) {
+                    long left = this.timeout + this.urcTimeout;
+                    if (this.sentTime != 0) {
+                        left = this.sentTime + this.timeout + this.urcTimeout - System.currentTimeMillis();
+                        if (left <= 0)
+                            return false;
+                    }
+
+                    this.wait(left);
+                }
+            } catch (InterruptedException ie) {
+                return false;
+            } finally {
+                this.waiters--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the final result, wake up the waiting thread and notify the listener
+     *
+     * @param result    final result
+     * @param errorCode error code for CME_ERROR
+     * @return false if the command has already completed
+     */
+    boolean complete(int result, int errorCode) {
+        synchronized (this) {
+            if (this.result != PENDING)
+                return false;
+
+            // errorCode before the volatile result, a reader seeing the result sees both
+            this.errorCode = errorCode;
+            this.doneTime = System.currentTimeMillis();
+            this.result = result;
+            if (this.waiters > 0)
+                this.notifyAll();
+        }
+
+        if (this.builder != null)
+            this.builder.release();
+
+        if (this.listener != null) {
+            if (this.dispatcher != null)
+                this.dispatcher.postATResponse(this);
+            else
+                this.listener.onATResponse(this);
+        }
+
+        return true;
+    }
+
+    /**
+     * Call the listener through the dispatcher, set before the command is
+     * queued
+     *
+     * @param dispatcher
+     */
+    void setDispatcher(EventDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    void notifyListener() {
+        this.listener.onATResponse(this);
+    }
+
 }
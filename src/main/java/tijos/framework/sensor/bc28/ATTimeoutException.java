@@ -0,0 +1,15 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * AT command got no final result within the timeout of its descriptor
+ *
+ * @author lemon
+ */
+public class ATTimeoutException extends ATCommandException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ATTimeoutException(String command) {
+        super(command, ATResponse.TIMEOUT, 0);
+    }
+}
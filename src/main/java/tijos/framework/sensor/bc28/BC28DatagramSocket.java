@@ -0,0 +1,218 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * UDP socket of the BC28 module with a fixed size receive ring
+ * Received datagrams are kept in the ring until receive is called. When the
+ * ring is full, no more AT+NSORF is issued for this socket and the data stays
+ * buffered in the module until the application catches up. Otherwise reads go
+ * on until the module reports nothing remaining, up to the receive batch of
+ * the modem queued at once.
+ *
+ * @author lemon
+ */
+public class BC28DatagramSocket {
+
+    private TiBC28 modem;
+    private int socketId;
+
+    private UDPDatagram[] ring;
+    private int head = 0;
+    private int count = 0;
+
+    // data is buffered in the module
+    private boolean pending = false;
+    // AT+NSORF in flight
+    private int reads = 0;
+
+    private boolean closed = false;
+
+    private IATResponseListener readListener = new IATResponseListener() {
+        @Override
+        public void onATResponse(ATResponse response) {
+            synchronized (BC28DatagramSocket.this) {
+                reads--;
+            }
+            requestRead();
+        }
+    };
+
+    BC28DatagramSocket(TiBC28 modem, int socketId, int capacity) {
+        this.modem = modem;
+        this.socketId = socketId;
+        this.ring = new UDPDatagram[capacity];
+        for (int i = 0; i < capacity; i++) {
+            this.ring[i] = new UDPDatagram(TiBC28.MAX_DATAGRAM_SIZE);
+        }
+    }
+
+    public int getSocketId() {
+        return this.socketId;
+    }
+
+    /**
+     * Send datagram to remote node
+     *
+     * @param remoteAddr remote IP
+     * @param remotePort remote port
+     * @param data       data to send
+     * @return length of data sent
+     * @throws IOException
+     */
+    public int send(String remoteAddr, int remotePort, byte[] data) throws IOException {
+        return this.modem.udpSend(this.socketId, remoteAddr, remotePort, data);
+    }
+
+    /**
+     * Stream sending a payload of any size in fragments to the remote node,
+     * see FragmentOutputStream for the chunk header
+     *
+     * @param remoteAddr remote IP
+     * @param remotePort remote port
+     * @return stream, close it to send the last fragment
+     */
+    public FragmentOutputStream getOutputStream(String remoteAddr, int remotePort) {
+        return this.modem.openUDPOutputStream(this.socketId, remoteAddr, remotePort);
+    }
+
+    /**
+     * Send datagram to remote node without waiting for the module
+     *
+     * @param remoteAddr remote IP
+     * @param remotePort remote port
+     * @param data       data to send
+     * @param listener   notified when the module accepted the datagram, may be null
+     * @return pending command
+     * @throws IOException
+     */
+    public ATResponse sendAsync(String remoteAddr, int remotePort, byte[] data, IATResponseListener listener)
+            throws IOException {
+        return this.modem.udpSendAsync(this.socketId, remoteAddr, remotePort, data, listener);
+    }
+
+    /**
+     * Receive a datagram, the content is copied into the caller's datagram
+     *
+     * @param datagram receives the datagram
+     * @param timeout  max time in ms to wait, 0 returns at once
+     * @return true if a datagram is received, false on timeout
+     * @throws IOException if the socket is closed
+     */
+    public boolean receive(UDPDatagram datagram, int timeout) throws IOException {
+        synchronized (this) {
+            long end = System.currentTimeMillis() + timeout;
+            while (this.count == 0) {
+                if (this.closed)
+                    throw new IOException("Socket closed");
+
+                long left = end - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+
+                try {
+                    this.wait(left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            datagram.copyFrom(this.ring[this.head]);
+            this.head = (this.head + 1) % this.ring.length;
+            this.count--;
+        }
+
+        // room again, fetch what is left in the module
+        requestRead();
+        return true;
+    }
+
+    /**
+     * Number of datagrams in the receive ring
+     *
+     * @return
+     */
+    public synchronized int available() {
+        return this.count;
+    }
+
+    /**
+     * Close the socket in the module
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+        this.modem.closeDatagramSocket(this);
+    }
+
+    /**
+     * +NSOCLI, the module closed the socket, the datagrams in the ring can
+     * still be received
+     */
+    void onClosed() {
+        synchronized (this) {
+            this.closed = true;
+            this.pending = false;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * +NSONMI, data arrived in the module
+     */
+    void onDataAvailable() {
+        synchronized (this) {
+            this.pending = true;
+        }
+        requestRead();
+    }
+
+    /**
+     * Datagram read by AT+NSORF
+     *
+     * @param datagram
+     */
+    void onDatagram(UDPDatagram datagram) {
+        synchronized (this) {
+            // a +NSONMI may have come while the read was in flight, never clear pending here
+            if (datagram.remaining > 0)
+                this.pending = true;
+
+            if (this.count == this.ring.length)
+                return; // never read while full
+
+            this.ring[(this.head + this.count) % this.ring.length].copyFrom(datagram);
+            this.count++;
+            this.notifyAll();
+        }
+    }
+
+    private void requestRead() {
+        int n;
+        synchronized (this) {
+            // each read in flight may fill a slot of the ring
+            n = Math.min(this.modem.getUDPReceiveBatch(), this.ring.length - this.count) - this.reads;
+            if (this.closed || !this.pending || n <= 0)
+                return;
+
+            this.reads += n;
+            this.pending = false;
+        }
+
+        for (int i = 0; i < n; i++) {
+            try {
+                this.modem.readDatagram(this.socketId, this.readListener);
+            } catch (IOException ex) {
+                synchronized (this) {
+                    this.reads -= n - i;
+                    this.pending = true;
+                }
+                return;
+            }
+        }
+    }
+}
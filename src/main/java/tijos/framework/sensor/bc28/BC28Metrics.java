@@ -0,0 +1,361 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Counters and latency histograms of the driver
+ * All values are kept in preallocated primitive arrays, recording an event
+ * allocates nothing. A periodic task can take a snapshot into another
+ * instance and reset the counters, then upload the snapshot.
+ *
+ * @author lemon
+ */
+public class BC28Metrics {
+
+    /**
+     * Command types
+     */
+    public static final int CMD_OTHER = 0;
+    public static final int CMD_CFUN = 1;
+    public static final int CMD_CGATT = 2;
+    public static final int CMD_CEREG = 3;
+    public static final int CMD_CSCON = 4;
+    public static final int CMD_CSQ = 5;
+    public static final int CMD_CIMI = 6;
+    public static final int CMD_CGSN = 7;
+    public static final int CMD_CGPADDR = 8;
+    public static final int CMD_NSOCR = 9;
+    public static final int CMD_NSOST = 10;
+    public static final int CMD_NSOSTF = 11;
+    public static final int CMD_NSORF = 12;
+    public static final int CMD_NSOCL = 13;
+    public static final int CMD_NMGS = 14;
+    public static final int CMD_NQMGS = 15;
+    public static final int CMD_NUESTATS = 16;
+    public static final int CMD_NPING = 17;
+    public static final int CMD_CCLK = 18;
+    public static final int CMD_CPSMS = 19;
+    public static final int CMD_CEDRXS = 20;
+    public static final int CMD_NRB = 21;
+    public static final int CMD_CONFIG = 22;
+    public static final int CMD_NMGSEXT = 23;
+    public static final int CMD_NNMI = 24;
+    public static final int CMD_NSMI = 25;
+
+    public static final int CMD_COUNT = 26;
+
+    // command names in the order of the types, the longer name first if one is a prefix of another
+    private static final String[] CMD_NAMES = {"", "AT+CFUN", "AT+CGATT", "AT+CEREG", "AT+CSCON", "AT+CSQ",
+            "AT+CIMI", "AT+CGSN", "AT+CGPADDR", "AT+NSOCR", "AT+NSOST", "AT+NSOSTF", "AT+NSORF", "AT+NSOCL",
+            "AT+NMGS", "AT+NQMGS", "AT+NUESTATS", "AT+NPING", "AT+CCLK", "AT+CPSMS", "AT+CEDRXS", "AT+NRB", "",
+            "AT+NMGSEXT", "AT+NNMI", "AT+NSMI"};
+
+    /**
+     * URC types
+     */
+    public static final int URC_OTHER = 0;
+    public static final int URC_NNMI = 1;
+    public static final int URC_NSONMI = 2;
+    public static final int URC_NSMI = 3;
+    public static final int URC_CEREG = 4;
+    public static final int URC_CSCON = 5;
+    public static final int URC_REBOOT = 6;
+    public static final int URC_NSOSTR = 7;
+    public static final int URC_NPING = 8;
+    public static final int URC_NSOCLI = 9;
+
+    public static final int URC_COUNT = 10;
+
+    /**
+     * Upper bounds in ms of the latency buckets, the last bucket has no bound
+     */
+    public static final int[] BUCKET_BOUNDS = {10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    public static final int BUCKET_COUNT = BUCKET_BOUNDS.length + 1;
+
+    // per command type
+    private int[][] histogram = new int[CMD_COUNT][BUCKET_COUNT];
+    private int[] commands = new int[CMD_COUNT];
+    private long[] latencySum = new long[CMD_COUNT];
+    private int[] latencyMax = new int[CMD_COUNT];
+    private int[] timeouts = new int[CMD_COUNT];
+    private int[] errors = new int[CMD_COUNT];
+
+    private int[] urcs = new int[URC_COUNT];
+
+    // serial I/O
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private int linesSent = 0;
+    private int linesReceived = 0;
+
+    // listener dispatch
+    private int dispatches = 0;
+    private long dispatchTimeSum = 0;
+    private int dispatchTimeMax = 0;
+
+    private long startTime = System.currentTimeMillis();
+
+    /**
+     * Type of an AT command
+     *
+     * @param cmd AT command
+     * @return CMD_XXX
+     */
+    public static int commandType(String cmd) {
+        if (cmd.startsWith("AT+NCONFIG") || cmd.startsWith("AT+NCDP"))
+            return CMD_CONFIG;
+
+        int type = CMD_OTHER;
+        int best = 0;
+        for (int i = 1; i < CMD_NAMES.length; i++) {
+            String name = CMD_NAMES[i];
+            if (name.length() > best && cmd.startsWith(name)) {
+                type = i;
+                best = name.length();
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Type of an encoded AT command
+     *
+     * @param frame AT command bytes
+     * @param len   length of the command
+     * @return CMD_XXX
+     */
+    public static int commandType(byte[] frame, int len) {
+        int end = 0;
+        while (end < len && frame[end] != '=' && frame[end] != '?' && frame[end] != '\r') {
+            end++;
+        }
+
+        for (int i = 1; i < CMD_NAMES.length; i++) {
+            String name = CMD_NAMES[i];
+            if (name.length() != end)
+                continue;
+
+            int j = 0;
+            while (j < end && frame[j] == name.charAt(j)) {
+                j++;
+            }
+            if (j == end)
+                return i;
+        }
+        return CMD_OTHER;
+    }
+
+    /**
+     * Name of a command type
+     *
+     * @param type CMD_XXX
+     * @return
+     */
+    public static String commandName(int type) {
+        if (type == CMD_CONFIG)
+            return "CONFIG";
+        if (type == CMD_OTHER)
+            return "OTHER";
+
+        return CMD_NAMES[type];
+    }
+
+    /**
+     * AT command completed
+     *
+     * @param type    CMD_XXX
+     * @param latency time in ms from writing the command to its final result
+     * @param result  ATResponse.OK, ERROR, CME_ERROR or TIMEOUT
+     */
+    public synchronized void recordCommand(int type, long latency, int result) {
+        if (result == ATResponse.TIMEOUT) {
+            this.timeouts[type]++;
+            return;
+        }
+
+        if (result != ATResponse.OK)
+            this.errors[type]++;
+
+        int ms = latency > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) latency;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && ms >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        this.histogram[type][bucket]++;
+        this.commands[type]++;
+        this.latencySum[type] += ms;
+        if (ms > this.latencyMax[type])
+            this.latencyMax[type] = ms;
+    }
+
+    public synchronized void recordURC(int type) {
+        this.urcs[type]++;
+    }
+
+    public synchronized void recordSent(int bytes) {
+        this.bytesSent += bytes;
+        this.linesSent++;
+    }
+
+    public synchronized void recordReceived(int bytes) {
+        this.bytesReceived += bytes;
+        this.linesReceived++;
+    }
+
+    public synchronized void recordDispatch(long time) {
+        int ms = time > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) time;
+        this.dispatches++;
+        this.dispatchTimeSum += ms;
+        if (ms > this.dispatchTimeMax)
+            this.dispatchTimeMax = ms;
+    }
+
+    /**
+     * Number of commands of the type in the latency bucket
+     *
+     * @param type   CMD_XXX
+     * @param bucket index in BUCKET_BOUNDS, BUCKET_COUNT - 1 for the last one
+     * @return
+     */
+    public synchronized int getHistogram(int type, int bucket) {
+        return this.histogram[type][bucket];
+    }
+
+    /**
+     * Number of completed commands of the type, timeouts excluded
+     */
+    public synchronized int getCommandCount(int type) {
+        return this.commands[type];
+    }
+
+    /**
+     * Average latency in ms of the type
+     */
+    public synchronized int getAverageLatency(int type) {
+        if (this.commands[type] == 0)
+            return 0;
+
+        return (int) (this.latencySum[type] / this.commands[type]);
+    }
+
+    public synchronized int getMaxLatency(int type) {
+        return this.latencyMax[type];
+    }
+
+    public synchronized int getTimeoutCount(int type) {
+        return this.timeouts[type];
+    }
+
+    /**
+     * Number of ERROR and +CME ERROR results of the type
+     */
+    public synchronized int getErrorCount(int type) {
+        return this.errors[type];
+    }
+
+    public synchronized int getURCCount(int type) {
+        return this.urcs[type];
+    }
+
+    public synchronized long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    public synchronized int getLinesSent() {
+        return this.linesSent;
+    }
+
+    public synchronized int getLinesReceived() {
+        return this.linesReceived;
+    }
+
+    public synchronized int getDispatchCount() {
+        return this.dispatches;
+    }
+
+    public synchronized int getAverageDispatchTime() {
+        if (this.dispatches == 0)
+            return 0;
+
+        return (int) (this.dispatchTimeSum / this.dispatches);
+    }
+
+    public synchronized int getMaxDispatchTime() {
+        return this.dispatchTimeMax;
+    }
+
+    /**
+     * Time the counters were last reset
+     *
+     * @return
+     */
+    public synchronized long getStartTime() {
+        return this.startTime;
+    }
+
+    /**
+     * Copy all counters into another instance without allocating
+     *
+     * @param dst   target of the snapshot
+     * @param reset reset the counters of this instance after copying
+     */
+    public void snapshot(BC28Metrics dst, boolean reset) {
+        synchronized (this) {
+            synchronized (dst) {
+                for (int i = 0; i < CMD_COUNT; i++) {
+                    System.arraycopy(this.histogram[i], 0, dst.histogram[i], 0, BUCKET_COUNT);
+                }
+                System.arraycopy(this.commands, 0, dst.commands, 0, CMD_COUNT);
+                System.arraycopy(this.latencySum, 0, dst.latencySum, 0, CMD_COUNT);
+                System.arraycopy(this.latencyMax, 0, dst.latencyMax, 0, CMD_COUNT);
+                System.arraycopy(this.timeouts, 0, dst.timeouts, 0, CMD_COUNT);
+                System.arraycopy(this.errors, 0, dst.errors, 0, CMD_COUNT);
+                System.arraycopy(this.urcs, 0, dst.urcs, 0, URC_COUNT);
+
+                dst.bytesSent = this.bytesSent;
+                dst.bytesReceived = this.bytesReceived;
+                dst.linesSent = this.linesSent;
+                dst.linesReceived = this.linesReceived;
+                dst.dispatches = this.dispatches;
+                dst.dispatchTimeSum = this.dispatchTimeSum;
+                dst.dispatchTimeMax = this.dispatchTimeMax;
+                dst.startTime = this.startTime;
+            }
+
+            if (reset)
+                this.reset();
+        }
+    }
+
+    /**
+     * Reset all counters
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < CMD_COUNT; i++) {
+            for (int j = 0; j < BUCKET_COUNT; j++) {
+                this.histogram[i][j] = 0;
+            }
+            this.commands[i] = 0;
+            this.latencySum[i] = 0;
+            this.latencyMax[i] = 0;
+            this.timeouts[i] = 0;
+            this.errors[i] = 0;
+        }
+        for (int i = 0; i < URC_COUNT; i++) {
+            this.urcs[i] = 0;
+        }
+
+        this.bytesSent = 0;
+        this.bytesReceived = 0;
+        this.linesSent = 0;
+        this.linesReceived = 0;
+        this.dispatches = 0;
+        this.dispatchTimeSum = 0;
+        this.dispatchTimeMax = 0;
+        this.startTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,352 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import tijos.framework.devicecenter.TiUART;
+import tijos.framework.util.Delay;
+
+/**
+ * Several BC28 modules served by one I/O thread
+ * The modules added to the pool have no reading thread of their own, the pool
+ * thread polls their UARTs in turn and only sleeps when all of them are idle.
+ * Uplinks go to the healthy module with the shortest command queue, the signal
+ * quality breaks ties. A module whose commands keep timing out is taken out of
+ * service and probed with AT until it answers again.
+ *
+ * @author lemon
+ */
+public class BC28Pool extends Thread {
+
+    // wait interval when all modules are idle, grows while they stay idle
+    private static final int MIN_WAIT = 1;
+    private static final int MAX_WAIT = 20;
+    // max wait interval while a command is waiting for its answer
+    private static final int ACTIVE_WAIT = 2;
+
+    // max lines handled per module in one pass, keeps the modules fair
+    private static final int LINES_PER_PASS = 8;
+
+    // consecutive timeouts before a module is taken out of service
+    private static final int MAX_FAILURES = 3;
+
+    // interval in ms between probes of a module out of service
+    private static final int PROBE_INTERVAL = 10000;
+
+    private static class Member implements IATResponseListener {
+        TiBC28 modem;
+        int socketId = -1;
+
+        // updated by the completion threads of the module and the health check
+        int failures = 0;
+        volatile boolean healthy = true;
+
+        ATResponse probe;
+        long lastProbe = 0;
+
+        Member(TiBC28 modem) {
+            this.modem = modem;
+        }
+
+        /**
+         * Result of a command sent through the pool
+         */
+        @Override
+        public void onATResponse(ATResponse response) {
+            this.onResult(response.getResult());
+        }
+
+        /**
+         * Failed send, only a timeout counts against the health, other
+         * failures like a full command queue or a wrong response are errors
+         */
+        void onFailure(IOException ex) {
+            this.onResult(ex instanceof ATCommandException ? ((ATCommandException) ex).getResult() : ATResponse.ERROR);
+        }
+
+        synchronized void onResult(int result) {
+            if (result == ATResponse.TIMEOUT) {
+                if (++this.failures >= MAX_FAILURES)
+                    this.healthy = false;
+            } else {
+                this.failures = 0;
+            }
+        }
+
+        /**
+         * The module answered the probe, back in service
+         */
+        synchronized void recover() {
+            this.failures = 0;
+            this.healthy = true;
+        }
+    }
+
+    private Member[] members;
+    private int count = 0;
+
+    private boolean keeprunning = true;
+
+    /**
+     * @param capacity max number of modules
+     */
+    public BC28Pool(int capacity) {
+        this.members = new Member[capacity];
+
+        this.setDaemon(true);
+        this.start();
+    }
+
+    /**
+     * Add a module on the UART
+     *
+     * @param uart TiUART object
+     * @return the module
+     */
+    public TiBC28 add(TiUART uart) {
+        return this.add(new TiBC28(uart, false));
+    }
+
+    /**
+     * Add a module with IO streams, e.g. a simulated module
+     *
+     * @param input  stream from the module
+     * @param output stream to the module
+     * @return the module
+     */
+    public TiBC28 add(InputStream input, OutputStream output) {
+        return this.add(new TiBC28(input, output, false));
+    }
+
+    private synchronized TiBC28 add(TiBC28 modem) {
+        if (this.count == this.members.length)
+            throw new IllegalStateException("Pool full");
+
+        this.members[this.count++] = new Member(modem);
+        return modem;
+    }
+
+    public synchronized int size() {
+        return this.count;
+    }
+
+    public synchronized TiBC28 get(int index) {
+        return this.members[index].modem;
+    }
+
+    /**
+     * Check if the module is in service
+     *
+     * @param index
+     * @return
+     */
+    public synchronized boolean isHealthy(int index) {
+        return this.members[index].healthy;
+    }
+
+    /**
+     * Create a UDP socket on every module, used by udpSend
+     *
+     * @param listenPort local port
+     * @throws IOException
+     */
+    public void openUDPSockets(int listenPort) throws IOException {
+        for (int i = 0; i < this.size(); i++) {
+            Member m = this.member(i);
+            m.socketId = m.modem.createUDPSocket(listenPort);
+        }
+    }
+
+    /**
+     * Module to send the next uplink
+     *
+     * @return null if no module is in service
+     */
+    public TiBC28 select() {
+        Member m = this.selectMember(null);
+        return m == null ? null : m.modem;
+    }
+
+    /**
+     * Send UDP datagram, another module is tried if the selected one fails
+     *
+     * @param remoteAddr remote IP
+     * @param remotePort remote port
+     * @param data       data to send
+     * @return length of data sent
+     * @throws IOException the last failure if no module could send
+     */
+    public int udpSend(String remoteAddr, int remotePort, byte[] data) throws IOException {
+        boolean[] tried = new boolean[this.members.length];
+        IOException failure = new IOException("No module in service");
+
+        Member m;
+        while ((m = this.selectMember(tried)) != null) {
+            tried[this.indexOf(m)] = true;
+            try {
+                int sent = m.modem.udpSend(m.socketId, remoteAddr, remotePort, data);
+                m.onResult(ATResponse.OK);
+                return sent;
+            } catch (IOException ex) {
+                m.onFailure(ex);
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Queue UDP datagram on the selected module
+     *
+     * @return pending command
+     * @throws IOException if no module is in service
+     */
+    public ATResponse udpSendAsync(String remoteAddr, int remotePort, byte[] data) throws IOException {
+        Member m = this.selectMember(null);
+        if (m == null)
+            throw new IOException("No module in service");
+
+        return m.modem.udpSendAsync(m.socketId, remoteAddr, remotePort, data, 0, data.length, m);
+    }
+
+    /**
+     * Send CoAP message, another module is tried if the selected one fails
+     *
+     * @param data data to send
+     * @throws IOException the last failure if no module could send
+     */
+    public void coapSend(byte[] data) throws IOException {
+        boolean[] tried = new boolean[this.members.length];
+        IOException failure = new IOException("No module in service");
+
+        Member m;
+        while ((m = this.selectMember(tried)) != null) {
+            tried[this.indexOf(m)] = true;
+            try {
+                m.modem.coapSend(data);
+                m.onResult(ATResponse.OK);
+                return;
+            } catch (IOException ex) {
+                m.onFailure(ex);
+                failure = ex;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Stop the I/O thread
+     */
+    public void close() {
+        this.keeprunning = false;
+    }
+
+    @Override
+    public void run() {
+        int wait = MIN_WAIT;
+        while (keeprunning) {
+            boolean busy = false;
+            boolean active = false;
+
+            int n = this.size();
+            for (int i = 0; i < n; i++) {
+                Member m = this.member(i);
+                for (int lines = 0; lines < LINES_PER_PASS && m.modem.poll(false); lines++) {
+                    busy = true;
+                }
+
+                if (m.modem.getPendingCommandCount() > 0)
+                    active = true;
+
+                if (!m.healthy)
+                    this.probe(m);
+            }
+
+            if (busy) {
+                wait = MIN_WAIT;
+            } else {
+                if (active && wait > ACTIVE_WAIT)
+                    wait = ACTIVE_WAIT;
+
+                Delay.msDelay(wait);
+                wait = Math.min(wait << 1, active ? ACTIVE_WAIT : MAX_WAIT);
+            }
+        }
+    }
+
+    /**
+     * Send AT to a module out of service, put it back when it answers
+     */
+    private void probe(Member m) {
+        if (m.probe != null) {
+            if (!m.probe.isDone())
+                return;
+
+            if (m.probe.getResult() == ATResponse.OK)
+                m.recover();
+            m.probe = null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (m.healthy || now - m.lastProbe < PROBE_INTERVAL)
+            return;
+
+        m.lastProbe = now;
+        try {
+            m.probe = m.modem.sendCommandAsync("AT", null);
+        } catch (IOException ex) {
+            // command queue full, try again later
+        }
+    }
+
+    private synchronized Member member(int index) {
+        return this.members[index];
+    }
+
+    private synchronized int indexOf(Member m) {
+        for (int i = 0; i < this.count; i++) {
+            if (this.members[i] == m)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Healthy module with the lowest load, a queued command weighs more than
+     * the whole RSSI range
+     *
+     * @param tried modules to skip, may be null
+     */
+    private synchronized Member selectMember(boolean[] tried) {
+        Member best = null;
+        int bestScore = Integer.MAX_VALUE;
+
+        for (int i = 0; i < this.count; i++) {
+            Member m = this.members[i];
+            if (!m.healthy || (tried != null && tried[i]))
+                continue;
+
+            int score = m.modem.getPendingCommandCount() * 32 + (31 - rssi(m.modem));
+            if (score < bestScore) {
+                best = m;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Last known RSSI without querying the module
+     *
+     * @return 0 - 31, 0 if unknown
+     */
+    private static int rssi(TiBC28 modem) {
+        ResponseCache cache = modem.getResponseCache();
+        if (!cache.contains(ResponseCache.RSSI))
+            return 0;
+
+        int rssi = cache.getInt(ResponseCache.RSSI);
+        return rssi > 31 ? 0 : rssi;
+    }
+}
@@ -0,0 +1,158 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixed size byte ring buffer
+ * The storage is allocated once, data is filled in bulk from a stream and
+ * consumed in place, nothing is allocated per byte.
+ *
+ * @author lemon
+ */
+public class ByteRingBuffer {
+
+    private byte[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * @param capacity size of the buffer in bytes
+     */
+    public ByteRingBuffer(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    public int capacity() {
+        return this.buffer.length;
+    }
+
+    /**
+     * Number of buffered bytes
+     *
+     * @return
+     */
+    public int available() {
+        return this.count;
+    }
+
+    /**
+     * Room left in bytes
+     *
+     * @return
+     */
+    public int free() {
+        return this.buffer.length - this.count;
+    }
+
+    /**
+     * Buffered byte without consuming it
+     *
+     * @param index position from the oldest byte, must be less than available()
+     * @return byte value 0 - 255
+     */
+    public int peek(int index) {
+        return this.buffer[(this.head + index) % this.buffer.length] & 0xFF;
+    }
+
+    /**
+     * Position of the first byte equal to a or b
+     *
+     * @param from position from the oldest byte to start at
+     * @return position or available() if not found
+     */
+    public int indexOf(int a, int b, int from) {
+        int pos = this.head + from;
+        if (pos >= this.buffer.length)
+            pos -= this.buffer.length;
+
+        for (int i = from; i < this.count; i++) {
+            int val = this.buffer[pos] & 0xFF;
+            if (val == a || val == b)
+                return i;
+
+            if (++pos == this.buffer.length)
+                pos = 0;
+        }
+        return this.count;
+    }
+
+    /**
+     * Discard buffered bytes
+     *
+     * @param len number of bytes
+     */
+    public void skip(int len) {
+        if (len > this.count)
+            len = this.count;
+
+        this.head = (this.head + len) % this.buffer.length;
+        this.count -= len;
+        if (this.count == 0)
+            this.head = 0;
+    }
+
+    /**
+     * Consume buffered bytes
+     *
+     * @return number of bytes copied
+     */
+    public int read(byte[] b, int off, int len) {
+        if (len > this.count)
+            len = this.count;
+
+        int first = Math.min(len, this.buffer.length - this.head);
+        System.arraycopy(this.buffer, this.head, b, off, first);
+        if (first < len)
+            System.arraycopy(this.buffer, 0, b, off + first, len - first);
+
+        this.skip(len);
+        return len;
+    }
+
+    /**
+     * Append bytes
+     *
+     * @return number of bytes stored, less than len if the buffer is full
+     */
+    public int write(byte[] b, int off, int len) {
+        if (len > this.free())
+            len = this.free();
+
+        int tail = (this.head + this.count) % this.buffer.length;
+        int first = Math.min(len, this.buffer.length - tail);
+        System.arraycopy(b, off, this.buffer, tail, first);
+        if (first < len)
+            System.arraycopy(b, off + first, this.buffer, 0, len - first);
+
+        this.count += len;
+        return len;
+    }
+
+    /**
+     * Read from the stream into the free space with one bulk read
+     *
+     * @param input
+     * @return number of bytes read, 0 if nothing arrived or the buffer is
+     * full, -1 at the end of the stream
+     * @throws IOException
+     */
+    public int fill(InputStream input) throws IOException {
+        if (this.count == this.buffer.length)
+            return 0;
+
+        int tail = (this.head + this.count) % this.buffer.length;
+        int room = tail >= this.head ? this.buffer.length - tail : this.head - tail;
+
+        int len = input.read(this.buffer, tail, room);
+        if (len > 0)
+            this.count += len;
+
+        return len;
+    }
+
+    public void clear() {
+        this.head = 0;
+        this.count = 0;
+    }
+}
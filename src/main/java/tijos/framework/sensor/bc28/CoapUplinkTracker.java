@@ -0,0 +1,240 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Outstanding CoAP uplinks in sending order
+ * The module reports +NSMI:SENT / +NSMI:DISCARDED for each message in order,
+ * the oldest uplink is completed by each report. Every AT+NMGS and
+ * AT+NMGSEXT has an entry, the ones sent without tracking are consumed
+ * silently so that the reports stay in step with the tracked ones.
+ * AT+NQMGS counters are used to complete uplinks whose report was missed: a
+ * message the module had already counted at an earlier check, at least
+ * REPORT_TIMEOUT ago, whose report still has not come.
+ *
+ * @author lemon
+ */
+public class CoapUplinkTracker {
+
+    /**
+     * Time in ms a report may take after the module counted the message
+     */
+    public static final int REPORT_TIMEOUT = 2000;
+
+    // tracked uplinks as seq, untracked ones as -id
+    private int[] entries;
+    private int head = 0;
+    private int count = 0;
+    private int tracked = 0;
+
+    private int nextSeq = 1;
+    private int nextId = 1;
+
+    // reports in module counter terms, completions of missed reports included
+    private int reportedSent = 0;
+    private int reportedError = 0;
+
+    // module counters checked against the reports, -1 if unknown
+    private int checkedSent = -1;
+    private int checkedError = -1;
+    private long checkedTime = 0;
+
+    private ICoapSendListener listener;
+
+    public CoapUplinkTracker(int capacity) {
+        this.entries = new int[capacity];
+    }
+
+    public void setListener(ICoapSendListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Number of tracked uplinks waiting for their result
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return this.tracked;
+    }
+
+    /**
+     * Register a new uplink
+     *
+     * @return sequence of the uplink, -1 if too many are outstanding
+     */
+    public int add() {
+        int seq = this.add(true);
+        return seq == 0 ? -1 : seq;
+    }
+
+    /**
+     * Register a new uplink, one sent without tracking only keeps its place
+     * for the reports
+     *
+     * @param track true to report the result to the listener
+     * @return entry of the uplink, the sequence if tracked, 0 if too many are
+     * outstanding
+     */
+    public synchronized int add(boolean track) {
+        if (this.count == this.entries.length)
+            return 0;
+
+        int entry;
+        if (track) {
+            entry = this.nextSeq++;
+            if (this.nextSeq <= 0)
+                this.nextSeq = 1;
+            this.tracked++;
+        } else {
+            entry = -this.nextId++;
+            if (this.nextId <= 0)
+                this.nextId = 1;
+        }
+
+        this.entries[(this.head + this.count) % this.entries.length] = entry;
+        this.count++;
+        return entry;
+    }
+
+    /**
+     * The uplink was rejected by the module, no report will come for it
+     *
+     * @param entry
+     */
+    public void reject(int entry) {
+        if (this.remove(entry))
+            notifyResult(entry, false);
+    }
+
+    /**
+     * The uplink was never written to the module, it is dropped silently
+     *
+     * @param entry
+     */
+    public void cancel(int entry) {
+        this.remove(entry);
+    }
+
+    private synchronized boolean remove(int entry) {
+        int pos = -1;
+        for (int i = 0; i < this.count; i++) {
+            if (this.entries[(this.head + i) % this.entries.length] == entry) {
+                pos = i;
+                break;
+            }
+        }
+        if (pos < 0)
+            return false;
+
+        for (int i = pos; i < this.count - 1; i++) {
+            this.entries[(this.head + i) % this.entries.length] = this.entries[(this.head + i + 1) % this.entries.length];
+        }
+        this.count--;
+        if (entry > 0)
+            this.tracked--;
+        return true;
+    }
+
+    /**
+     * +NSMI report for the oldest uplink
+     *
+     * @param sent true for SENT, false for DISCARDED
+     */
+    public void onReport(boolean sent) {
+        int entry;
+        synchronized (this) {
+            if (sent)
+                this.reportedSent++;
+            else
+                this.reportedError++;
+
+            if (this.count == 0)
+                return;
+
+            entry = this.removeHead();
+        }
+
+        notifyResult(entry, sent);
+    }
+
+    /**
+     * Counters from AT+NQMGS "PENDING=x,SENT=y,ERROR=z". Messages counted by
+     * the module at a check at least REPORT_TIMEOUT ago and not reported by
+     * +NSMI since are completed oldest first, the messages still buffered in
+     * the module are never completed
+     *
+     * @param pending messages still buffered in the module
+     * @param sent    total sent messages
+     * @param error   total failed messages
+     */
+    public void reconcile(int pending, int sent, int error) {
+        int[] missed;
+        int missedSent;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (this.checkedSent < 0 || sent < this.checkedSent || error < this.checkedError) {
+                // first check or the module restarted, the reports still
+                // coming belong to messages counted before
+                this.reportedSent = sent;
+                this.reportedError = error;
+                this.check(sent, error, now);
+                return;
+            }
+
+            // reports of messages counted before the first check
+            if (this.reportedSent > sent)
+                this.reportedSent = sent;
+            if (this.reportedError > error)
+                this.reportedError = error;
+
+            // reports of the messages counted at the last check may be on the way
+            if (now - this.checkedTime < REPORT_TIMEOUT)
+                return;
+
+            int done = Math.max(0, this.count - pending);
+            missedSent = Math.min(Math.max(0, this.checkedSent - this.reportedSent), done);
+            int missedError = Math.min(Math.max(0, this.checkedError - this.reportedError), done - missedSent);
+
+            // the reports taken as lost, a late one would complete a newer uplink
+            this.reportedSent += missedSent;
+            this.reportedError += missedError;
+            this.check(sent, error, now);
+
+            if (missedSent + missedError == 0)
+                return;
+
+            missed = new int[missedSent + missedError];
+            for (int i = 0; i < missed.length; i++) {
+                missed[i] = this.removeHead();
+            }
+        }
+
+        for (int i = 0; i < missed.length; i++) {
+            notifyResult(missed[i], i < missedSent);
+        }
+    }
+
+    private void check(int sent, int error, long now) {
+        this.checkedSent = sent;
+        this.checkedError = error;
+        this.checkedTime = now;
+    }
+
+    private int removeHead() {
+        int entry = this.entries[this.head];
+        this.head = (this.head + 1) % this.entries.length;
+        this.count--;
+        if (entry > 0)
+            this.tracked--;
+        return entry;
+    }
+
+    private void notifyResult(int entry, boolean sent) {
+        if (entry <= 0)
+            return;
+
+        ICoapSendListener l = this.listener;
+        if (l != null)
+            l.onCoapSendResult(entry, sent);
+    }
+}
@@ -0,0 +1,430 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Delivers downlink data, send results and AT command results to the
+ * application listeners on its own thread, so that a slow listener never
+ * stalls the UART reading.
+ * Events are copied into a bounded ring of preallocated slots, when the ring
+ * is full the overflow policy decides what happens to downlink data. Results
+ * and network state changes are never dropped, the ring grows for them
+ * instead.
+ *
+ * @author lemon
+ */
+public class EventDispatcher extends Thread implements ICoapSendListener, IUDPSendListener,
+        INetworkStateListener {
+
+    /**
+     * Overflow policy for downlink data, other events never wait or drop
+     */
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+    // the UART reading thread waits for room for downlink data, commands may
+    // time out meanwhile
+    public static final int BLOCK = 2;
+
+    private static final int EVENT_COAP_DATA = 1;
+    private static final int EVENT_UDP_DATA = 2;
+    private static final int EVENT_COAP_SENT = 3;
+    private static final int EVENT_NETWORK_STATE = 4;
+    private static final int EVENT_UDP_SENT = 5;
+    private static final int EVENT_AT_RESPONSE = 6;
+
+    private static class Event {
+        int type;
+
+        byte[] data;
+        int length;
+
+        UDPDatagram datagram;
+
+        int socketId;
+        int seq;
+        boolean sent;
+
+        int oldState;
+        int newState;
+
+        ATResponse response;
+    }
+
+    private Event[] ring;
+    private int head = 0;
+    private int count = 0;
+
+    // slot owned by the dispatching thread, swapped with the ring head
+    private Event current = new Event();
+
+    private int policy = DROP_OLDEST;
+
+    private IDeviceEventListener eventListener;
+    private IRawDataListener rawDataListener;
+    private ICoapSendListener coapSendListener;
+    private IUDPSendListener udpSendListener;
+    private INetworkStateListener networkStateListener;
+
+    private BC28Metrics metrics;
+
+    // statistics
+    private int maxDepth = 0;
+    private int dropped = 0;
+    private int dispatched = 0;
+
+    /**
+     * @param capacity max number of queued events
+     */
+    public EventDispatcher(int capacity) {
+        this.ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            this.ring[i] = new Event();
+        }
+
+        this.setDaemon(true);
+    }
+
+    public void setEventListener(IDeviceEventListener listener) {
+        this.eventListener = listener;
+    }
+
+    public void setRawDataListener(IRawDataListener listener) {
+        this.rawDataListener = listener;
+    }
+
+    public void setCoapSendListener(ICoapSendListener listener) {
+        this.coapSendListener = listener;
+    }
+
+    public void setUDPSendListener(IUDPSendListener listener) {
+        this.udpSendListener = listener;
+    }
+
+    public void setNetworkStateListener(INetworkStateListener listener) {
+        this.networkStateListener = listener;
+    }
+
+    /**
+     * Record the time spent in the listeners
+     *
+     * @param metrics may be null
+     */
+    public void setMetrics(BC28Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * What to do with new downlink data when the queue is full, the other
+     * events always get a slot
+     *
+     * @param policy DROP_OLDEST, DROP_NEWEST or BLOCK
+     */
+    public synchronized void setOverflowPolicy(int policy) {
+        this.policy = policy;
+        this.notifyAll();
+    }
+
+    /**
+     * Number of queued events
+     *
+     * @return
+     */
+    public synchronized int getQueueDepth() {
+        return this.count;
+    }
+
+    /**
+     * Highest number of queued events since the last reset
+     *
+     * @return
+     */
+    public synchronized int getMaxQueueDepth() {
+        return this.maxDepth;
+    }
+
+    /**
+     * Number of events dropped because the queue was full
+     *
+     * @return
+     */
+    public synchronized int getDroppedCount() {
+        return this.dropped;
+    }
+
+    /**
+     * Number of events delivered to the listeners
+     *
+     * @return
+     */
+    public synchronized int getDispatchedCount() {
+        return this.dispatched;
+    }
+
+    public synchronized void resetStatistics() {
+        this.maxDepth = this.count;
+        this.dropped = 0;
+        this.dispatched = 0;
+    }
+
+    /**
+     * Queue CoAP downlink data
+     *
+     * @return false if the event was dropped
+     */
+    public synchronized boolean postCoapData(byte[] buffer, int offset, int length) {
+        Event ev = this.acquire(true);
+        if (ev == null)
+            return false;
+
+        ev.type = EVENT_COAP_DATA;
+        if (ev.data == null || ev.data.length < length)
+            ev.data = new byte[Math.max(length, 64)];
+
+        System.arraycopy(buffer, offset, ev.data, 0, length);
+        ev.length = length;
+
+        this.commit();
+        return true;
+    }
+
+    /**
+     * Queue UDP datagram
+     *
+     * @return false if the event was dropped
+     */
+    public synchronized boolean postUDPData(UDPDatagram datagram) {
+        Event ev = this.acquire(true);
+        if (ev == null)
+            return false;
+
+        ev.type = EVENT_UDP_DATA;
+        if (ev.datagram == null)
+            ev.datagram = new UDPDatagram(datagram.length);
+
+        ev.datagram.copyFrom(datagram);
+
+        this.commit();
+        return true;
+    }
+
+    /**
+     * Queue the result of an asynchronous CoAP uplink
+     */
+    @Override
+    public synchronized void onCoapSendResult(int seq, boolean sent) {
+        Event ev = this.acquire(false);
+        if (ev == null)
+            return;
+
+        ev.type = EVENT_COAP_SENT;
+        ev.seq = seq;
+        ev.sent = sent;
+
+        this.commit();
+    }
+
+    /**
+     * Queue the +NSOSTR result of a datagram
+     */
+    @Override
+    public synchronized void onUDPSendResult(int socketId, int seq, boolean sent) {
+        Event ev = this.acquire(false);
+        if (ev == null)
+            return;
+
+        ev.type = EVENT_UDP_SENT;
+        ev.socketId = socketId;
+        ev.seq = seq;
+        ev.sent = sent;
+
+        this.commit();
+    }
+
+    /**
+     * Queue a network state change
+     */
+    @Override
+    public synchronized void onNetworkStateChanged(int oldState, int newState) {
+        if (this.networkStateListener == null)
+            return;
+
+        Event ev = this.acquire(false);
+        if (ev == null)
+            return;
+
+        ev.type = EVENT_NETWORK_STATE;
+        ev.oldState = oldState;
+        ev.newState = newState;
+
+        this.commit();
+    }
+
+    /**
+     * Queue the completion of a command, the listener of the command is
+     * called in the dispatching thread
+     */
+    synchronized void postATResponse(ATResponse response) {
+        Event ev = this.acquire(false);
+        if (ev == null)
+            return;
+
+        ev.type = EVENT_AT_RESPONSE;
+        ev.response = response;
+
+        this.commit();
+    }
+
+    /**
+     * Free slot at the tail, must hold the lock
+     *
+     * @param data downlink data, which may be dropped by the policy
+     * @return null if the event is dropped
+     */
+    private Event acquire(boolean data) {
+        while (this.count == this.ring.length) {
+            if (!data) {
+                // a lost result would leave the application waiting for it,
+                // and waiting for room could deadlock with a listener waiting
+                // on the command this result completes
+                this.grow();
+                break;
+            }
+
+            if (this.policy != BLOCK) {
+                this.dropped++;
+                if (this.policy == DROP_NEWEST || !this.removeOldestData())
+                    return null;
+
+                break;
+            }
+
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                this.dropped++;
+                return null;
+            }
+        }
+
+        return this.ring[(this.head + this.count) % this.ring.length];
+    }
+
+    /**
+     * Remove the oldest queued downlink data, the events before it move up
+     *
+     * @return false if no data is queued
+     */
+    private boolean removeOldestData() {
+        int len = this.ring.length;
+        for (int i = 0; i < this.count; i++) {
+            int pos = (this.head + i) % len;
+            Event ev = this.ring[pos];
+            if (ev.type != EVENT_COAP_DATA && ev.type != EVENT_UDP_DATA)
+                continue;
+
+            for (int j = i; j > 0; j--) {
+                this.ring[(this.head + j) % len] = this.ring[(this.head + j - 1) % len];
+            }
+            this.ring[this.head] = ev;
+
+            this.head = (this.head + 1) % len;
+            this.count--;
+            return true;
+        }
+        return false;
+    }
+
+    private void grow() {
+        Event[] temp = new Event[this.ring.length * 2];
+        for (int i = 0; i < temp.length; i++) {
+            temp[i] = i < this.count ? this.ring[(this.head + i) % this.ring.length] : new Event();
+        }
+
+        this.ring = temp;
+        this.head = 0;
+    }
+
+    private void commit() {
+        this.count++;
+        if (this.count > this.maxDepth)
+            this.maxDepth = this.count;
+
+        this.notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (this.count == 0) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+
+                // take the head slot without copying
+                Event ev = this.ring[this.head];
+                this.ring[this.head] = this.current;
+                this.current = ev;
+
+                this.head = (this.head + 1) % this.ring.length;
+                this.count--;
+                this.dispatched++;
+                this.notifyAll();
+            }
+
+            long begin = System.currentTimeMillis();
+            try {
+                this.dispatch(this.current);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            this.current.response = null;
+
+            if (this.metrics != null)
+                this.metrics.recordDispatch(System.currentTimeMillis() - begin);
+        }
+    }
+
+    private void dispatch(Event ev) {
+        switch (ev.type) {
+            case EVENT_COAP_DATA:
+                if (this.rawDataListener != null) {
+                    this.rawDataListener.onCoapData(ev.data, 0, ev.length);
+                } else if (this.eventListener != null) {
+                    byte[] message = new byte[ev.length];
+                    System.arraycopy(ev.data, 0, message, 0, ev.length);
+                    this.eventListener.onCoapDataArrived(message);
+                }
+                break;
+
+            case EVENT_UDP_DATA:
+                if (this.rawDataListener != null) {
+                    this.rawDataListener.onUDPData(ev.datagram);
+                } else if (this.eventListener != null) {
+                    byte[] packet = new byte[ev.datagram.length];
+                    System.arraycopy(ev.datagram.data, ev.datagram.offset, packet, 0, packet.length);
+                    this.eventListener.onUDPDataArrived(packet);
+                }
+                break;
+
+            case EVENT_COAP_SENT:
+                if (this.coapSendListener != null)
+                    this.coapSendListener.onCoapSendResult(ev.seq, ev.sent);
+                break;
+
+            case EVENT_UDP_SENT:
+                if (this.udpSendListener != null)
+                    this.udpSendListener.onUDPSendResult(ev.socketId, ev.seq, ev.sent);
+                break;
+
+            case EVENT_NETWORK_STATE:
+                if (this.networkStateListener != null)
+                    this.networkStateListener.onNetworkStateChanged(ev.oldState, ev.newState);
+                break;
+
+            case EVENT_AT_RESPONSE:
+                ev.response.notifyListener();
+                break;
+        }
+    }
+}
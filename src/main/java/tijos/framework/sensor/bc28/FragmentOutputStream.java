@@ -0,0 +1,192 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream sending a large payload over UDP or CoAP in module sized
+ * chunks. Each chunk starts with a 4 byte header so that the server can put
+ * the payload together again:
+ * <pre>
+ * byte 0    stream id
+ * byte 1    flags, FLAG_FIRST / FLAG_LAST
+ * byte 2-3  chunk index, big endian
+ * </pre>
+ * Chunks are queued back-to-back without waiting for each other, up to the
+ * window size. close() sends the last chunk and waits until all chunks were
+ * accepted by the module. A stream has at most 65536 chunks, the chunk index
+ * does not wrap.
+ *
+ * @author lemon
+ */
+public class FragmentOutputStream extends OutputStream {
+
+    public static final int HEADER_SIZE = 4;
+
+    public static final int FLAG_FIRST = 0x01;
+    public static final int FLAG_LAST = 0x02;
+
+    // highest index of the 16 bit header field
+    private static final int MAX_INDEX = 0xFFFF;
+
+    private TiBC28 modem;
+
+    // -1 for CoAP
+    private int socketId;
+    private String remoteAddr;
+    private int remotePort;
+
+    private int streamId;
+
+    // header and data of the chunk being filled
+    private byte[] chunk;
+    private int chunkLen = HEADER_SIZE;
+    private int index = 0;
+
+    // chunks queued in the module
+    private ATResponse[] window;
+    private int head = 0;
+    private int count = 0;
+
+    private boolean closed = false;
+
+    /**
+     * @param modem      module
+     * @param socketId   UDP socket, -1 to send over CoAP
+     * @param remoteAddr remote IP for UDP
+     * @param remotePort remote port for UDP
+     * @param streamId   id in the chunk headers
+     * @param chunkSize  max bytes per command including the header
+     * @param window     max chunks queued at once
+     */
+    FragmentOutputStream(TiBC28 modem, int socketId, String remoteAddr, int remotePort, int streamId,
+                         int chunkSize, int window) {
+        this.modem = modem;
+        this.socketId = socketId;
+        this.remoteAddr = remoteAddr;
+        this.remotePort = remotePort;
+        this.streamId = streamId;
+        this.chunk = new byte[chunkSize];
+        this.window = new ATResponse[window];
+    }
+
+    public int getStreamId() {
+        return this.streamId;
+    }
+
+    /**
+     * Number of chunks queued so far
+     *
+     * @return
+     */
+    public int getChunkCount() {
+        return this.index;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.ensureOpen();
+        if (this.chunkLen == this.chunk.length)
+            this.sendChunk(false);
+
+        this.chunk[this.chunkLen++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.ensureOpen();
+        while (len > 0) {
+            if (this.chunkLen == this.chunk.length)
+                this.sendChunk(false);
+
+            int n = Math.min(len, this.chunk.length - this.chunkLen);
+            System.arraycopy(b, off, this.chunk, this.chunkLen, n);
+            this.chunkLen += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Send the buffered data as a chunk and wait for all queued chunks
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        this.ensureOpen();
+        if (this.chunkLen > HEADER_SIZE)
+            this.sendChunk(false);
+
+        this.drain();
+    }
+
+    /**
+     * Send the last chunk and wait for all queued chunks
+     *
+     * @throws IOException ATCommandException if a chunk was refused
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+
+        this.closed = true;
+        this.sendChunk(true);
+        this.drain();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (this.closed)
+            throw new IOException("Stream closed");
+    }
+
+    private void sendChunk(boolean last) throws IOException {
+        // a wrapped index would be put together in the wrong place by the server
+        if (this.index > MAX_INDEX)
+            throw new IOException("Too many chunks");
+
+        if (this.count == this.window.length)
+            this.awaitOldest();
+
+        int flags = 0;
+        if (this.index == 0)
+            flags |= FLAG_FIRST;
+        if (last)
+            flags |= FLAG_LAST;
+
+        this.chunk[0] = (byte) this.streamId;
+        this.chunk[1] = (byte) flags;
+        this.chunk[2] = (byte) (this.index >> 8);
+        this.chunk[3] = (byte) this.index;
+
+        // the chunk is hex encoded into the command frame, the buffer can be refilled at once
+        ATResponse resp;
+        if (this.socketId < 0) {
+            resp = this.modem.coapSendRawAsync(this.chunk, 0, this.chunkLen, null);
+        } else {
+            resp = this.modem.udpSendAsync(this.socketId, this.remoteAddr, this.remotePort, this.chunk, 0,
+                    this.chunkLen, null);
+        }
+
+        this.window[(this.head + this.count) % this.window.length] = resp;
+        this.count++;
+        this.index++;
+        this.chunkLen = HEADER_SIZE;
+    }
+
+    private void drain() throws IOException {
+        while (this.count > 0) {
+            this.awaitOldest();
+        }
+    }
+
+    private void awaitOldest() throws IOException {
+        ATResponse resp = this.window[this.head];
+        this.window[this.head] = null;
+        this.head = (this.head + 1) % this.window.length;
+        this.count--;
+
+        this.modem.await(resp);
+    }
+}
@@ -0,0 +1,131 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Table driven hex encoder/decoder working on caller supplied buffers, no
+ * object is allocated per byte
+ *
+ * @author lemon
+ */
+public class HexCodec {
+
+    private static final byte[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D',
+            'E', 'F'};
+
+    // value of an ASCII hex digit, -1 for other characters
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * Encode bytes to ASCII hex
+     *
+     * @param src    source bytes
+     * @param off    offset in source
+     * @param len    number of bytes to encode
+     * @param dst    destination, 2 * len bytes are written
+     * @param dstOff offset in destination
+     * @return offset in destination after the last hex digit
+     */
+    public static int encode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int v = src[i] & 0xFF;
+            dst[dstOff++] = DIGITS[v >> 4];
+            dst[dstOff++] = DIGITS[v & 0x0F];
+        }
+        return dstOff;
+    }
+
+    /**
+     * Encode an integer as big endian hex
+     *
+     * @param value  value, the low size bytes are encoded
+     * @param size   number of bytes, 1 - 4
+     * @param dst    destination, 2 * size bytes are written
+     * @param dstOff offset in destination
+     * @return offset in destination after the last hex digit
+     */
+    public static int encodeValue(int value, int size, byte[] dst, int dstOff) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            int v = (value >> shift) & 0xFF;
+            dst[dstOff++] = DIGITS[v >> 4];
+            dst[dstOff++] = DIGITS[v & 0x0F];
+        }
+        return dstOff;
+    }
+
+    /**
+     * Decode ASCII hex to bytes
+     *
+     * @param src    ASCII hex
+     * @param off    offset in source
+     * @param len    number of hex digits, must be even
+     * @param dst    destination, len / 2 bytes are written
+     * @param dstOff offset in destination
+     * @return number of bytes decoded, -1 if the source is not valid hex
+     */
+    public static int decode(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        if ((len & 1) != 0)
+            return -1;
+
+        int end = off + len;
+        int pos = dstOff;
+        for (int i = off; i < end; i += 2) {
+            int h = value(src[i]);
+            int l = value(src[i + 1]);
+            if (h < 0 || l < 0)
+                return -1;
+
+            dst[pos++] = (byte) ((h << 4) | l);
+        }
+        return pos - dstOff;
+    }
+
+    /**
+     * Decode hex string to bytes
+     *
+     * @param src    hex string
+     * @param off    offset in source
+     * @param len    number of hex digits, must be even
+     * @param dst    destination, len / 2 bytes are written
+     * @param dstOff offset in destination
+     * @return number of bytes decoded, -1 if the source is not valid hex
+     */
+    public static int decode(String src, int off, int len, byte[] dst, int dstOff) {
+        if ((len & 1) != 0)
+            return -1;
+
+        int end = off + len;
+        int pos = dstOff;
+        for (int i = off; i < end; i += 2) {
+            int h = value(src.charAt(i));
+            int l = value(src.charAt(i + 1));
+            if (h < 0 || l < 0)
+                return -1;
+
+            dst[pos++] = (byte) ((h << 4) | l);
+        }
+        return pos - dstOff;
+    }
+
+    private static int value(int c) {
+        if (c < 0 || c >= VALUES.length)
+            return -1;
+
+        return VALUES[c];
+    }
+}
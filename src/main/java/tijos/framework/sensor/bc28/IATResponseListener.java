@@ -0,0 +1,12 @@
+package tijos.framework.sensor.bc28;
+
+public interface IATResponseListener {
+
+    /**
+     * AT command completed with OK, ERROR, +CME ERROR or timeout
+     * For commands queued by the application it is called from the event
+     * dispatching thread, the UART reading goes on meanwhile.
+     */
+    void onATResponse(ATResponse response);
+
+}
@@ -0,0 +1,13 @@
+package tijos.framework.sensor.bc28;
+
+public interface ICoapSendListener {
+
+    /**
+     * Result of an uplink sent by coapSendAsync
+     *
+     * @param seq  sequence returned by coapSendAsync
+     * @param sent true - sent by the module, false - rejected or discarded
+     */
+    void onCoapSendResult(int seq, boolean sent);
+
+}
@@ -0,0 +1,13 @@
+package tijos.framework.sensor.bc28;
+
+public interface INetworkStateListener {
+
+    /**
+     * Network state changed, see NetworkStateManager.STATE_XXX
+     *
+     * @param oldState previous state
+     * @param newState current state
+     */
+    void onNetworkStateChanged(int oldState, int newState);
+
+}
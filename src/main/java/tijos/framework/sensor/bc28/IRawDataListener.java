@@ -0,0 +1,19 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Listener for downlink data without copying, buffers are reused by the
+ * driver and are only valid during the call
+ */
+public interface IRawDataListener {
+
+    /**
+     * Data arrived from the CDP server
+     */
+    void onCoapData(byte[] buffer, int offset, int length);
+
+    /**
+     * UDP datagram arrived
+     */
+    void onUDPData(UDPDatagram datagram);
+
+}
@@ -0,0 +1,14 @@
+package tijos.framework.sensor.bc28;
+
+public interface IUDPSendListener {
+
+    /**
+     * Result of a datagram sent by udpSendTracked, reported by +NSOSTR
+     *
+     * @param socketId socket of the datagram
+     * @param seq      sequence returned by udpSendTracked
+     * @param sent     true - sent over the air, false - rejected or failed
+     */
+    void onUDPSendResult(int socketId, int seq, boolean sent);
+
+}
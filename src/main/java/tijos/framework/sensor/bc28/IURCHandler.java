@@ -0,0 +1,25 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Handler of an unsolicited result code, registered by prefix in the
+ * URCDispatcher. It is called in the UART reading thread, the line buffer is
+ * reused by the driver and is only valid during the call.
+ *
+ * @author lemon
+ */
+public interface IURCHandler {
+
+    /**
+     * URC line received
+     *
+     * @param line line buffer
+     * @param off  offset of the first field after the prefix
+     * @param len  line length
+     * @return false if the line is not taken as URC, it is then handled as
+     * response of the command in flight
+     * @throws IOException
+     */
+    boolean onURC(byte[] line, int off, int len) throws IOException;
+}
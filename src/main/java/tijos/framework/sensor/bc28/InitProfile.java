@@ -0,0 +1,380 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Declarative bring-up of the module
+ * Each step is a query, the response line that means the setting is already
+ * in place, and the command that puts it in place. Settings the module does
+ * not keep over a restart have no query, their command is always sent as it
+ * costs no more than the query. A step may follow another one: when the
+ * command of that step had to be sent the query is skipped. The attach
+ * follows the radio, and so do the settings kept in the module when added
+ * after radioOn: a module whose radio was off is new or was powered up, the
+ * settings are written at once instead of queried first. After a watchdog
+ * reset, with the radio on, the settings kept in the module are only
+ * queried and the commands of the settings in place are not sent.
+ * The steps run in the calling thread, one command line after another, in
+ * the order they are added: reports first so that the +CEREG of the attach
+ * is seen, then radio and attach so that the attach goes on while the module
+ * is configured. Neighbouring steps answered at once that follow the same
+ * step share a line, "AT+CMD1;+CMD2" for their queries and another one for
+ * the commands still needed.
+ * The time of each query and command is kept for checking the cold start in
+ * the field.
+ *
+ * @author lemon
+ */
+public class InitProfile {
+
+    private static final int MAX_STEPS = 16;
+
+    // commands concatenated into one line at most
+    private static final int MAX_CONCATENATED = 4;
+
+    private String[] queries = new String[MAX_STEPS];
+    private String[] expected = new String[MAX_STEPS];
+    private String[] commands = new String[MAX_STEPS];
+    // step whose command means this setting is not in place, -1 if none
+    private int[] follows = new int[MAX_STEPS];
+    // query and command answered at once, sent in one line with the
+    // neighbours following the same step
+    private boolean[] concatenable = new boolean[MAX_STEPS];
+    private int count = 0;
+
+    // -1 until added
+    private int radioStep = -1;
+    private int registrationMode = -1;
+
+    // result of the last run, -1 if not sent
+    private int[] queryTimes = new int[MAX_STEPS];
+    private int[] commandTimes = new int[MAX_STEPS];
+    private long totalTime = 0;
+
+    /**
+     * Add a step
+     *
+     * @param query    query command, null to send the command every time
+     * @param expected start of the response line when the setting is in place
+     * @param command  command putting the setting in place
+     * @return this
+     */
+    public InitProfile add(String query, String expected, String command) {
+        return this.add(query, expected, command, -1);
+    }
+
+    private InitProfile add(String query, String expected, String command, int follows) {
+        if (this.count == MAX_STEPS)
+            throw new IllegalArgumentException("Too many steps");
+        if (query != null && expected == null)
+            throw new IllegalArgumentException("No expected response");
+
+        this.queries[this.count] = query;
+        this.expected[this.count] = expected;
+        this.commands[this.count] = command;
+        this.follows[this.count] = follows;
+
+        this.concatenable[this.count] = isPlain(command, false) && (query == null || isPlain(query, true));
+        this.count++;
+        return this;
+    }
+
+    /**
+     * Check if the command is answered at once, for a query also that the
+     * lines of the other commands in the same line are taken as its response
+     */
+    private static boolean isPlain(String cmd, boolean query) {
+        ATCommandDescriptor desc = ATCommandDescriptor.forType(BC28Metrics.commandType(cmd), query);
+        return !desc.isAsynchronous() && desc.getTimeout() <= ATCommandDescriptor.DEFAULT_TIMEOUT
+                && (!query || desc.getResponsePrefix() == null);
+    }
+
+    /**
+     * +CEREG reporting, off in a factory new module
+     *
+     * @param mode 1 - +CEREG:&lt;stat&gt; 2 - with location
+     * @return this
+     */
+    public InitProfile registrationReport(int mode) {
+        this.registrationMode = mode;
+        return this.add(null, null, "AT+CEREG=" + mode);
+    }
+
+    /**
+     * +CSCON reporting, not kept over restart
+     *
+     * @return this
+     */
+    public InitProfile connectionReport() {
+        return this.add(null, null, "AT+CSCON=1");
+    }
+
+    /**
+     * Connect to the network after restart, kept in the module
+     *
+     * @param auto
+     * @return this
+     */
+    public InitProfile autoConnect(boolean auto) {
+        String value = auto ? "AUTOCONNECT,TRUE" : "AUTOCONNECT,FALSE";
+        return this.add("AT+NCONFIG?", "+NCONFIG:" + value, "AT+NCONFIG=" + value, this.radioStep);
+    }
+
+    /**
+     * CDP server for CoAP, kept in the module
+     *
+     * @param ip
+     * @param port
+     * @return this
+     */
+    public InitProfile cdpServer(String ip, int port) {
+        String server = ip + "," + port;
+        return this.add("AT+NCDP?", "+NCDP:" + server, "AT+NCDP=" + server, this.radioStep);
+    }
+
+    /**
+     * +NSMI reports of CoAP uplinks, not kept over restart
+     *
+     * @return this
+     */
+    public InitProfile sendNotification() {
+        return this.add(null, null, "AT+NSMI=1");
+    }
+
+    /**
+     * +NNMI reports of CoAP downlinks, not kept over restart
+     *
+     * @return this
+     */
+    public InitProfile newMessageNotification() {
+        return this.add(null, null, "AT+NNMI=1");
+    }
+
+    /**
+     * Radio on, AT+CFUN=1 may take seconds. The attach and the settings kept
+     * in the module added after it are not queried if the radio was off
+     *
+     * @return this
+     */
+    public InitProfile radioOn() {
+        this.radioStep = this.count;
+        return this.add("AT+CFUN?", "+CFUN:1", "AT+CFUN=1");
+    }
+
+    /**
+     * Activate the network, registration completes in background. Not
+     * queried if the radio had to be turned on. After registrationReport the
+     * query is AT+CEREG?, which also reads the registration status, the
+     * module is only sent AT+CGATT=1 if not registered yet
+     *
+     * @return this
+     */
+    public InitProfile attach() {
+        if (this.registrationMode >= 0)
+            return this.add("AT+CEREG?", "+CEREG:" + this.registrationMode + ",1", "AT+CGATT=1", this.radioStep);
+
+        return this.add("AT+CGATT?", "+CGATT:1", "AT+CGATT=1", this.radioStep);
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Command of the step
+     *
+     * @param index
+     * @return
+     */
+    public String getCommand(int index) {
+        return this.commands[index];
+    }
+
+    /**
+     * Check if the step was already in place in the last run
+     *
+     * @param index
+     * @return
+     */
+    public boolean isSkipped(int index) {
+        return this.commandTimes[index] < 0;
+    }
+
+    /**
+     * Time in ms of the query of the step in the last run
+     *
+     * @return -1 if the step has no query
+     */
+    public int getQueryTime(int index) {
+        return this.queryTimes[index];
+    }
+
+    /**
+     * Time in ms of the command of the step in the last run
+     *
+     * @return -1 if the command was skipped
+     */
+    public int getCommandTime(int index) {
+        return this.commandTimes[index];
+    }
+
+    /**
+     * Time in ms of the last run
+     *
+     * @return
+     */
+    public long getTotalTime() {
+        return this.totalTime;
+    }
+
+    /**
+     * Run the steps on the module in the calling thread
+     *
+     * @param modem
+     * @throws IOException the first failed command, the other steps are
+     *                     still run
+     */
+    void run(TiBC28 modem) throws IOException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < this.count; i++) {
+            this.queryTimes[i] = -1;
+            this.commandTimes[i] = -1;
+        }
+
+        IOException failure = null;
+        int i = 0;
+        while (i < this.count) {
+            int end = i + 1;
+            if (this.concatenable[i]) {
+                while (end < this.count && end - i < MAX_CONCATENATED && this.concatenable[end]
+                        && this.follows[end] == this.follows[i])
+                    end++;
+            }
+
+            try {
+                if (end - i > 1)
+                    this.runConcatenated(modem, i, end);
+                else
+                    this.runStep(modem, i);
+            } catch (IOException ex) {
+                if (failure == null)
+                    failure = ex;
+            }
+            i = end;
+        }
+
+        this.totalTime = System.currentTimeMillis() - start;
+        if (failure != null)
+            throw failure;
+    }
+
+    private void runStep(TiBC28 modem, int i) throws IOException {
+        int follows = this.follows[i];
+        if (this.queries[i] != null && (follows < 0 || this.commandTimes[follows] < 0)) {
+            // a failed query only means the command is sent
+            ATResponse resp = execute(modem, this.queries[i]);
+            this.queryTimes[i] = resp.getLatency();
+            if (resp.getResult() == ATResponse.OK) {
+                modem.onInitQuery(resp);
+                if (resp.findLine(this.expected[i]) >= 0)
+                    return;
+            }
+        }
+
+        this.runCommand(modem, i);
+    }
+
+    private void runCommand(TiBC28 modem, int i) throws IOException {
+        ATResponse resp = execute(modem, this.commands[i]);
+        this.commandTimes[i] = Math.max(0, resp.getLatency());
+        resp.check();
+        modem.onInitCommand(resp);
+    }
+
+    /**
+     * Steps following the same step sent as "AT+CMD1;+CMD2": the queries in
+     * one line, then the commands of the settings not in place in one line.
+     * Each step gets the time of the line. If the command line fails the
+     * commands are sent one by one to find the failed one
+     */
+    private void runConcatenated(TiBC28 modem, int begin, int end) throws IOException {
+        int follows = this.follows[begin];
+        boolean query = follows < 0 || this.commandTimes[follows] < 0;
+
+        // steps whose command is needed
+        boolean[] send = new boolean[end - begin];
+        String line = null;
+        for (int i = begin; i < end; i++) {
+            send[i - begin] = true;
+            if (query && this.queries[i] != null)
+                line = concatenate(line, this.queries[i]);
+        }
+
+        if (line != null) {
+            ATResponse resp = execute(modem, line);
+            for (int i = begin; i < end; i++) {
+                if (!query || this.queries[i] == null)
+                    continue;
+
+                this.queryTimes[i] = resp.getLatency();
+                // a failed query only means the command is sent
+                if (resp.getResult() == ATResponse.OK && resp.findLine(this.expected[i]) >= 0)
+                    send[i - begin] = false;
+            }
+        }
+
+        line = null;
+        int needed = 0;
+        for (int i = begin; i < end; i++) {
+            if (send[i - begin]) {
+                line = concatenate(line, this.commands[i]);
+                needed++;
+            }
+        }
+        if (needed == 0)
+            return;
+
+        if (needed > 1) {
+            ATResponse resp = execute(modem, line);
+            if (resp.getResult() == ATResponse.OK) {
+                for (int i = begin; i < end; i++) {
+                    if (send[i - begin])
+                        this.commandTimes[i] = Math.max(0, resp.getLatency());
+                }
+                return;
+            }
+        }
+
+        IOException failure = null;
+        for (int i = begin; i < end; i++) {
+            if (!send[i - begin])
+                continue;
+
+            try {
+                this.runCommand(modem, i);
+            } catch (IOException ex) {
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private static String concatenate(String line, String cmd) {
+        return line == null ? cmd : line + ";" + cmd.substring(2);
+    }
+
+    /**
+     * Send the command and wait for its result, each command has its own
+     * timeout
+     */
+    private static ATResponse execute(TiBC28 modem, String cmd) throws IOException {
+        ATResponse resp = modem.submitCommand(cmd, null);
+        if (!resp.waitFor())
+            modem.cancelCommand(resp);
+
+        return resp;
+    }
+}
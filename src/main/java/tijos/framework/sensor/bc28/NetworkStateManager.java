@@ -0,0 +1,214 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Network attach state machine driven by +CEREG and +CSCON reports
+ * The state follows RF on, attached, registered and RRC connected from the
+ * URCs of the module, so that the application can wait for registration
+ * instead of polling AT+CFUN? and AT+CGATT?.
+ *
+ * @author lemon
+ */
+public class NetworkStateManager {
+
+    /**
+     * Network states, each one includes the ones before
+     */
+    public static final int STATE_OFF = 0;
+    public static final int STATE_RF_ON = 1;
+    public static final int STATE_ATTACHED = 2;
+    public static final int STATE_REGISTERED = 3;
+    public static final int STATE_CONNECTED = 4;
+
+    private TiBC28 modem;
+
+    private boolean rfOn = false;
+    private boolean attached = false;
+    private int regStat = 0;
+    private boolean rrcConnected = false;
+
+    private int state = STATE_OFF;
+
+    // state changes are delivered on the dispatcher thread
+    private EventDispatcher dispatcher;
+
+    NetworkStateManager(TiBC28 modem, EventDispatcher dispatcher) {
+        this.modem = modem;
+        this.dispatcher = dispatcher;
+    }
+
+    public void setStateListener(INetworkStateListener listener) {
+        this.dispatcher.setNetworkStateListener(listener);
+    }
+
+    /**
+     * Current network state
+     *
+     * @return STATE_XXX
+     */
+    public synchronized int getState() {
+        return this.state;
+    }
+
+    /**
+     * Last registration status from +CEREG
+     *
+     * @return 0 not registered, 1 registered, 2 searching, 3 denied, 4 unknown,
+     * 5 roaming
+     */
+    public synchronized int getRegistrationStatus() {
+        return this.regStat;
+    }
+
+    /**
+     * Turn on +CEREG and +CSCON reporting and read the current state once
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        this.modem.enableRegistrationReport(2);
+        this.modem.enableConnectionReport(true);
+
+        this.onRadio(this.modem.isMTOn());
+        if (this.rfOn) {
+            this.onAttach(this.modem.isNetworkActived());
+            this.modem.isNetworkRegistred();
+            this.modem.getNetworkStatus();
+        }
+    }
+
+    /**
+     * Start reporting and bring the link up, the radio is turned on and the
+     * network is activated if needed. Registration completes in background,
+     * use awaitRegistered to wait for it
+     *
+     * @throws IOException
+     */
+    public void bringUp() throws IOException {
+        this.start();
+
+        if (!this.rfOn) {
+            this.modem.turnOnMT();
+        }
+
+        if (!this.attached) {
+            this.modem.activeNetwork();
+        }
+    }
+
+    /**
+     * Wait until the module is registered to the network
+     *
+     * @param timeout max time in ms
+     * @return true if registered
+     */
+    public synchronized boolean awaitRegistered(long timeout) {
+        return this.awaitState(STATE_REGISTERED, timeout);
+    }
+
+    /**
+     * Wait until the network state reaches the given state
+     *
+     * @param target  STATE_XXX
+     * @param timeout max time in ms
+     * @return true if the state is reached
+     */
+    public synchronized boolean awaitState(int target, long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (this.state < target) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+
+            try {
+                this.wait(left);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void onRadio(boolean on) {
+        synchronized (this) {
+            this.rfOn = on;
+            if (!on) {
+                this.attached = false;
+                this.regStat = 0;
+                this.rrcConnected = false;
+            }
+        }
+        this.update();
+    }
+
+    void onAttach(boolean attached) {
+        synchronized (this) {
+            this.attached = attached;
+            if (attached)
+                this.rfOn = true;
+        }
+        this.update();
+    }
+
+    void onRegistration(int stat) {
+        synchronized (this) {
+            this.regStat = stat;
+            if (stat == 1 || stat == 5) {
+                this.rfOn = true;
+                this.attached = true;
+            } else {
+                this.rrcConnected = false;
+            }
+        }
+        this.update();
+    }
+
+    void onConnection(boolean connected) {
+        synchronized (this) {
+            this.rrcConnected = connected;
+        }
+        this.update();
+    }
+
+    /**
+     * Module restarted, the state is read again by start
+     */
+    void onReboot() {
+        synchronized (this) {
+            this.rfOn = false;
+            this.attached = false;
+            this.regStat = 0;
+            this.rrcConnected = false;
+        }
+        this.update();
+    }
+
+    private void update() {
+        int oldState;
+        int newState;
+        synchronized (this) {
+            boolean registered = this.regStat == 1 || this.regStat == 5;
+
+            if (registered && this.rrcConnected)
+                newState = STATE_CONNECTED;
+            else if (registered)
+                newState = STATE_REGISTERED;
+            else if (this.attached)
+                newState = STATE_ATTACHED;
+            else if (this.rfOn)
+                newState = STATE_RF_ON;
+            else
+                newState = STATE_OFF;
+
+            oldState = this.state;
+            if (oldState == newState)
+                return;
+
+            this.state = newState;
+            this.notifyAll();
+        }
+
+        this.dispatcher.onNetworkStateChanged(oldState, newState);
+    }
+}
@@ -0,0 +1,82 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Encoder of the PSM and eDRX timer values used by AT+CPSMS and AT+CEDRXS
+ *
+ * @author lemon
+ */
+public class PSMTimer {
+
+    // GPRS Timer 3 units (T3412 extended) in seconds and their bits
+    private static final int[] TAU_UNITS = {2, 30, 60, 600, 3600, 36000, 1152000};
+    private static final int[] TAU_BITS = {0x60, 0x80, 0xA0, 0x00, 0x20, 0x40, 0xC0};
+
+    // GPRS Timer 2 units (T3324) in seconds and their bits
+    private static final int[] ACTIVE_UNITS = {2, 60, 360};
+    private static final int[] ACTIVE_BITS = {0x00, 0x20, 0x40};
+
+    // eDRX cycles of NB-IoT in ms and their values
+    private static final int[] EDRX_CYCLES = {20480, 40960, 81920, 163840, 327680, 655360, 1310720, 2621440,
+            5242880, 10485760};
+    private static final int[] EDRX_VALUES = {0x2, 0x3, 0x5, 0x9, 0xA, 0xB, 0xC, 0xD, 0xE, 0xF};
+
+    private PSMTimer() {
+    }
+
+    /**
+     * Periodic TAU timer T3412
+     *
+     * @param seconds requested period, rounded up to the unit of the timer
+     * @return 8 bits string, e.g. "00100001" for 1 hour
+     */
+    public static String encodeTAU(int seconds) {
+        return encode(seconds, TAU_UNITS, TAU_BITS);
+    }
+
+    /**
+     * Active timer T3324, the time the module stays reachable after the
+     * connection is released before entering PSM
+     *
+     * @param seconds requested time, rounded up to the unit of the timer
+     * @return 8 bits string, e.g. "00000101" for 10 seconds
+     */
+    public static String encodeActiveTime(int seconds) {
+        return encode(seconds, ACTIVE_UNITS, ACTIVE_BITS);
+    }
+
+    /**
+     * eDRX cycle for NB-IoT
+     *
+     * @param ms requested cycle, the shortest cycle not below it is used
+     * @return 4 bits string, e.g. "0101" for 81.92 seconds
+     */
+    public static String encodeEDRX(int ms) {
+        int value = EDRX_VALUES[EDRX_VALUES.length - 1];
+        for (int i = 0; i < EDRX_CYCLES.length; i++) {
+            if (EDRX_CYCLES[i] >= ms) {
+                value = EDRX_VALUES[i];
+                break;
+            }
+        }
+        return bits(value, 4);
+    }
+
+    private static String encode(int seconds, int[] units, int[] unitBits) {
+        for (int i = 0; i < units.length; i++) {
+            int value = (seconds + units[i] - 1) / units[i];
+            if (value <= 31)
+                return bits(unitBits[i] | value, 8);
+        }
+
+        // longest period
+        return bits(unitBits[units.length - 1] | 31, 8);
+    }
+
+    private static String bits(int value, int count) {
+        char[] c = new char[count];
+        for (int i = 0; i < count; i++) {
+            c[i] = ((value >> (count - 1 - i)) & 1) != 0 ? '1' : '0';
+        }
+        return new String(c);
+    }
+}
@@ -0,0 +1,99 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Field values of a message of a PayloadSchema, fields are addressed by the
+ * order in which they were added to the schema. The holder is reused for
+ * every message, setting and reading fields allocates nothing.
+ *
+ * @author lemon
+ */
+public class PayloadMessage {
+
+    private PayloadSchema schema;
+
+    // numeric fields, FLOAT as raw bits
+    int[] values;
+
+    // BYTES and VARBYTES fields
+    byte[][] data;
+    int[] lengths;
+
+    PayloadMessage(PayloadSchema schema) {
+        this.schema = schema;
+
+        int count = schema.getFieldCount();
+        this.values = new int[count];
+        this.data = new byte[count][];
+        this.lengths = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            int type = schema.getFieldType(i);
+            if (type == PayloadSchema.BYTES || type == PayloadSchema.VARBYTES)
+                this.data[i] = new byte[schema.getFieldLength(i)];
+            if (type == PayloadSchema.BYTES)
+                this.lengths[i] = schema.getFieldLength(i);
+        }
+    }
+
+    public PayloadSchema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * Set a numeric field, the value is truncated to the field size
+     *
+     * @return this
+     */
+    public PayloadMessage setInt(int index, int value) {
+        this.values[index] = value;
+        return this;
+    }
+
+    public PayloadMessage setFloat(int index, float value) {
+        this.values[index] = Float.floatToIntBits(value);
+        return this;
+    }
+
+    /**
+     * Copy a byte field, BYTES fields are padded with 0
+     *
+     * @return this
+     */
+    public PayloadMessage setBytes(int index, byte[] src, int off, int len) {
+        byte[] dst = this.data[index];
+        if (len > dst.length)
+            throw new IllegalArgumentException("Field too long");
+
+        System.arraycopy(src, off, dst, 0, len);
+        if (this.schema.getFieldType(index) == PayloadSchema.BYTES) {
+            for (int i = len; i < dst.length; i++) {
+                dst[i] = 0;
+            }
+        } else {
+            this.lengths[index] = len;
+        }
+        return this;
+    }
+
+    public int getInt(int index) {
+        return this.values[index];
+    }
+
+    public float getFloat(int index) {
+        return Float.intBitsToFloat(this.values[index]);
+    }
+
+    /**
+     * Content of a byte field, valid up to getLength
+     *
+     * @param index
+     * @return
+     */
+    public byte[] getBytes(int index) {
+        return this.data[index];
+    }
+
+    public int getLength(int index) {
+        return this.lengths[index];
+    }
+}
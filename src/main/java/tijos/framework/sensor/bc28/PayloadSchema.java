@@ -0,0 +1,308 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Binary layout of a platform profile message, e.g. the codec plugin of the
+ * OC platform: one byte message id followed by typed fields in big endian.
+ * The schema is built once, messages are then encoded from and decoded into
+ * reusable PayloadMessage holders without allocation. The first newMessage
+ * freezes the schema, fields can no longer be added.
+ *
+ * <pre>
+ * PayloadSchema report = new PayloadSchema(0x00).add(PayloadSchema.UINT8).add(PayloadSchema.INT16);
+ * PayloadMessage msg = report.newMessage();
+ * msg.setInt(0, battery).setInt(1, temperature);
+ * bc28.coapSendAsync(msg, TiBC28.RAI_NONE);
+ * </pre>
+ *
+ * @author lemon
+ */
+public class PayloadSchema {
+
+    /**
+     * Field types
+     */
+    public static final int UINT8 = 0;
+    public static final int INT8 = 1;
+    public static final int UINT16 = 2;
+    public static final int INT16 = 3;
+    public static final int INT32 = 4;
+    public static final int FLOAT = 5;
+    // fixed number of bytes
+    public static final int BYTES = 6;
+    // up to a max number of bytes, preceded by a 1 byte length, 2 bytes if the max is above 255
+    public static final int VARBYTES = 7;
+
+    private static final int[] SIZES = {1, 1, 2, 2, 4, 4};
+
+    private int messageId;
+
+    private int[] types = new int[4];
+    // byte count of BYTES, max byte count of VARBYTES
+    private int[] lengths = new int[4];
+    private int count = 0;
+
+    private int maxSize = 1;
+
+    // messages are sized for the fields, no field is added after the first one
+    private boolean frozen = false;
+
+    /**
+     * @param messageId first byte of each message, -1 for messages without id
+     */
+    public PayloadSchema(int messageId) {
+        this.messageId = messageId;
+        if (messageId < 0)
+            this.maxSize = 0;
+    }
+
+    /**
+     * Append a numeric field
+     *
+     * @param type UINT8, INT8, UINT16, INT16, INT32 or FLOAT
+     * @return this
+     */
+    public PayloadSchema add(int type) {
+        if (type < UINT8 || type > FLOAT)
+            throw new IllegalArgumentException("Wrong field type");
+
+        return this.add(type, SIZES[type], SIZES[type]);
+    }
+
+    /**
+     * Append a byte field
+     *
+     * @param type   BYTES or VARBYTES
+     * @param length byte count of BYTES, max byte count of VARBYTES
+     * @return this
+     */
+    public PayloadSchema add(int type, int length) {
+        if (type < BYTES)
+            return this.add(type);
+
+        if (type == BYTES)
+            return this.add(BYTES, length, length);
+        if (type == VARBYTES)
+            return this.add(VARBYTES, length, prefixSize(length) + length);
+
+        throw new IllegalArgumentException("Wrong field type");
+    }
+
+    private PayloadSchema add(int type, int length, int size) {
+        if (this.frozen)
+            throw new IllegalStateException("Schema in use");
+        if (length <= 0 || length > 0xFFFF)
+            throw new IllegalArgumentException("Wrong field length");
+
+        if (this.count == this.types.length) {
+            this.types = grow(this.types);
+            this.lengths = grow(this.lengths);
+        }
+
+        this.types[this.count] = type;
+        this.lengths[this.count] = length;
+        this.count++;
+        this.maxSize += size;
+        return this;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] temp = new int[a.length * 2];
+        System.arraycopy(a, 0, temp, 0, a.length);
+        return temp;
+    }
+
+    private static int prefixSize(int maxLength) {
+        return maxLength > 0xFF ? 2 : 1;
+    }
+
+    /**
+     * Holder for the fields of a message, the schema can no longer be
+     * changed afterwards
+     *
+     * @return
+     */
+    public PayloadMessage newMessage() {
+        this.frozen = true;
+        return new PayloadMessage(this);
+    }
+
+    public int getMessageId() {
+        return this.messageId;
+    }
+
+    public int getFieldCount() {
+        return this.count;
+    }
+
+    public int getFieldType(int index) {
+        return this.types[index];
+    }
+
+    /**
+     * Byte count of BYTES, max byte count of VARBYTES, size of numeric fields
+     *
+     * @param index
+     * @return
+     */
+    public int getFieldLength(int index) {
+        return this.lengths[index];
+    }
+
+    /**
+     * Size in bytes of the longest message
+     *
+     * @return
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Size in bytes of the encoded message
+     *
+     * @param msg
+     * @return
+     */
+    public int encodedLength(PayloadMessage msg) {
+        int size = this.messageId < 0 ? 0 : 1;
+        for (int i = 0; i < this.count; i++) {
+            if (this.types[i] == VARBYTES)
+                size += prefixSize(this.lengths[i]) + msg.lengths[i];
+            else
+                size += this.lengths[i];
+        }
+        return size;
+    }
+
+    /**
+     * Encode the message into a byte array
+     *
+     * @param msg fields to encode
+     * @param dst destination, at least encodedLength bytes from off
+     * @param off offset in destination
+     * @return offset after the message
+     */
+    public int encode(PayloadMessage msg, byte[] dst, int off) {
+        if (this.messageId >= 0)
+            dst[off++] = (byte) this.messageId;
+
+        for (int i = 0; i < this.count; i++) {
+            int type = this.types[i];
+            if (type < BYTES) {
+                off = putInt(dst, off, msg.values[i], this.lengths[i]);
+                continue;
+            }
+
+            int len = this.lengths[i];
+            if (type == VARBYTES) {
+                len = msg.lengths[i];
+                off = putInt(dst, off, len, prefixSize(this.lengths[i]));
+            }
+            System.arraycopy(msg.data[i], 0, dst, off, len);
+            off += len;
+        }
+        return off;
+    }
+
+    /**
+     * Encode the message as hex straight into an AT command frame
+     *
+     * @param msg   fields to encode
+     * @param frame frame being built
+     */
+    public void encodeHex(PayloadMessage msg, ATFrameBuilder frame) {
+        if (this.messageId >= 0)
+            frame.appendHexValue(this.messageId, 1);
+
+        for (int i = 0; i < this.count; i++) {
+            int type = this.types[i];
+            if (type < BYTES) {
+                frame.appendHexValue(msg.values[i], this.lengths[i]);
+                continue;
+            }
+
+            int len = this.lengths[i];
+            if (type == VARBYTES) {
+                len = msg.lengths[i];
+                frame.appendHexValue(len, prefixSize(this.lengths[i]));
+            }
+            frame.appendHex(msg.data[i], 0, len);
+        }
+    }
+
+    /**
+     * Check if the message has the id of this schema
+     *
+     * @param src received message
+     * @param off offset of the message
+     * @param len length of the message
+     * @return
+     */
+    public boolean matches(byte[] src, int off, int len) {
+        return this.messageId < 0 || (len > 0 && (src[off] & 0xFF) == this.messageId);
+    }
+
+    /**
+     * Decode a received message, e.g. a +NNMI downlink from IRawDataListener
+     *
+     * @param src received message
+     * @param off offset of the message
+     * @param len length of the message
+     * @param msg receives the fields
+     * @return true if decoded, false if the id does not match or the message is too short
+     */
+    public boolean decode(byte[] src, int off, int len, PayloadMessage msg) {
+        if (!this.matches(src, off, len))
+            return false;
+
+        int end = off + len;
+        if (this.messageId >= 0)
+            off++;
+
+        for (int i = 0; i < this.count; i++) {
+            int type = this.types[i];
+            int size = type == VARBYTES ? prefixSize(this.lengths[i]) : this.lengths[i];
+            if (off + size > end)
+                return false;
+
+            if (type < BYTES) {
+                msg.values[i] = getInt(src, off, size, type);
+                off += size;
+                continue;
+            }
+
+            int n = size;
+            if (type == VARBYTES) {
+                n = getInt(src, off, size, UINT16);
+                off += size;
+                if (n > this.lengths[i] || off + n > end)
+                    return false;
+            }
+            System.arraycopy(src, off, msg.data[i], 0, n);
+            msg.lengths[i] = n;
+            off += n;
+        }
+        return true;
+    }
+
+    private static int putInt(byte[] dst, int off, int value, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            dst[off++] = (byte) (value >> shift);
+        }
+        return off;
+    }
+
+    private static int getInt(byte[] src, int off, int size, int type) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (src[off + i] & 0xFF);
+        }
+
+        // sign extension of the short signed types
+        if (type == INT8)
+            return (byte) value;
+        if (type == INT16)
+            return (short) value;
+        return value;
+    }
+}
@@ -0,0 +1,190 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Cache of static and slowly changing module queries
+ * Each entry has its own time to live, the entries are updated by URCs and
+ * cleared when the radio is turned off or the module reboots.
+ *
+ * @author lemon
+ */
+public class ResponseCache {
+
+    /**
+     * Cached queries
+     */
+    public static final int IMEI = 0;
+    public static final int IMSI = 1;
+    public static final int IP_ADDRESS = 2;
+    public static final int RSSI = 3;
+    public static final int CEREG = 4;
+    public static final int CSCON = 5;
+
+    private static final int COUNT = 6;
+
+    /**
+     * Time to live: valid until cleared
+     */
+    public static final int TTL_SESSION = -1;
+    /**
+     * Time to live: never cached
+     */
+    public static final int TTL_DISABLED = 0;
+
+    private String[] strings = new String[COUNT];
+    private int[] ints = new int[COUNT];
+    private long[] updateTime = new long[COUNT];
+    private boolean[] valid = new boolean[COUNT];
+    private int[] ttl = new int[COUNT];
+
+    // statistics
+    private int[] hits = new int[COUNT];
+    private int[] misses = new int[COUNT];
+    private long[] missTime = new long[COUNT];
+
+    public ResponseCache() {
+        this.ttl[IMEI] = TTL_SESSION;
+        this.ttl[IMSI] = TTL_SESSION;
+        this.ttl[IP_ADDRESS] = 60000;
+        this.ttl[RSSI] = 5000;
+        this.ttl[CEREG] = 10000;
+        this.ttl[CSCON] = 5000;
+    }
+
+    /**
+     * Set time to live of an entry
+     *
+     * @param key entry
+     * @param ttl time in ms, TTL_SESSION or TTL_DISABLED
+     */
+    public synchronized void setTTL(int key, int ttl) {
+        this.ttl[key] = ttl;
+        if (ttl == TTL_DISABLED)
+            this.valid[key] = false;
+    }
+
+    public synchronized int getTTL(int key) {
+        return this.ttl[key];
+    }
+
+    /**
+     * Check if the entry can be used, counts a hit or a miss
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean lookup(int key) {
+        if (this.isValid(key)) {
+            this.hits[key]++;
+            return true;
+        }
+
+        this.misses[key]++;
+        return false;
+    }
+
+    /**
+     * Check if the entry can be used without counting a hit or a miss
+     *
+     * @param key
+     * @return
+     */
+    public synchronized boolean contains(int key) {
+        return this.isValid(key);
+    }
+
+    public synchronized String getString(int key) {
+        return this.strings[key];
+    }
+
+    public synchronized int getInt(int key) {
+        return this.ints[key];
+    }
+
+    public synchronized void putString(int key, String value) {
+        this.strings[key] = value;
+        this.update(key);
+    }
+
+    public synchronized void putInt(int key, int value) {
+        this.ints[key] = value;
+        this.update(key);
+    }
+
+    /**
+     * Time spent on the UART for a missed entry
+     *
+     * @param key
+     * @param time round-trip time in ms
+     */
+    public synchronized void recordMissTime(int key, long time) {
+        this.missTime[key] += time;
+    }
+
+    public synchronized void invalidate(int key) {
+        this.valid[key] = false;
+    }
+
+    /**
+     * Clear the entries depending on the network, IMEI and IMSI are kept
+     */
+    public synchronized void invalidateNetwork() {
+        this.valid[IP_ADDRESS] = false;
+        this.valid[RSSI] = false;
+        this.valid[CEREG] = false;
+        this.valid[CSCON] = false;
+    }
+
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < COUNT; i++) {
+            this.valid[i] = false;
+        }
+    }
+
+    public synchronized int getHits(int key) {
+        return this.hits[key];
+    }
+
+    public synchronized int getMisses(int key) {
+        return this.misses[key];
+    }
+
+    /**
+     * Estimated UART time saved by the hits of an entry
+     *
+     * @param key
+     * @return time in ms
+     */
+    public synchronized long getSavedTime(int key) {
+        if (this.misses[key] == 0)
+            return 0;
+
+        return this.missTime[key] * this.hits[key] / this.misses[key];
+    }
+
+    public synchronized void resetStatistics() {
+        for (int i = 0; i < COUNT; i++) {
+            this.hits[i] = 0;
+            this.misses[i] = 0;
+            this.missTime[i] = 0;
+        }
+    }
+
+    private boolean isValid(int key) {
+        if (!this.valid[key])
+            return false;
+
+        int t = this.ttl[key];
+        if (t == TTL_SESSION)
+            return true;
+
+        return System.currentTimeMillis() - this.updateTime[key] < t;
+    }
+
+    private void update(int key) {
+        if (this.ttl[key] == TTL_DISABLED)
+            return;
+
+        this.updateTime[key] = System.currentTimeMillis();
+        this.valid[key] = true;
+    }
+}
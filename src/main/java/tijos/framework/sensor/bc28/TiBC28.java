@@ -1,6 +1,5 @@
 package tijos.framework.sensor.bc28;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,8 +7,6 @@ import java.io.OutputStream;
 import java.util.Date;
 
 import tijos.framework.devicecenter.TiUART;
-import tijos.framework.util.Delay;
-import tijos.framework.util.Formatter;
 
 /**
  * Quectel BC95/BC28 NB-IOT module driver for TiJOS
@@ -18,18 +15,98 @@ import tijos.framework.util.Formatter;
  */
 public class TiBC28 extends Thread {
 
+    /**
+     * 释放辅助指示 (Release Assistance Indication), 无指示, 连接保持到网络不活动定时器超时
+     */
+    public static final int RAI_NONE = 0;
+    /**
+     * 释放辅助指示, 本次上行发送后立即释放连接
+     */
+    public static final int RAI_RELEASE = 1;
+    /**
+     * 释放辅助指示, 收到本次上行的下行回复后释放连接
+     */
+    public static final int RAI_RELEASE_AFTER_REPLY = 2;
+
     // IO stream for UART
     InputStream input;
     OutputStream output;
 
     TiUART uart;
 
+    // CR/LF framing of the received bytes
+    ATLineReader reader;
+
     // Keep the UART read thread running
     private boolean keeprunning = true;
 
-    private ATResponse atResp = new ATResponse();
+    // pending AT commands, written one after another
+    private ATCommandQueue commandQueue;
+
+    // reusable frames of the queued commands, allocated on first use
+    private ATFrameBuilder[] framePool = new ATFrameBuilder[16];
+
+    // delivers data and send results to the application listeners
+    private EventDispatcher dispatcher = new EventDispatcher(16);
+
+    private static final String URC_NNMI = "+NNMI:";
+    private static final String URC_NSONMI = "+NSONMI:";
+
+    // routes the URC lines to their handlers by prefix
+    private URCDispatcher urcDispatcher = new URCDispatcher();
+
+    private static final byte[] RESULT_OK = "OK".getBytes();
+    private static final byte[] RESULT_ERROR = "ERROR".getBytes();
+    private static final byte[] RESULT_CME_ERROR = "+CME ERROR:".getBytes();
+
+    // field parser for the received lines
+    private URCParser parser = new URCParser();
+
+    // attach state from +CEREG/+CSCON
+    private NetworkStateManager networkState;
+
+    // cached module queries
+    private ResponseCache cache = new ResponseCache();
 
-    private IDeviceEventListener eventListener;
+    // command latency, serial I/O and URC counters
+    private BC28Metrics metrics = new BC28Metrics();
+
+    // print every line from the module
+    private boolean debug = false;
+
+    // CoAP uplinks waiting for +NSMI, the untracked ones too
+    private CoapUplinkTracker coapTracker = new CoapUplinkTracker(32);
+    // sequence and queueing of a CoAP uplink, never taken by the reading thread
+    private final Object coapLock = new Object();
+
+    // UDP datagrams sent by udpSendTracked waiting for +NSOSTR
+    private UDPSendTracker udpTracker = new UDPSendTracker(16);
+
+    // AT+NQMGS is sent after this number of asynchronous uplinks
+    private int coapReconcileInterval = 10;
+    private int coapSinceReconcile = 0;
+
+    // max payload of a datagram read by AT+NSORF
+    static final int MAX_DATAGRAM_SIZE = 512;
+
+    // sockets opened by openDatagramSocket, indexed by socket id
+    private BC28DatagramSocket[] sockets = new BC28DatagramSocket[7];
+
+    // max AT+NSORF queued at once per socket while draining the module
+    private int receiveBatch = 1;
+
+    // drain state of sockets created by createUDPSocket, indexed by socket id
+    private int[] udpReads = new int[7];
+    private boolean[] udpPending = new boolean[7];
+    private UDPReadListener[] udpReadListeners = new UDPReadListener[7];
+
+    // reusable downlink buffers
+    private UDPDatagram datagram = new UDPDatagram(MAX_DATAGRAM_SIZE);
+
+    // chunks of a fragmented stream queued at once
+    private static final int STREAM_WINDOW = 4;
+    private int nextStreamId = 0;
+    private byte[] coapBuffer = new byte[512];
 
     /**
      * Initialize IO stream for UART
@@ -37,71 +114,364 @@ public class TiBC28 extends Thread {
      * @param uart TiUART object
      */
     public TiBC28(TiUART uart) {
+        this(uart, true);
+    }
+
+    /**
+     * @param uart      TiUART object
+     * @param autoStart start the UART reading thread, false when the module
+     *                  is polled by BC28Pool
+     */
+    TiBC28(TiUART uart, boolean autoStart) {
+        this(new TiUartInputStream(uart), new TiUartOutputStream(uart), autoStart);
         this.uart = uart;
-        this.input = new BufferedInputStream(new TiUartInputStream(uart), 256);
-        this.output = new TiUartOutputStream(uart);
+    }
+
+    /**
+     * Initialize with IO streams of the module, e.g. a simulated module for
+     * testing on host
+     * read(byte[], int, int) of the input stream should return 0 when no data
+     * arrived within a short timeout, so that command timeouts are checked
+     *
+     * @param input  stream from the module
+     * @param output stream to the module
+     */
+    public TiBC28(InputStream input, OutputStream output) {
+        this(input, output, true);
+    }
 
-        this.setDaemon(true);
-        this.start();
+    /**
+     * @param input     stream from the module
+     * @param output    stream to the module
+     * @param autoStart start the UART reading thread, false when the module
+     *                  is polled by BC28Pool
+     */
+    TiBC28(InputStream input, OutputStream output, boolean autoStart) {
+        this.input = input;
+        this.output = output;
+        this.reader = new ATLineReader(this.input, 256);
+        this.commandQueue = new ATCommandQueue(this.output, 16);
+        this.commandQueue.setMetrics(this.metrics);
+        this.dispatcher.setMetrics(this.metrics);
+        this.urcDispatcher.setMetrics(this.metrics);
+
+        this.registerURC(URC_NNMI, BC28Metrics.URC_NNMI); // new coap message arrived
+        this.registerURC(URC_NSONMI, BC28Metrics.URC_NSONMI); // UDP
+        this.registerURC("+NSMI:", BC28Metrics.URC_NSMI); // response for the request
+        this.registerURC("+NSOSTR:", BC28Metrics.URC_NSOSTR); // datagram went over the air
+        this.registerURC("+NSOCLI:", BC28Metrics.URC_NSOCLI); // socket closed by the module
+        this.registerURC("+CEREG:", BC28Metrics.URC_CEREG);
+        this.registerURC("+CSCON:", BC28Metrics.URC_CSCON);
+        this.registerURC("+NPING:", BC28Metrics.URC_NPING);
+        this.registerURC("+NPINGERR:", BC28Metrics.URC_NPING);
+        this.registerURC("REBOOT_", BC28Metrics.URC_REBOOT); // module restarted
+
+        this.coapTracker.setListener(this.dispatcher);
+        this.udpTracker.setListener(this.dispatcher);
+        this.networkState = new NetworkStateManager(this, this.dispatcher);
+        this.dispatcher.start();
+
+        if (autoStart) {
+            this.setDaemon(true);
+            this.start();
+        }
     }
 
     @Override
     public void run() {
-		boolean udpData = false;
         while (keeprunning) {
+            this.poll(true);
+        }
+    }
 
-            try {
-                String resp = readLine();
-                if (resp.length() == 0) {
-                    continue;
-                }
+    /**
+     * Handle one line from the module and check the command timeouts
+     *
+     * @param wait wait for data up to the read timeout of the input stream,
+     *             false to return at once when no data is available
+     * @return true if a line was handled
+     */
+    boolean poll(boolean wait) {
+        try {
+            if (this.reader.readLine(wait) < 0) {
+                this.commandQueue.checkTimeout(System.currentTimeMillis());
+                return false;
+            }
 
-                System.out.println(resp);
+            byte[] line = this.reader.getLine();
+            int len = this.reader.getLineLength();
 
-                if (resp.equals("OK") || resp.endsWith("ERROR")) {
-                    synchronized (this.atResp) {
-                        this.atResp.notifyAll();
-                    }
-                    continue;
-                }
+            // line bytes including CR/LF
+            this.metrics.recordReceived(len + 2);
+
+            if (this.urcDispatcher.dispatch(line, len)) {
+                // taken by the handler of its prefix
+            } else if (this.isDatagramLine(line, len)) {
+                this.udpDataParse(line, len);
+            } else {
+                this.onResponseLine(line, len);
+            }
+
+            this.commandQueue.checkTimeout(System.currentTimeMillis());
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Response line or final result of the command in flight
+     *
+     * @param line line buffer
+     * @param len  line length
+     * @throws IOException
+     */
+    private void onResponseLine(byte[] line, int len) throws IOException {
+
+        if (this.debug)
+            System.out.println(new String(line, 0, len));
+
+        if (len == RESULT_OK.length && URCParser.startsWith(line, len, RESULT_OK)) {
+            this.commandQueue.onResult(ATResponse.OK, 0);
+        } else if (len == RESULT_ERROR.length && URCParser.startsWith(line, len, RESULT_ERROR)) {
+            this.commandQueue.onResult(ATResponse.ERROR, 0);
+        } else if (URCParser.startsWith(line, len, RESULT_CME_ERROR)) {
+            this.parser.reset(line, RESULT_CME_ERROR.length, len);
+            this.commandQueue.onResult(ATResponse.CME_ERROR, this.parser.nextInt());
+        } else if (!this.commandQueue.onLine(line, len)) {
+            this.metrics.recordURC(BC28Metrics.URC_OTHER);
+        }
+    }
+
+    /**
+     * 设置URC处理器, 用于处理驱动未处理的URC, 如 "+QLWEVTIND:"
+     * 处理器在UART读取线程中调用, 不应阻塞; 替换驱动内置的URC处理器会影响驱动功能
+     *
+     * @param prefix  URC前缀, 包括':'
+     * @param handler URC处理器, null表示删除
+     */
+    public void setURCHandler(String prefix, IURCHandler handler) {
+        this.urcDispatcher.register(prefix, BC28Metrics.URC_OTHER, handler);
+    }
+
+    private void registerURC(String prefix, int type) {
+        this.urcDispatcher.register(prefix, type, new URCHandler(type));
+    }
+
+    /**
+     * Handlers of the URCs used by the driver, one class for all of them
+     * keeps the number of classes on the VM down
+     */
+    private class URCHandler implements IURCHandler {
+        private int type;
+
+        URCHandler(int type) {
+            this.type = type;
+        }
+
+        @Override
+        public boolean onURC(byte[] line, int off, int len) throws IOException {
+            switch (this.type) {
+                case BC28Metrics.URC_NNMI:
+                    // "+NNMI:<mode>" answers the query
+                    if (isQueryInFlight(BC28Metrics.CMD_NNMI))
+                        return false;
+                    coapReceive(line, off, len);
+                    return true;
+                case BC28Metrics.URC_NSONMI:
+                    udpReceive(line, off, len);
+                    return true;
+                case BC28Metrics.URC_NSMI:
+                    if (isQueryInFlight(BC28Metrics.CMD_NSMI))
+                        return false;
+                    while (off < len && line[off] == ' ')
+                        off++;
+                    coapTracker.onReport(off < len && line[off] == 'S');
+                    return true;
+                case BC28Metrics.URC_NSOSTR:
+                    onUDPSendReport(line, off, len);
+                    return true;
+                case BC28Metrics.URC_NSOCLI:
+                    onSocketClosed(line, off, len);
+                    return true;
+                case BC28Metrics.URC_CEREG:
+                    // the response of the query looks like the URC
+                    if (isQueryInFlight(BC28Metrics.CMD_CEREG))
+                        return false;
+                    onRegistrationURC(line, off, len);
+                    return true;
+                case BC28Metrics.URC_CSCON:
+                    if (isQueryInFlight(BC28Metrics.CMD_CSCON))
+                        return false;
+                    onConnectionURC(line, off, len);
+                    return true;
+                case BC28Metrics.URC_NPING:
+                    // completes the AT+NPING waiting for it
+                    return commandQueue.onLine(line, len);
+                case BC28Metrics.URC_REBOOT:
+                    cache.invalidateAll();
+                    networkState.onReboot();
+                    onResponseLine(line, len);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * +NSOSTR:&lt;socket&gt;,&lt;seq&gt;,&lt;status&gt;
+     */
+    private void onUDPSendReport(byte[] line, int off, int len) throws IOException {
+        this.parser.reset(line, off, len);
+        int socketId = this.parser.nextInt();
+        int seq = this.parser.nextInt();
+        int status = this.parser.nextInt();
+        this.udpTracker.onReport(socketId, seq, status);
+    }
+
+    /**
+     * +NSOCLI:&lt;socket&gt;, the module closed the socket, e.g. after the
+     * network was lost, no more data arrives on it
+     */
+    private void onSocketClosed(byte[] line, int off, int len) throws IOException {
+        this.parser.reset(line, off, len);
+        int socketId = this.parser.nextInt();
+        if (socketId >= this.sockets.length)
+            return;
 
-				if (resp.contains("+NNMI")) // new coap message arrived
-				{
-					synchronized (this.atResp) {
-						this.coapReceive(resp);
-					}
-					
-				} else if (resp.contains("+NSONMI")) // UDP
-				{
-					this.udpReceive(resp);
-					udpData = true;
-					
-				} else if(resp.contains("+NSMI"))// response for the request
-				{
-					//ignore 
-				}
-				else if(udpData) {
-					udpData = false;
-					this.udpDataParse(resp);
-				}
-				else
-				{
-					this.atResp.setResponse(resp);
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+        BC28DatagramSocket socket = this.sockets[socketId];
+        if (socket != null) {
+            this.sockets[socketId] = null;
+            socket.onClosed();
+        }
 
+        synchronized (this.udpReads) {
+            this.udpPending[socketId] = false;
         }
     }
 
+    /**
+     * Check if the command in flight is the query, its response looks like
+     * the URC of the same name
+     *
+     * @param type BC28Metrics.CMD_XXX of the query
+     */
+    private boolean isQueryInFlight(int type) {
+        ATResponse resp = this.commandQueue.current();
+        return resp != null && resp.type == type && resp.query;
+    }
+
+    /**
+     * +CEREG:&lt;stat&gt;[,&lt;tac&gt;,&lt;ci&gt;,&lt;AcT&gt;]
+     */
+    private void onRegistrationURC(byte[] line, int off, int len) throws IOException {
+        this.parser.reset(line, off, len);
+        int stat = this.parser.nextInt();
+        this.cache.putInt(ResponseCache.CEREG, stat);
+        this.cache.invalidate(ResponseCache.IP_ADDRESS);
+        this.networkState.onRegistration(stat);
+    }
+
+    /**
+     * +CSCON:&lt;mode&gt;
+     */
+    private void onConnectionURC(byte[] line, int off, int len) throws IOException {
+        this.parser.reset(line, off, len);
+        int mode = this.parser.nextInt();
+        this.cache.putInt(ResponseCache.CSCON, mode);
+        this.networkState.onConnection(mode == 1);
+    }
+
+    /**
+     * Check if the line is the data line of a +NSORF read in flight
+     */
+    private boolean isDatagramLine(byte[] line, int len) {
+        if (len == 0 || line[0] < '0' || line[0] > '9')
+            return false;
+
+        ATResponse resp = this.commandQueue.current();
+        return resp != null && resp.type == BC28Metrics.CMD_NSORF;
+    }
+
+    /**
+     * Print the lines from the module, off by default as printing every line
+     * slows down the UART reading
+     *
+     * @param debug
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Number of queued AT commands including the one in flight
+     *
+     * @return
+     */
+    public int getPendingCommandCount() {
+        return this.commandQueue.size();
+    }
+
+    /**
+     * Command latency histograms, serial I/O and URC counters, take a
+     * snapshot periodically to upload them
+     *
+     * @return
+     */
+    public BC28Metrics getMetrics() {
+        return this.metrics;
+    }
+
     /**
      * Event listener for data arrived from remote node
      *
      * @param listener
      */
     public void setEventListener(IDeviceEventListener listener) {
-        this.eventListener = listener;
+        this.dispatcher.setEventListener(listener);
+    }
+
+    /**
+     * Listener for data arrived from remote node without copying, the data is
+     * passed in buffers reused by the driver. When set, it is used instead of
+     * the data callbacks of IDeviceEventListener
+     *
+     * @param listener
+     */
+    public void setRawDataListener(IRawDataListener listener) {
+        this.dispatcher.setRawDataListener(listener);
+    }
+
+    /**
+     * Dispatcher delivering the listener callbacks, for its overflow policy
+     * and queue statistics
+     *
+     * @return
+     */
+    public EventDispatcher getEventDispatcher() {
+        return this.dispatcher;
+    }
+
+    /**
+     * Network attach state machine, bring the link up and wait for the
+     * registration with it instead of polling
+     *
+     * @return
+     */
+    public NetworkStateManager getNetworkStateManager() {
+        return this.networkState;
+    }
+
+    /**
+     * Cache of the module queries, for its time to live settings and hit/miss
+     * statistics
+     *
+     * @return
+     */
+    public ResponseCache getResponseCache() {
+        return this.cache;
     }
 
     /**
@@ -113,10 +483,10 @@ public class TiBC28 extends Thread {
     public boolean isMTOn() throws IOException {
 
         String resp = sendCommand("AT+CFUN?");
-        if (resp.equals("+CFUN:1"))
-            return true;
+        boolean on = resp.equals("+CFUN:1");
+        this.networkState.onRadio(on);
 
-        return false;
+        return on;
     }
 
     /**
@@ -126,6 +496,8 @@ public class TiBC28 extends Thread {
      */
     public void turnOnMT() throws IOException {
         sendCommand("AT+CFUN=1");
+        this.cache.invalidateNetwork();
+        this.networkState.onRadio(true);
     }
 
     /**
@@ -135,6 +507,18 @@ public class TiBC28 extends Thread {
      */
     public void turnOffMT() throws IOException {
         sendCommand("AT+CFUN=0");
+        this.cache.invalidateNetwork();
+        this.networkState.onRadio(false);
+    }
+
+    /**
+     * 重启模块
+     *
+     * @throws IOException
+     */
+    public void reboot() throws IOException {
+        this.cache.invalidateAll();
+        sendCommand("AT+NRB");
     }
 
     /**
@@ -145,11 +529,17 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public String getIMSI() throws IOException {
+        if (this.cache.lookup(ResponseCache.IMSI))
+            return this.cache.getString(ResponseCache.IMSI);
+
+        long begin = System.currentTimeMillis();
         String resp = sendCommand("AT+CIMI");
-        if (resp == null) {
+        if (resp == null || resp.length() == 0) {
             throw new IOException("Wrong response");
         }
 
+        this.cache.recordMissTime(ResponseCache.IMSI, System.currentTimeMillis() - begin);
+        this.cache.putString(ResponseCache.IMSI, resp);
         return resp;
     }
 
@@ -160,6 +550,10 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public String getIMEI() throws IOException {
+        if (this.cache.lookup(ResponseCache.IMEI))
+            return this.cache.getString(ResponseCache.IMEI);
+
+        long begin = System.currentTimeMillis();
         String resp = sendCommand("AT+CGSN=1");
 
         int end = resp.lastIndexOf(':');
@@ -168,6 +562,8 @@ public class TiBC28 extends Thread {
         }
 
         String imei = resp.substring(end + 1);
+        this.cache.recordMissTime(ResponseCache.IMEI, System.currentTimeMillis() - begin);
+        this.cache.putString(ResponseCache.IMEI, imei);
         return imei;
     }
 
@@ -178,24 +574,23 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public int getRSSI() throws IOException {
-        String resp = sendCommand("AT+CSQ");
+        if (this.cache.lookup(ResponseCache.RSSI))
+            return this.cache.getInt(ResponseCache.RSSI);
 
-		String [] res = resp.split("\n");
-		resp = res[res.length - 1];
-		
-		int begin = resp.indexOf(':');
-		int end = resp.lastIndexOf(',');
+        long start = System.currentTimeMillis();
+        ATResponse resp = query("AT+CSQ");
 
-        if (begin < 0 || end < 0 || begin >= end)
+        int line = resp.findLine("+CSQ:");
+        if (line < 0)
             throw new IOException("Wrong response");
 
-        String rssi = resp.substring(begin + 1, end);
-
-        int r = Integer.parseInt(rssi);
+        int r = resp.getIntField(line, 0);
         if (r == 99) {// no signl
             r = 0;
         }
 
+        this.cache.recordMissTime(ResponseCache.RSSI, System.currentTimeMillis() - start);
+        this.cache.putInt(ResponseCache.RSSI, r);
         return r;
     }
 
@@ -207,10 +602,10 @@ public class TiBC28 extends Thread {
      */
     public boolean isNetworkActived() throws IOException {
         String resp = sendCommand("AT+CGATT?");
-        if (resp.equals("+CGATT:1"))
-            return true;
-        return false;
+        boolean attached = resp.equals("+CGATT:1");
+        this.networkState.onAttach(attached);
 
+        return attached;
     }
 
     /**
@@ -220,6 +615,7 @@ public class TiBC28 extends Thread {
      */
     public void activeNetwork() throws IOException {
         sendCommand("AT+CGATT=1");
+        this.cache.invalidateNetwork();
     }
 
     /**
@@ -229,16 +625,30 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public boolean isNetworkRegistred() throws IOException {
-        String resp = sendCommand("AT+CEREG?");
-
-        int begin = resp.lastIndexOf(',');
-        if (begin < 0)
-            throw new IOException("Wrong response");
-
-        String stat = resp.substring(begin + 1);
+        int s;
+        if (this.cache.lookup(ResponseCache.CEREG)) {
+            s = this.cache.getInt(ResponseCache.CEREG);
+        } else {
+            long begin = System.currentTimeMillis();
+            String resp = sendCommand("AT+CEREG?");
+
+            // +CEREG:<n>,<stat>[,<tac>,<ci>,<AcT>]
+            int pos = resp.indexOf(',');
+            if (pos < 0)
+                throw new IOException("Wrong response");
+
+            int end = resp.indexOf(',', pos + 1);
+            if (end < 0)
+                end = resp.length();
+
+            s = Integer.parseInt(resp.substring(pos + 1, end));
+            this.cache.recordMissTime(ResponseCache.CEREG, System.currentTimeMillis() - begin);
+            this.cache.putInt(ResponseCache.CEREG, s);
+            this.networkState.onRegistration(s);
+        }
 
-        int s = Integer.parseInt(stat);
-        return s > 0 ? true : false;
+        // 1 - registered, home network 5 - registered, roaming
+        return s == 1 || s == 5;
     }
 
     /**
@@ -248,15 +658,150 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public int getNetworkStatus() throws IOException {
+        if (this.cache.lookup(ResponseCache.CSCON))
+            return this.cache.getInt(ResponseCache.CSCON);
+
+        long begin = System.currentTimeMillis();
         String resp = sendCommand("AT+CSCON?");
 
-        int begin = resp.lastIndexOf(',');
-        if (begin < 0)
+        int pos = resp.lastIndexOf(',');
+        if (pos < 0)
             throw new IOException("Wrong response");
 
-        String stat = resp.substring(begin + 1);
+        String stat = resp.substring(pos + 1);
+
+        int s = Integer.parseInt(stat);
+        this.cache.recordMissTime(ResponseCache.CSCON, System.currentTimeMillis() - begin);
+        this.cache.putInt(ResponseCache.CSCON, s);
+        this.networkState.onConnection(s == 1);
+        return s;
+    }
+
+    /**
+     * 按初始化配置初始化模块, 在调用线程中逐行执行, 相邻的简单步骤用 ';' 合并为一行,
+     * 模块保存的设置先查询, 只发送设置不正确的命令, 射频原来关闭时 (新模块或重新上电) 直接发送设置命令
+     * 注册在后台完成, 可通过 NetworkStateManager.awaitRegistered 等待, 配置中的查询同时更新网络状态
+     *
+     * @param profile 初始化配置, 运行后可查询每一步的耗时
+     * @throws IOException 第一个失败的命令
+     */
+    public void initialize(InitProfile profile) throws IOException {
+        profile.run(this);
+    }
+
+    /**
+     * Query of an init step answered, update the state it reads
+     */
+    void onInitQuery(ATResponse resp) throws IOException {
+        int line;
+        switch (resp.type) {
+            case BC28Metrics.CMD_CFUN:
+                this.networkState.onRadio(resp.findLine("+CFUN:1") >= 0);
+                break;
+            case BC28Metrics.CMD_CGATT:
+                this.networkState.onAttach(resp.findLine("+CGATT:1") >= 0);
+                break;
+            case BC28Metrics.CMD_CEREG:
+                // +CEREG:<n>,<stat>[,<tac>,<ci>,<AcT>]
+                line = resp.findLine("+CEREG:");
+                if (line >= 0) {
+                    int stat = resp.getIntField(line, 1);
+                    this.cache.putInt(ResponseCache.CEREG, stat);
+                    this.networkState.onRegistration(stat);
+                }
+                break;
+            case BC28Metrics.CMD_CSCON:
+                line = resp.findLine("+CSCON:");
+                if (line >= 0) {
+                    int mode = resp.getIntField(line, 1);
+                    this.cache.putInt(ResponseCache.CSCON, mode);
+                    this.networkState.onConnection(mode == 1);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Command of an init step done
+     */
+    void onInitCommand(ATResponse resp) {
+        switch (resp.type) {
+            case BC28Metrics.CMD_CFUN:
+                this.cache.invalidateNetwork();
+                this.networkState.onRadio(true);
+                break;
+            case BC28Metrics.CMD_CGATT:
+                this.cache.invalidateNetwork();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 开启网络注册状态主动上报 +CEREG
+     *
+     * @param mode 0 - 关闭 1 - 上报 +CEREG:&lt;stat&gt; 2 - 同时上报位置信息
+     * @throws IOException
+     */
+    public void enableRegistrationReport(int mode) throws IOException {
+        sendCommand("AT+CEREG=" + mode);
+    }
+
+    /**
+     * 开启连接状态主动上报 +CSCON
+     *
+     * @param enable true - 开启 false- 关闭
+     * @throws IOException
+     */
+    public void enableConnectionReport(boolean enable) throws IOException {
+        if (enable) {
+            sendCommand("AT+CSCON=1");
+        } else {
+            sendCommand("AT+CSCON=0");
+        }
+    }
+
+    /**
+     * 开启省电模式 PSM, 模块在连接释放后保持可达 activeTime 秒, 之后进入休眠直到下次 TAU 或上行数据
+     *
+     * @param tau        周期性TAU时间 T3412, 单位秒
+     * @param activeTime 激活时间 T3324, 单位秒
+     * @throws IOException
+     */
+    public void setPSM(int tau, int activeTime) throws IOException {
+        sendCommand("AT+CPSMS=1,,,\"" + PSMTimer.encodeTAU(tau) + "\",\"" + PSMTimer.encodeActiveTime(activeTime)
+                + "\"");
+    }
+
+    /**
+     * 关闭省电模式 PSM
+     *
+     * @throws IOException
+     */
+    public void disablePSM() throws IOException {
+        sendCommand("AT+CPSMS=0");
+    }
+
+    /**
+     * 开启 eDRX, 空闲时按周期监听寻呼
+     *
+     * @param cycle eDRX 周期, 单位毫秒, 取不小于该值的最短周期
+     * @throws IOException
+     */
+    public void setEDRX(int cycle) throws IOException {
+        sendCommand("AT+CEDRXS=1,5,\"" + PSMTimer.encodeEDRX(cycle) + "\"");
+    }
 
-        return Integer.parseInt(stat);
+    /**
+     * 关闭 eDRX
+     *
+     * @throws IOException
+     */
+    public void disableEDRX() throws IOException {
+        sendCommand("AT+CEDRXS=0");
     }
 
     /**
@@ -266,19 +811,24 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public String getIPAddress() throws IOException {
-        String resp = sendCommand("AT+CGPADDR=0");
+        if (this.cache.lookup(ResponseCache.IP_ADDRESS))
+            return this.cache.getString(ResponseCache.IP_ADDRESS);
 
-		String [] res = resp.split("\n");
-		resp = res[res.length - 1];
-		
-		if (!resp.startsWith("+CGPADDR"))
-			throw new IOException("Failed to get IP address");
+        long begin = System.currentTimeMillis();
+        ATResponse resp = query("AT+CGPADDR=0");
 
-        int pos = resp.lastIndexOf(',');
-        if (pos < 0)
+        int line = resp.findLine("+CGPADDR");
+        if (line < 0)
+            throw new IOException("Failed to get IP address");
+
+        // +CGPADDR:<cid>,<address>, no address before the PDP context is active
+        String ip = resp.getField(line, 1);
+        if (ip == null)
             return "";
 
-        return resp.substring(pos + 1);
+        this.cache.recordMissTime(ResponseCache.IP_ADDRESS, System.currentTimeMillis() - begin);
+        this.cache.putString(ResponseCache.IP_ADDRESS, ip);
+        return ip;
     }
 
     /**
@@ -303,9 +853,7 @@ public class TiBC28 extends Thread {
      */
     public String[] queryUEStatistics() throws IOException {
 
-        String resp = sendCommand("AT+NUESTATS");
-
-        return resp.split("\n");
+        return query("AT+NUESTATS").getLines();
 
     }
 
@@ -318,10 +866,20 @@ public class TiBC28 extends Thread {
      */
     public boolean ping(String ip) throws IOException {
 
-        String result = sendCommand("AT+NPING=" + ip);
-        if (result.startsWith("+NPING:"))
+        // OK only accepts the request, the result is the +NPING or +NPINGERR URC
+        ATResponse resp = sendCommandAsync("AT+NPING=" + ip, null);
+        if (!resp.waitFor()) {
+            this.commandQueue.cancel(resp);
+            return false;
+        }
+
+        if (resp.getResult() == ATResponse.OK)
             return true;
 
+        if (resp.findLine("+NPINGERR:") >= 0)
+            return false;
+
+        resp.check();
         return false;
     }
 
@@ -339,18 +897,59 @@ public class TiBC28 extends Thread {
     }
 
     /**
-     * 关闭socket
+     * 创建带接收缓冲的 UDP Socket, 接收缓冲满时数据保留在模块中直到应用读取
      *
-     * @param socketId
+     * @param listenPort 本地监听端口
+     * @param capacity   接收缓冲可保存的数据包数量
+     * @return socket
      * @throws IOException
      */
-    public void closeUDPSocket(int socketId) throws IOException {
-        sendCommand("AT+NSOCL=" + socketId);
+    public BC28DatagramSocket openDatagramSocket(int listenPort, int capacity) throws IOException {
+        int socketId = createUDPSocket(listenPort);
+        if (socketId < 0 || socketId >= this.sockets.length)
+            throw new IOException("Wrong socket id");
+
+        BC28DatagramSocket socket = new BC28DatagramSocket(this, socketId, capacity);
+        this.sockets[socketId] = socket;
+        return socket;
+    }
+
+    void closeDatagramSocket(BC28DatagramSocket socket) throws IOException {
+        int socketId = socket.getSocketId();
+        if (this.sockets[socketId] == socket)
+            this.sockets[socketId] = null;
+
+        closeUDPSocket(socketId);
     }
 
     /**
-     * 发送UDP数据包到远程服务器
-     *
+     * Queue AT+NSORF for the socket
+     */
+    void readDatagram(int socketId, IATResponseListener listener) throws IOException {
+        sendFrameAsync(acquireFrame().append("AT+NSORF=").append(socketId).append(',').append(MAX_DATAGRAM_SIZE).end(),
+                listener);
+    }
+
+    private BC28DatagramSocket socket(int socketId) {
+        if (socketId < 0 || socketId >= this.sockets.length)
+            return null;
+
+        return this.sockets[socketId];
+    }
+
+    /**
+     * 关闭socket
+     *
+     * @param socketId
+     * @throws IOException
+     */
+    public void closeUDPSocket(int socketId) throws IOException {
+        sendCommand("AT+NSOCL=" + socketId);
+    }
+
+    /**
+     * 发送UDP数据包到远程服务器
+     *
      * @param socketId
      * @param remoteAddr 远程服务器IP
      * @param remotePort 远程服务器 端口
@@ -359,13 +958,190 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public int udpSend(int socketId, String remoteAddr, int remotePort, byte[] data) throws IOException {
-        String resp = sendCommand("AT+NSOST=" + socketId + "," + remoteAddr + "," + remotePort + "," + data.length + ","
-                + Formatter.toHexString(data));
+        return udpSend(socketId, remoteAddr, remotePort, data, RAI_NONE);
+    }
 
-        if (socketId != resp.charAt(0) - '0')
+    /**
+     * 发送UDP数据包到远程服务器, 并指示网络何时释放连接, 缩短连接态时间以降低功耗
+     *
+     * @param socketId
+     * @param remoteAddr 远程服务器IP
+     * @param remotePort 远程服务器 端口
+     * @param data       将发送的数据
+     * @param rai        RAI_NONE, RAI_RELEASE 或 RAI_RELEASE_AFTER_REPLY
+     * @return 成送数据长度
+     * @throws IOException
+     */
+    public int udpSend(int socketId, String remoteAddr, int remotePort, byte[] data, int rai) throws IOException {
+        String resp = sendFrame(udpSendFrame(socketId, remoteAddr, remotePort, data, 0, data.length, rai, 0));
+
+        // "<socket>,<length>"
+        if (resp.length() < 3 || socketId != resp.charAt(0) - '0')
             throw new IOException("Wrong socket id");
 
-        return Integer.parseInt(resp.substring(2));
+        try {
+            return Integer.parseInt(resp.substring(2));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Wrong response: " + resp);
+        }
+    }
+
+    /**
+     * 异步发送UDP数据包, 不等待模块返回, 可连续发送多个命令
+     *
+     * @param socketId
+     * @param remoteAddr 远程服务器IP
+     * @param remotePort 远程服务器 端口
+     * @param data       将发送的数据
+     * @param listener   命令完成通知, 在事件分发线程中调用, 响应内容为 "socket,length"
+     * @return 待完成的命令
+     * @throws IOException
+     */
+    public ATResponse udpSendAsync(int socketId, String remoteAddr, int remotePort, byte[] data,
+                                   IATResponseListener listener) throws IOException {
+        return udpSendAsync(socketId, remoteAddr, remotePort, data, RAI_NONE, listener);
+    }
+
+    /**
+     * 异步发送UDP数据包并指示网络何时释放连接
+     *
+     * @param socketId
+     * @param remoteAddr 远程服务器IP
+     * @param remotePort 远程服务器 端口
+     * @param data       将发送的数据
+     * @param rai        RAI_NONE, RAI_RELEASE 或 RAI_RELEASE_AFTER_REPLY
+     * @param listener   命令完成通知, 在事件分发线程中调用, 响应内容为 "socket,length"
+     * @return 待完成的命令
+     * @throws IOException
+     */
+    public ATResponse udpSendAsync(int socketId, String remoteAddr, int remotePort, byte[] data, int rai,
+                                   IATResponseListener listener) throws IOException {
+        return sendFrameAsync(udpSendFrame(socketId, remoteAddr, remotePort, data, 0, data.length, rai, 0),
+                listener, this.dispatcher);
+    }
+
+    /**
+     * UDP send of the driver, the listener is called in the UART reading
+     * thread and must not block
+     */
+    ATResponse udpSendAsync(int socketId, String remoteAddr, int remotePort, byte[] data, int off, int len,
+                            IATResponseListener listener) throws IOException {
+        return udpSendAsync(socketId, remoteAddr, remotePort, data, off, len, RAI_NONE, listener);
+    }
+
+    ATResponse udpSendAsync(int socketId, String remoteAddr, int remotePort, byte[] data, int off, int len,
+                            int rai, IATResponseListener listener) throws IOException {
+        return sendFrameAsync(udpSendFrame(socketId, remoteAddr, remotePort, data, off, len, rai, 0), listener);
+    }
+
+    /**
+     * 异步发送带序号的UDP数据包, 模块通过 +NSOSTR 通知数据是否已经发送到网络, 结果通过 IUDPSendListener 返回
+     * 命令返回 OK 只表示数据已进入模块缓存
+     *
+     * @param socketId
+     * @param remoteAddr 远程服务器IP
+     * @param remotePort 远程服务器 端口
+     * @param data       将发送的数据
+     * @param off        数据偏移
+     * @param len        数据长度
+     * @param rai        RAI_NONE, RAI_RELEASE 或 RAI_RELEASE_AFTER_REPLY
+     * @return 发送序号 1 - 255, 与 IUDPSendListener 中的序号对应
+     * @throws IOException
+     */
+    public int udpSendTracked(final int socketId, String remoteAddr, int remotePort, byte[] data, int off, int len,
+                              int rai) throws IOException {
+        checkRAI(rai);
+
+        final int seq = this.udpTracker.add(socketId);
+        if (seq < 0)
+            throw new IOException("Too many pending datagrams");
+
+        try {
+            sendFrameAsync(udpSendFrame(socketId, remoteAddr, remotePort, data, off, len, rai, seq),
+                    new IATResponseListener() {
+                        @Override
+                        public void onATResponse(ATResponse response) {
+                            if (response.getResult() != ATResponse.OK)
+                                udpTracker.reject(socketId, seq);
+                        }
+                    });
+        } catch (IOException ex) {
+            this.udpTracker.cancel(socketId, seq);
+            throw ex;
+        }
+
+        return seq;
+    }
+
+    /**
+     * 设置 udpSendTracked 发送结果通知
+     *
+     * @param listener
+     */
+    public void setUDPSendListener(IUDPSendListener listener) {
+        this.dispatcher.setUDPSendListener(listener);
+    }
+
+    /**
+     * 等待 +NSOSTR 的UDP数据包数量
+     *
+     * @return
+     */
+    public int getPendingUDPCount() {
+        return this.udpTracker.size();
+    }
+
+    /**
+     * AT+NSOST=&lt;socket&gt;,&lt;ip&gt;,&lt;port&gt;,&lt;length&gt;,&lt;data&gt;[,&lt;seq&gt;] or with release
+     * assistance AT+NSOSTF=&lt;socket&gt;,&lt;ip&gt;,&lt;port&gt;,&lt;flag&gt;,&lt;length&gt;,&lt;data&gt;[,&lt;seq&gt;]
+     *
+     * @param rai RAI_XXX
+     * @param seq 1 - 255 to get +NSOSTR, 0 for none
+     */
+    private ATFrameBuilder udpSendFrame(int socketId, String remoteAddr, int remotePort, byte[] data, int off,
+                                        int len, int rai, int seq) {
+        checkRAI(rai);
+
+        ATFrameBuilder frame = acquireFrame();
+        frame.reserve(remoteAddr.length() + 40 + len * 2);
+        frame.append(rai == RAI_NONE ? "AT+NSOST=" : "AT+NSOSTF=").append(socketId).append(',').append(remoteAddr)
+                .append(',').append(remotePort).append(',');
+
+        // 0x200 release after this uplink, 0x400 release after the reply to it
+        if (rai == RAI_RELEASE)
+            frame.append("0x200,");
+        else if (rai == RAI_RELEASE_AFTER_REPLY)
+            frame.append("0x400,");
+
+        frame.append(len).append(',').appendHex(data, off, len);
+        if (seq > 0)
+            frame.append(',').append(seq);
+        return frame.end();
+    }
+
+    private static void checkRAI(int rai) {
+        if (rai < RAI_NONE || rai > RAI_RELEASE_AFTER_REPLY)
+            throw new IllegalArgumentException("Wrong release assistance indication");
+    }
+
+    /**
+     * 打开UDP分片发送流, 超过模块单条命令长度的数据自动分片并连续发送
+     * 每个分片带4字节头: 流ID, 标志(FLAG_FIRST/FLAG_LAST), 分片序号
+     *
+     * @param socketId
+     * @param remoteAddr 远程服务器IP
+     * @param remotePort 远程服务器 端口
+     * @return 发送流, close() 发送最后分片并等待全部完成
+     */
+    public FragmentOutputStream openUDPOutputStream(int socketId, String remoteAddr, int remotePort) {
+        return new FragmentOutputStream(this, socketId, remoteAddr, remotePort, nextStreamId(), MAX_DATAGRAM_SIZE,
+                STREAM_WINDOW);
+    }
+
+    private synchronized int nextStreamId() {
+        int id = this.nextStreamId;
+        this.nextStreamId = (this.nextStreamId + 1) & 0xFF;
+        return id;
     }
 
     /**
@@ -376,45 +1152,119 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public void udpReceive(String resp) throws IOException {
+        byte[] line = resp.getBytes();
+        udpReceive(line, URC_NSONMI.length(), line.length);
+    }
 
-        int begin = resp.indexOf(':');
-        int end = resp.lastIndexOf(',');
+    /**
+     * 处理 +NSONMI:&lt;socket&gt;,&lt;length&gt; 通知, 读取模块缓存的UDP数据
+     *
+     * @param line 收到的行
+     * @param off  第一个字段的位置
+     * @param len  行长度
+     * @throws IOException
+     */
+    private void udpReceive(byte[] line, int off, int len) throws IOException {
+        this.parser.reset(line, off, len);
 
-        if (begin < 0 || end < 0 || begin > end)
-            throw new IOException("Wrong response");
+        int socketId = this.parser.nextInt();
+        if (socketId < 0 || socketId >= this.sockets.length)
+            throw new IOException("Wrong socket id");
 
-        int socketId = Integer.parseInt(resp.substring(begin + 1, end));
-        int length = Integer.parseInt(resp.substring(end + 1));
+        BC28DatagramSocket socket = socket(socketId);
+        if (socket != null) {
+            socket.onDataAvailable();
+            return;
+        }
 
-		String readUdpDataCmd = "AT+NSORF=" + socketId + "," + length + "\r\n";
-		output.write(readUdpDataCmd.getBytes());
-	
-	}
+        // the URC only comes when the module queue was empty, read until remaining is 0
+        synchronized (this.udpReads) {
+            this.udpPending[socketId] = true;
+        }
+        requestUDPRead(socketId);
+    }
 
-	public void udpDataParse(String resp) throws IOException {
-		
-		int begin = resp.indexOf(',');
-		int socketId = Integer.parseInt(resp.substring(0, begin));
+    /**
+     * Queue AT+NSORF up to the receive batch while data is left in the module
+     */
+    private void requestUDPRead(int socketId) {
+        int n;
+        UDPReadListener listener;
+        synchronized (this.udpReads) {
+            n = this.receiveBatch - this.udpReads[socketId];
+            if (!this.udpPending[socketId] || n <= 0)
+                return;
+
+            this.udpReads[socketId] += n;
+            this.udpPending[socketId] = false;
+
+            listener = this.udpReadListeners[socketId];
+            if (listener == null) {
+                listener = new UDPReadListener(socketId);
+                this.udpReadListeners[socketId] = listener;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            try {
+                readDatagram(socketId, listener);
+            } catch (IOException ex) {
+                // command queue full, retried when a read in flight completes
+                synchronized (this.udpReads) {
+                    this.udpReads[socketId] -= n - i;
+                    this.udpPending[socketId] = true;
+                }
+                return;
+            }
+        }
+    }
+
+    private class UDPReadListener implements IATResponseListener {
+        private int socketId;
+
+        UDPReadListener(int socketId) {
+            this.socketId = socketId;
+        }
 
-		int ipPos = resp.indexOf(',', begin + 1);
-		String remoteAddr = resp.substring(begin + 1, ipPos);
+        @Override
+        public void onATResponse(ATResponse response) {
+            synchronized (udpReads) {
+                udpReads[this.socketId]--;
+            }
+            requestUDPRead(this.socketId);
+        }
+    }
 
-		int portPos = resp.indexOf(',', ipPos + 1);
-		int port = Integer.parseInt(resp.substring(ipPos + 1, portPos));
+    public void udpDataParse(String resp) throws IOException {
+        byte[] line = resp.getBytes();
+        udpDataParse(line, line.length);
+    }
 
-		int lenPos = resp.indexOf(',', portPos + 1);
-		int length = Integer.parseInt(resp.substring(portPos + 1, lenPos));
+    /**
+     * 解析 +NSORF 返回的数据 socket,ip,port,length,data,remaining
+     *
+     * @param line 收到的行
+     * @param len  行长度
+     * @throws IOException
+     */
+    private void udpDataParse(byte[] line, int len) throws IOException {
+        this.parser.parseDatagram(line, len, this.datagram);
 
-		int dataPos = resp.indexOf(',', lenPos + 1);
-		String data = resp.substring(lenPos + 1, dataPos);
+        BC28DatagramSocket socket = socket(this.datagram.socketId);
+        if (socket != null) {
+            socket.onDatagram(this.datagram);
+            return;
+        }
 
-		int left = Integer.parseInt(resp.substring(dataPos + 1));
+        int socketId = this.datagram.socketId;
+        if (this.datagram.remaining > 0 && socketId >= 0 && socketId < this.udpPending.length) {
+            synchronized (this.udpReads) {
+                this.udpPending[socketId] = true;
+            }
+        }
+        this.dispatcher.postUDPData(this.datagram);
+    }
 
-		byte[] packet = this.hexStringToByte(data);
-		if (this.eventListener != null)
-			this.eventListener.onUDPDataArrived(packet);
-	}
-	
 	/**
 	 * 设备COAP/CDP 服务器IP及端口
 	 * 
@@ -425,8 +1275,6 @@ public class TiBC28 extends Thread {
 	public void setCDPServer(String ip, int port) throws IOException {
 
 		sendCommand("AT+NCDP=" + ip + "," + port);
-		
-		sendCommand("AT+NCDP?");
 	}
 
     /**
@@ -459,24 +1307,290 @@ public class TiBC28 extends Thread {
      * @throws IOException
      */
     public void coapSend(byte[] data) throws IOException {
+        coapSend(data, 0, data.length);
+    }
 
-        String result = sendCommand("AT+NMGS=" + data.length + "," + Formatter.toHexString(data));
+    public void coapSend(byte[] data, int off, int len) throws IOException {
+        coapSend(data, off, len, RAI_NONE);
+    }
 
+    /**
+     * 通过COAP向服务器发送数据, 并指示网络何时释放连接 (AT+NMGSEXT)
+     *
+     * @param data 待发送数据
+     * @param off  数据偏移
+     * @param len  数据长度
+     * @param rai  RAI_NONE, RAI_RELEASE 或 RAI_RELEASE_AFTER_REPLY
+     * @throws IOException
+     */
+    public void coapSend(byte[] data, int off, int len, int rai) throws IOException {
 
-        result = sendCommand("AT+NQMGS");
+        await(coapSendUntracked(coapSendFrame(data, off, len, rai), null));
+
+        String result = sendCommand("AT+NQMGS");
+        reconcileCoapMessages(result);
         if (!result.contains("ERROR=0"))
             throw new IOException("Failed to send coap message");
     }
 
-    public void coapSend(byte[] data, int off, int len) throws IOException {
 
-        String result = sendCommand("AT+NMGS=" + len + "," + Formatter.toHexString(data, off, len, ""));
+    /**
+     * 通过COAP向服务器异步发送数据, 不等待 AT+NQMGS 查询结果
+     * 需先调用 enableMsgNotification(true) 开启 +NSMI 发送状态通知, 发送结果通过
+     * ICoapSendListener 返回
+     *
+     * @param data 待发送数据
+     * @param off  数据偏移
+     * @param len  数据长度
+     * @return 发送序号, 与 ICoapSendListener 中的序号对应
+     * @throws IOException
+     */
+    public int coapSendAsync(byte[] data, int off, int len) throws IOException {
+        return coapSendAsync(data, off, len, RAI_NONE);
+    }
 
-        result = sendCommand("AT+NQMGS");
-        if (!result.contains("ERROR=0"))
-            throw new IOException("Failed to send coap message");
+    /**
+     * 通过COAP向服务器异步发送数据, 并指示网络何时释放连接 (AT+NMGSEXT)
+     *
+     * @param data 待发送数据
+     * @param off  数据偏移
+     * @param len  数据长度
+     * @param rai  RAI_NONE, RAI_RELEASE 或 RAI_RELEASE_AFTER_REPLY
+     * @return 发送序号, 与 ICoapSendListener 中的序号对应
+     * @throws IOException
+     */
+    public int coapSendAsync(byte[] data, int off, int len, int rai) throws IOException {
+        return coapSendAsync(coapSendFrame(data, off, len, rai), null);
     }
 
+    /**
+     * 按照 PayloadSchema 编码并通过COAP异步发送消息, 消息直接编码到命令缓冲区, 发送结果通过
+     * ICoapSendListener 返回
+     *
+     * @param message 待发送消息, 返回后即可重新填写
+     * @param rai     RAI_NONE, RAI_RELEASE 或 RAI_RELEASE_AFTER_REPLY
+     * @return 发送序号, 与 ICoapSendListener 中的序号对应
+     * @throws IOException
+     */
+    public int coapSendAsync(PayloadMessage message, int rai) throws IOException {
+        return coapSendAsync(coapSendFrame(message, rai), null);
+    }
+
+    /**
+     * CoAP uplink of the driver, the listener is called in the UART reading
+     * thread with the result of AT+NMGS and must not block
+     */
+    int coapSendAsync(byte[] data, int off, int len, int rai, IATResponseListener listener) throws IOException {
+        return coapSendAsync(coapSendFrame(data, off, len, rai), listener);
+    }
+
+    private int coapSendAsync(ATFrameBuilder frame, IATResponseListener listener) throws IOException {
+        // +NSMI reports complete the uplinks in sending order, the entry
+        // must follow the order of the commands in the queue
+        synchronized (this.coapLock) {
+            int seq = coapEntry(frame, true);
+            coapQueue(frame, seq, listener);
+            return seq;
+        }
+    }
+
+    /**
+     * AT+NMGS whose result is not reported to ICoapSendListener, its entry
+     * keeps the +NSMI reports in step
+     */
+    private ATResponse coapSendUntracked(ATFrameBuilder frame, IATResponseListener listener) throws IOException {
+        synchronized (this.coapLock) {
+            return coapQueue(frame, coapEntry(frame, false), listener);
+        }
+    }
+
+    /**
+     * Tracker entry of an uplink, must hold coapLock
+     */
+    private int coapEntry(ATFrameBuilder frame, boolean track) throws IOException {
+        int entry = this.coapTracker.add(track);
+        if (entry == 0) {
+            frame.release();
+            throw new IOException("Too many pending coap messages");
+        }
+        return entry;
+    }
+
+    /**
+     * Queue the uplink of the entry, must hold coapLock
+     */
+    private ATResponse coapQueue(ATFrameBuilder frame, final int entry, final IATResponseListener listener)
+            throws IOException {
+        ATResponse resp;
+        try {
+            resp = sendFrameAsync(frame, new IATResponseListener() {
+                @Override
+                public void onATResponse(ATResponse response) {
+                    if (response.getResult() != ATResponse.OK)
+                        coapTracker.reject(entry);
+                    if (listener != null)
+                        listener.onATResponse(response);
+                }
+            });
+        } catch (IOException ex) {
+            this.coapTracker.cancel(entry);
+            throw ex;
+        }
+
+        if (++this.coapSinceReconcile >= this.coapReconcileInterval) {
+            try {
+                reconcileCoapMessages();
+            } catch (IOException ex) {
+                // command queue full, try again with the next uplink
+            }
+        }
+
+        return resp;
+    }
+
+    /**
+     * 打开COAP分片发送流, 分片格式同 openUDPOutputStream
+     *
+     * @return 发送流, close() 发送最后分片并等待全部完成
+     */
+    public FragmentOutputStream openCoapOutputStream() {
+        return new FragmentOutputStream(this, -1, null, 0, nextStreamId(), MAX_DATAGRAM_SIZE, STREAM_WINDOW);
+    }
+
+    /**
+     * AT+NMGS whose +NSMI report is not passed to ICoapSendListener
+     */
+    ATResponse coapSendRawAsync(byte[] data, int off, int len, IATResponseListener listener) throws IOException {
+        return coapSendUntracked(coapSendFrame(data, off, len, RAI_NONE), listener);
+    }
+
+    /**
+     * AT+NMGS=&lt;length&gt;,&lt;data&gt; or with release assistance
+     * AT+NMGSEXT=&lt;length&gt;,&lt;data&gt;,&lt;mode&gt;
+     *
+     * @param rai RAI_XXX
+     */
+    private ATFrameBuilder coapSendFrame(byte[] data, int off, int len, int rai) {
+        checkRAI(rai);
+
+        ATFrameBuilder frame = coapFrameHead(len, rai);
+        frame.appendHex(data, off, len);
+        return coapFrameTail(frame, rai);
+    }
+
+    private ATFrameBuilder coapSendFrame(PayloadMessage message, int rai) {
+        checkRAI(rai);
+
+        PayloadSchema schema = message.getSchema();
+        ATFrameBuilder frame = coapFrameHead(schema.encodedLength(message), rai);
+        schema.encodeHex(message, frame);
+        return coapFrameTail(frame, rai);
+    }
+
+    private ATFrameBuilder coapFrameHead(int len, int rai) {
+        ATFrameBuilder frame = acquireFrame();
+        frame.reserve(24 + len * 2);
+        return frame.append(rai == RAI_NONE ? "AT+NMGS=" : "AT+NMGSEXT=").append(len).append(',');
+    }
+
+    private ATFrameBuilder coapFrameTail(ATFrameBuilder frame, int rai) {
+        // 0x001 release after this uplink, 0x010 release after the reply to it
+        if (rai == RAI_RELEASE)
+            frame.append(",0x001");
+        else if (rai == RAI_RELEASE_AFTER_REPLY)
+            frame.append(",0x010");
+        return frame.end();
+    }
+
+    /**
+     * 设置异步发送结果通知
+     *
+     * @param listener
+     */
+    public void setCoapSendListener(ICoapSendListener listener) {
+        this.dispatcher.setCoapSendListener(listener);
+    }
+
+    /**
+     * 设置接收UDP数据时一次排队的 AT+NSORF 数量
+     * 收到 +NSONMI 后持续读取直到模块返回的剩余长度为0, 大于1时多个读取命令连续发送, 不必等待上一条读取结果处理完,
+     * 突发下行时延迟更低, 但最后可能多发几条无数据的读取命令
+     *
+     * @param reads 1 - 逐条读取, 最大为命令队列长度的一半
+     */
+    public void setUDPReceiveBatch(int reads) {
+        if (reads < 1 || reads > 8)
+            throw new IllegalArgumentException("reads out of range");
+
+        this.receiveBatch = reads;
+    }
+
+    int getUDPReceiveBatch() {
+        return this.receiveBatch;
+    }
+
+    /**
+     * 设置异步发送多少条消息后通过 AT+NQMGS 核对发送计数
+     *
+     * @param messages
+     */
+    public void setCoapReconcileInterval(int messages) {
+        this.coapReconcileInterval = messages;
+    }
+
+    /**
+     * 等待发送结果的异步消息数量
+     *
+     * @return
+     */
+    public int getPendingCoapCount() {
+        return this.coapTracker.size();
+    }
+
+    /**
+     * 通过 AT+NQMGS 核对发送计数, 完成未收到 +NSMI 通知的消息
+     *
+     * @throws IOException
+     */
+    public void reconcileCoapMessages() throws IOException {
+        submitCommand("AT+NQMGS", new IATResponseListener() {
+            @Override
+            public void onATResponse(ATResponse response) {
+                if (response.getResult() == ATResponse.OK)
+                    reconcileCoapMessages(response.getResponse());
+            }
+        });
+
+        this.coapSinceReconcile = 0;
+    }
+
+    /**
+     * PENDING=x,SENT=y,ERROR=z
+     */
+    private void reconcileCoapMessages(String resp) {
+        int pending = counterValue(resp, "PENDING=");
+        int sent = counterValue(resp, "SENT=");
+        int error = counterValue(resp, "ERROR=");
+        if (pending >= 0 && sent >= 0 && error >= 0)
+            this.coapTracker.reconcile(pending, sent, error);
+    }
+
+    private static int counterValue(String resp, String name) {
+        int begin = resp.indexOf(name);
+        if (begin < 0)
+            return -1;
+
+        begin += name.length();
+        int end = resp.indexOf(',', begin);
+        if (end < 0)
+            end = resp.length();
+
+        try {
+            return Integer.parseInt(resp.substring(begin, end).trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
 
     /**
      * 接收COAP数据 注意： 由于NB-IOT的特点， 下行数据需要要收到上行数据后立刻下发, 同时不保证数据能够到达, 在实际 应用中需要根据实际
@@ -490,13 +1604,28 @@ public class TiBC28 extends Thread {
         if (data.length() == 0)
             return;
 
-        int pos = data.lastIndexOf(',');
-        if (pos > 0) {
-            byte[] buff = this.hexStringToByte(data.substring(pos + 1));
-            if (this.eventListener != null)
-                this.eventListener.onCoapDataArrived(buff);
-        }
+        byte[] line = data.getBytes();
+        coapReceive(line, URC_NNMI.length(), line.length);
+    }
 
+    /**
+     * 处理 +NNMI:&lt;length&gt;,&lt;data&gt; 通知
+     *
+     * @param line 收到的行
+     * @param off  第一个字段的位置
+     * @param len  行长度
+     * @throws IOException
+     */
+    private void coapReceive(byte[] line, int off, int len) throws IOException {
+        this.parser.reset(line, off, len);
+
+        int length = this.parser.nextInt();
+        if (this.coapBuffer.length < length)
+            this.coapBuffer = new byte[length];
+
+        length = this.parser.nextHex(this.coapBuffer, 0);
+
+        this.dispatcher.postCoapData(this.coapBuffer, 0, length);
     }
 
 	/**
@@ -537,71 +1666,157 @@ public class TiBC28 extends Thread {
     }
 
     /**
-     * Send AT command to device
+     * Send AT command to device and wait for the final result, the timeout
+     * depends on the command, see ATCommandDescriptor
      *
      * @param cmd
+     * @return information response
+     * @throws ATTimeoutException if no final result arrived in time
+     * @throws ATCommandException if the command failed with ERROR or +CME ERROR
      * @throws IOException
      */
     private String sendCommand(String cmd) throws IOException {
 
-        synchronized (this.atResp) {
-            try {
-                this.atResp.reset();
-                output.write((cmd + "\r\n").getBytes());
+        ATResponse resp = new ATResponse(cmd, 0, null);
+        this.commandQueue.submit(resp);
+
+        return await(resp);
+    }
 
-                this.atResp.wait(5000);
-                // this.atResp.wait();
+    /**
+     * Wait for the command, give it up on timeout
+     *
+     * @return information response
+     * @throws IOException
+     */
+    String await(ATResponse resp) throws IOException {
+        this.awaitResult(resp);
+        return resp.getResponse();
+    }
 
-                return atResp.getResponse();
+    /**
+     * Send AT command and wait for the final result, the response lines are
+     * read from the returned command
+     *
+     * @param cmd
+     * @return completed command
+     * @throws IOException ATTimeoutException or ATCommandException on failure
+     */
+    private ATResponse query(String cmd) throws IOException {
+        ATResponse resp = new ATResponse(cmd, 0, null);
+        this.commandQueue.submit(resp);
 
-            } catch (Exception ie) {
+        this.awaitResult(resp);
+        return resp;
+    }
 
-            }
+    private void awaitResult(ATResponse resp) throws IOException {
+        if (!resp.waitFor()) {
+            this.commandQueue.cancel(resp);
         }
-        return null;
+
+        resp.check();
+    }
+
+    /**
+     * Queue AT command to device without waiting, commands are written to the
+     * module one after another
+     *
+     * @param cmd      AT command without CR/LF
+     * @param listener notified in the event dispatching thread when the
+     *                 command completes, may be null
+     * @return pending command which can be waited on
+     * @throws IOException
+     */
+    public ATResponse sendCommandAsync(String cmd, IATResponseListener listener) throws IOException {
+        ATResponse resp = new ATResponse(cmd, 0, listener);
+        resp.setDispatcher(this.dispatcher);
+        this.commandQueue.submit(resp);
+        return resp;
     }
 
-    private String readLine() throws IOException {
-        StringBuilder sb = new StringBuilder(32);
+    /**
+     * Queue AT command of the driver, the listener is called in the UART
+     * reading thread and must not block
+     */
+    ATResponse submitCommand(String cmd, IATResponseListener listener) throws IOException {
+        ATResponse resp = new ATResponse(cmd, 0, listener);
+        this.commandQueue.submit(resp);
+        return resp;
+    }
 
-        int timeout = 4000;
-        while ((timeout -= 50) > 0) {
-            if (input.available() < 2) {
-                Delay.msDelay(50);
-                continue;
-            }
+    /**
+     * Send encoded AT command to device and wait for the final result
+     *
+     * @param frame AT command terminated by CR/LF, released when completed
+     * @return information response
+     * @throws IOException ATTimeoutException or ATCommandException on failure
+     */
+    private String sendFrame(ATFrameBuilder frame) throws IOException {
 
-            int val = input.read();
-            if (val == 0x0D) {
-                val = input.read(); // 0x0a
-                break;
+        return await(sendFrameAsync(frame, null));
+    }
+
+    /**
+     * Give up a queued command
+     */
+    void cancelCommand(ATResponse resp) throws IOException {
+        this.commandQueue.cancel(resp);
+    }
+
+    private ATResponse sendFrameAsync(ATFrameBuilder frame, IATResponseListener listener) throws IOException {
+        return sendFrameAsync(frame, listener, null);
+    }
+
+    /**
+     * @param dispatcher calls the listener, null to call it in the UART
+     *                   reading thread
+     */
+    private ATResponse sendFrameAsync(ATFrameBuilder frame, IATResponseListener listener,
+                                      EventDispatcher dispatcher) throws IOException {
+        ATResponse resp = new ATResponse(frame, 0, listener);
+        resp.setDispatcher(dispatcher);
+        try {
+            this.commandQueue.submit(resp);
+        } catch (IOException ex) {
+            // not queued, a queued frame is released when its command completes
+            frame.release();
+            throw ex;
+        }
+        return resp;
+    }
+
+    /**
+     * Free frame builder from the pool, a new frame is started in it. The
+     * builder goes back to the pool when the command sent with it completes
+     *
+     * @return
+     */
+    private synchronized ATFrameBuilder acquireFrame() {
+        for (int i = 0; i < this.framePool.length; i++) {
+            ATFrameBuilder frame = this.framePool[i];
+            if (frame == null) {
+                frame = new ATFrameBuilder(64);
+                this.framePool[i] = frame;
             }
 
-            sb.append((char) val);
+            if (!frame.inUse) {
+                frame.inUse = true;
+                return frame.reset();
+            }
         }
-        return sb.toString();
+
+        // more commands queued than the pool holds
+        return new ATFrameBuilder(64);
     }
 
     private void clearInput() throws IOException {
 
+        this.reader.clear();
         while (this.input.read() > 0)
             ;
-        this.uart.clear(3); // clear both input and output buffer
-    }
-
-    private byte[] hexStringToByte(String str) {
-        if (str == null) {
-            return null;
-        }
-        if (str.length() == 0) {
-            return new byte[0];
-        }
-        byte[] byteArray = new byte[str.length() / 2];
-        for (int i = 0; i < byteArray.length; i++) {
-            String subStr = str.substring(2 * i, 2 * i + 2);
-            byteArray[i] = ((byte) Integer.parseInt(subStr, 16));
-        }
-        return byteArray;
+        if (this.uart != null)
+            this.uart.clear(3); // clear both input and output buffer
     }
 
 }
@@ -4,40 +4,79 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import tijos.framework.devicecenter.TiUART;
+import tijos.framework.util.Delay;
 
 
 /**
- * Input stream for UART, it's recommended to work with BufferedIOStream
+ * Input stream for UART, a thin adapter to be read in bulk by ATLineReader,
+ * no buffering is done here.
+ * read(byte[], int, int) waits for incoming data, it returns 0 if nothing
+ * arrived within the read timeout.
  *
  * @author lemon
  */
 public class TiUartInputStream extends InputStream {
 
+    // wait interval when no data, grows while the UART is idle
+    private static final int MIN_WAIT = 1;
+    private static final int MAX_WAIT = 20;
+
     TiUART uart = null;
 
+    int readTimeout = 1000;
+
+    // used by read() to avoid allocating per byte
+    private byte[] single = new byte[1];
+
     public TiUartInputStream(TiUART uart) {
         this.uart = uart;
     }
 
+    /**
+     * Max time in ms read(byte[], int, int) waits for incoming data
+     *
+     * @param timeout
+     */
+    public void setReadTimeout(int timeout) {
+        this.readTimeout = timeout;
+    }
+
     @Override
     public int available() throws IOException {
         return this.uart.available();
     }
 
     public int read(byte[] b, int off, int len) throws IOException {
-        int ret = this.uart.read(b, off, len);
-		/*if(ret > 0) {
-			System.out.println("Read " + Formatter.toHexString(b, off, ret, " "));
-		}
-			*/
-        return ret;
+        int wait = MIN_WAIT;
+        int waited = 0;
+        while (true) {
+            // read at once, checking available() first costs another call per chunk
+            int ret = this.readUART(b, off, len);
+            if (ret > 0)
+                return ret;
+
+            if (waited >= this.readTimeout)
+                return 0;
+
+            Delay.msDelay(wait);
+            waited += wait;
+            wait = Math.min(wait << 1, MAX_WAIT);
+        }
+    }
+
+    /**
+     * Read what the UART has received without waiting
+     *
+     * @return number of bytes read, 0 if none
+     */
+    int readUART(byte[] b, int off, int len) throws IOException {
+        return this.uart.read(b, off, len);
     }
 
     @Override
     public int read() throws IOException {
-        byte[] temp = new byte[1];
-        if (this.uart.read(temp, 0, 1) > 0)
-            return temp[0] & 0xFF;
+        if (this.readUART(this.single, 0, 1) > 0)
+            return this.single[0] & 0xFF;
 
         return -1; //EOF
     }
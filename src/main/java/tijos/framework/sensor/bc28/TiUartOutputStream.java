@@ -7,7 +7,8 @@ import tijos.framework.devicecenter.TiUART;
 
 
 /**
- * Output Stream for UART
+ * Output Stream for UART, a thin adapter, write frames with
+ * write(byte[], int, int) to get one UART write per frame
  *
  * @author lemon
  */
@@ -15,16 +16,19 @@ public class TiUartOutputStream extends OutputStream {
 
     TiUART uart = null;
 
+    // used by write(int) to avoid allocating per byte
+    private byte[] single = new byte[1];
+
     public TiUartOutputStream(TiUART uart) {
         this.uart = uart;
     }
 
     @Override
     public void write(int data) throws IOException {
-        byte[] temp = new byte[1];
-        temp[0] = (byte) data;
-
-        this.uart.write(temp, 0, 1);
+        synchronized (this.single) {
+            this.single[0] = (byte) data;
+            this.uart.write(this.single, 0, 1);
+        }
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
@@ -0,0 +1,293 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.TimerTask;
+
+/**
+ * Recorder of the serial stream between the driver and the module
+ * The UART streams are wrapped, every byte read or written is appended with
+ * its direction and time to a preallocated buffer. Two buffers are used in
+ * turn: while one is written to the file by flush, recording goes on in the
+ * other. If both are full the bytes are dropped and counted, recording never
+ * waits for the file system. A capture can be fed back to the driver with
+ * UARTTraceReplay.
+ *
+ * <pre>
+ * file:   "BCTR", version (1 byte)
+ * record: direction (1 byte, RX 0 / TX 1), time in ms since start (4 bytes),
+ *         length (2 bytes), data
+ *
+ * UARTTraceRecorder recorder = new UARTTraceRecorder("/trace/bc28.trc", 4096);
+ * TiBC28 bc28 = new TiBC28(recorder.wrap(new TiUartInputStream(uart)),
+ *         recorder.wrap(new TiUartOutputStream(uart)));
+ * timer.schedule(recorder, 1000, 1000);
+ * </pre>
+ *
+ * @author lemon
+ */
+public class UARTTraceRecorder extends TimerTask {
+
+    public static final int RX = 0;
+    public static final int TX = 1;
+
+    static final byte[] MAGIC = {'B', 'C', 'T', 'R'};
+    static final int VERSION = 1;
+
+    static final int RECORD_HEADER_SIZE = 7;
+
+    private RandomAccessFile file;
+
+    private long start = System.currentTimeMillis();
+
+    // buffer being filled and buffer waiting to be written
+    private byte[] active;
+    private int activeLength = 0;
+    private byte[] full;
+    private int fullLength = 0;
+
+    // header of the last record in the active buffer, -1 if none
+    private int lastRecord = -1;
+    private int lastDirection;
+    private int lastTime;
+
+    private boolean closed = false;
+
+    // statistics
+    private long recorded = 0;
+    private long dropped = 0;
+    private int flushes = 0;
+
+    /**
+     * @param path       capture file, truncated if it exists
+     * @param bufferSize size of each of the two buffers
+     * @throws IOException
+     */
+    public UARTTraceRecorder(String path, int bufferSize) throws IOException {
+        if (bufferSize < RECORD_HEADER_SIZE + 16)
+            throw new IllegalArgumentException("Buffer too small");
+
+        this.active = new byte[bufferSize];
+        this.full = new byte[bufferSize];
+
+        this.file = new RandomAccessFile(new File(path), "rw");
+        this.file.setLength(0);
+        this.file.write(MAGIC);
+        this.file.write(VERSION);
+    }
+
+    /**
+     * Record what is read from the stream
+     *
+     * @param input stream from the module
+     * @return stream to pass to TiBC28
+     */
+    public InputStream wrap(final InputStream input) {
+        return new InputStream() {
+            private byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                int n = this.read(this.single, 0, 1);
+                return n <= 0 ? -1 : this.single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = input.read(b, off, len);
+                if (n > 0)
+                    record(RX, b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return input.available();
+            }
+        };
+    }
+
+    /**
+     * Record what is written to the stream
+     *
+     * @param output stream to the module
+     * @return stream to pass to TiBC28
+     */
+    public OutputStream wrap(final OutputStream output) {
+        return new OutputStream() {
+            private byte[] single = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                this.single[0] = (byte) b;
+                this.write(this.single, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+                record(TX, b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                output.flush();
+            }
+        };
+    }
+
+    /**
+     * Append bytes to the active buffer, bytes of the same direction within
+     * the same millisecond extend the last record
+     */
+    synchronized void record(int direction, byte[] b, int off, int len) {
+        if (this.closed)
+            return;
+
+        int time = (int) (System.currentTimeMillis() - this.start);
+        while (len > 0) {
+            if (this.lastRecord >= 0 && direction == this.lastDirection && time == this.lastTime) {
+                int pos = this.lastRecord + 5;
+                int length = ((this.active[pos] & 0xFF) << 8) | (this.active[pos + 1] & 0xFF);
+                int n = Math.min(len, Math.min(0xFFFF - length, this.active.length - this.activeLength));
+                if (n > 0) {
+                    System.arraycopy(b, off, this.active, this.activeLength, n);
+                    this.activeLength += n;
+                    length += n;
+                    this.active[pos] = (byte) (length >> 8);
+                    this.active[pos + 1] = (byte) length;
+                    this.recorded += n;
+                    off += n;
+                    len -= n;
+                    continue;
+                }
+            }
+
+            if (this.active.length - this.activeLength < RECORD_HEADER_SIZE + 1 && !this.swap()) {
+                this.dropped += len;
+                return;
+            }
+
+            int n = Math.min(len, this.active.length - this.activeLength - RECORD_HEADER_SIZE);
+            int pos = this.activeLength;
+            this.active[pos] = (byte) direction;
+            this.active[pos + 1] = (byte) (time >> 24);
+            this.active[pos + 2] = (byte) (time >> 16);
+            this.active[pos + 3] = (byte) (time >> 8);
+            this.active[pos + 4] = (byte) time;
+            this.active[pos + 5] = (byte) (n >> 8);
+            this.active[pos + 6] = (byte) n;
+            System.arraycopy(b, off, this.active, pos + RECORD_HEADER_SIZE, n);
+
+            this.lastRecord = pos;
+            this.lastDirection = direction;
+            this.lastTime = time;
+
+            this.activeLength += RECORD_HEADER_SIZE + n;
+            this.recorded += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Hand the active buffer over to flush, must hold the lock
+     *
+     * @return false if the other buffer is not written yet
+     */
+    private boolean swap() {
+        if (this.fullLength > 0)
+            return false;
+
+        byte[] temp = this.full;
+        this.full = this.active;
+        this.fullLength = this.activeLength;
+        this.active = temp;
+        this.activeLength = 0;
+        this.lastRecord = -1;
+        return true;
+    }
+
+    /**
+     * Write the recorded bytes to the file
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        // one flush at a time, the full buffer is owned by it until fullLength is cleared
+        synchronized (this.file) {
+            while (true) {
+                byte[] buffer;
+                int length;
+                synchronized (this) {
+                    if (this.fullLength == 0 && this.activeLength > 0)
+                        this.swap();
+
+                    buffer = this.full;
+                    length = this.fullLength;
+                }
+
+                if (length == 0)
+                    return;
+
+                this.file.write(buffer, 0, length);
+
+                synchronized (this) {
+                    this.fullLength = 0;
+                    this.flushes++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Periodic flush
+     */
+    @Override
+    public void run() {
+        try {
+            this.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop recording, write what is left and close the file
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.cancel();
+        synchronized (this) {
+            this.closed = true;
+        }
+        this.flush();
+        this.file.close();
+    }
+
+    /**
+     * Number of bytes recorded
+     *
+     * @return
+     */
+    public synchronized long getRecordedBytes() {
+        return this.recorded;
+    }
+
+    /**
+     * Number of bytes dropped because both buffers were full
+     *
+     * @return
+     */
+    public synchronized long getDroppedBytes() {
+        return this.dropped;
+    }
+
+    public synchronized int getFlushCount() {
+        return this.flushes;
+    }
+}
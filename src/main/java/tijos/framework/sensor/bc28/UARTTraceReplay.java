@@ -0,0 +1,375 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Feeds a capture of UARTTraceRecorder back to the driver
+ * The received bytes are delivered through getInputStream with the recorded
+ * gaps divided by the speed factor. A received record is held back until the
+ * driver has written the bytes sent before it in the capture, so responses
+ * never overtake their commands. What the driver writes is compared with the
+ * recorded bytes, a difference means the driver took another path than in
+ * the capture.
+ *
+ * <pre>
+ * UARTTraceReplay replay = new UARTTraceReplay("bc28.trc", 10);
+ * TiBC28 bc28 = new TiBC28(replay.getInputStream(), replay.getOutputStream());
+ * // same application calls as during the capture
+ * replay.awaitEnd(60000);
+ * </pre>
+ *
+ * @author lemon
+ */
+public class UARTTraceReplay {
+
+    // max time in ms read(byte[], int, int) waits for the next received record
+    private static final int READ_TIMEOUT = 100;
+
+    // max time in ms a received record waits for the preceding sent bytes
+    private int syncTimeout = 5000;
+
+    private byte[] trace;
+    // end of the last complete record
+    private int traceLength;
+    // bytes of a record cut short at the end of the capture
+    private int truncated = 0;
+
+    private int speed;
+
+    // next record delivered by the input stream
+    private int cursor;
+    private int recordPos = 0;
+    // sent bytes in the capture before the cursor
+    private long txBefore = 0;
+
+    // capture time and wall time the delays are counted from
+    private int anchorTime = 0;
+    private long anchorWall;
+    // time of the last sent record passed by the cursor, the next anchor
+    private int pendingAnchor = -1;
+    // when the cursor started waiting for sent bytes, 0 if not waiting
+    private long syncStart = 0;
+
+    // comparison of the sent bytes, walks the TX records
+    private int txRecord;
+    private int txPos = 0;
+    private long txWritten = 0;
+    private long lastWrite = 0;
+    private long mismatches = 0;
+    private long firstMismatch = -1;
+
+    private boolean finished = false;
+
+    private InputStream input = new InputStream() {
+        private byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int n;
+            while ((n = this.read(this.single, 0, 1)) == 0) {
+                if (isFinished())
+                    return -1;
+            }
+            return this.single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return receive(b, off, len, READ_TIMEOUT);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return receive(null, 0, 0, 0);
+        }
+    };
+
+    private OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            compare((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                compare(b[off + i]);
+            }
+        }
+    };
+
+    /**
+     * A record cut short at the end of the capture, e.g. by a reset while it
+     * was written, is dropped
+     *
+     * @param path  capture file of UARTTraceRecorder
+     * @param speed 1 for the original timing, n for n times faster, 0 to
+     *              deliver the received bytes as soon as the driver sent
+     *              what came before them, URCs may then interleave with the
+     *              commands differently than in the capture
+     * @throws IOException if the file is not a capture
+     */
+    public UARTTraceReplay(String path, int speed) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+        try {
+            this.traceLength = (int) file.length();
+            this.trace = new byte[this.traceLength];
+            file.readFully(this.trace);
+        } finally {
+            file.close();
+        }
+
+        int header = UARTTraceRecorder.MAGIC.length + 1;
+        for (int i = 0; i < UARTTraceRecorder.MAGIC.length; i++) {
+            if (this.traceLength < header || this.trace[i] != UARTTraceRecorder.MAGIC[i])
+                throw new IOException("Not a trace file");
+        }
+        if (this.trace[UARTTraceRecorder.MAGIC.length] != UARTTraceRecorder.VERSION)
+            throw new IOException("Unsupported trace version");
+
+        int end = header;
+        while (end + UARTTraceRecorder.RECORD_HEADER_SIZE <= this.traceLength
+                && end + UARTTraceRecorder.RECORD_HEADER_SIZE + length(end) <= this.traceLength) {
+            end += UARTTraceRecorder.RECORD_HEADER_SIZE + length(end);
+        }
+        this.truncated = this.traceLength - end;
+        this.traceLength = end;
+
+        this.speed = speed;
+        this.cursor = header;
+        this.txRecord = this.nextRecord(header, UARTTraceRecorder.TX);
+        this.anchorWall = System.currentTimeMillis();
+    }
+
+    /**
+     * Max time in ms a received record waits for the bytes the driver should
+     * send before it, the replay goes on without them afterwards
+     *
+     * @param timeout
+     */
+    public void setSyncTimeout(int timeout) {
+        this.syncTimeout = timeout;
+    }
+
+    /**
+     * Stream of the received bytes, read(byte[], int, int) returns 0 when
+     * nothing is due within a short timeout
+     *
+     * @return
+     */
+    public InputStream getInputStream() {
+        return this.input;
+    }
+
+    /**
+     * Stream taking the bytes the driver writes
+     *
+     * @return
+     */
+    public OutputStream getOutputStream() {
+        return this.output;
+    }
+
+    /**
+     * Check if all received bytes of the capture were delivered
+     *
+     * @return
+     */
+    public synchronized boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Wait until all received bytes of the capture were delivered
+     *
+     * @param timeout max time in ms
+     * @return true if finished
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitEnd(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (!this.finished) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            this.wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Number of bytes written by the driver
+     *
+     * @return
+     */
+    public synchronized long getWrittenBytes() {
+        return this.txWritten;
+    }
+
+    /**
+     * Number of written bytes that differ from the capture, including bytes
+     * written beyond the end of the capture
+     *
+     * @return
+     */
+    public synchronized long getMismatchCount() {
+        return this.mismatches;
+    }
+
+    /**
+     * Number of bytes at the end of the capture dropped as an incomplete
+     * record
+     *
+     * @return
+     */
+    public int getTruncatedBytes() {
+        return this.truncated;
+    }
+
+    /**
+     * Offset in the sent bytes of the first difference
+     *
+     * @return -1 if none
+     */
+    public synchronized long getFirstMismatch() {
+        return this.firstMismatch;
+    }
+
+    private synchronized void compare(byte b) {
+        if (this.txRecord >= 0 && this.txPos == length(this.txRecord)) {
+            this.txRecord = this.nextRecord(this.txRecord + UARTTraceRecorder.RECORD_HEADER_SIZE
+                    + length(this.txRecord), UARTTraceRecorder.TX);
+            this.txPos = 0;
+        }
+
+        if (this.txRecord < 0 || this.trace[this.txRecord + UARTTraceRecorder.RECORD_HEADER_SIZE + this.txPos] != b) {
+            if (this.firstMismatch < 0)
+                this.firstMismatch = this.txWritten;
+            this.mismatches++;
+        }
+
+        if (this.txRecord >= 0)
+            this.txPos++;
+        this.txWritten++;
+        this.lastWrite = System.currentTimeMillis();
+        this.notifyAll();
+    }
+
+    /**
+     * Copy the due received bytes
+     *
+     * @param b       destination, null to count the due bytes only
+     * @param timeout max time in ms to wait for due bytes
+     * @return number of bytes, 0 if nothing is due
+     */
+    private synchronized int receive(byte[] b, int off, int len, int timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait = this.advance(now);
+            if (wait == 0) {
+                int avail = length(this.cursor) - this.recordPos;
+                if (b == null)
+                    return avail;
+
+                int n = Math.min(len, avail);
+                System.arraycopy(this.trace, this.cursor + UARTTraceRecorder.RECORD_HEADER_SIZE + this.recordPos, b,
+                        off, n);
+                this.recordPos += n;
+                return n;
+            }
+
+            long left = end - now;
+            if (left <= 0)
+                return 0;
+
+            try {
+                this.wait(Math.min(left, wait));
+            } catch (InterruptedException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Move the cursor to the next received record and check if it is due,
+     * must hold the lock
+     *
+     * @return 0 if received bytes are due, else the time in ms to wait
+     */
+    private long advance(long now) {
+        while (true) {
+            if (this.cursor >= this.traceLength) {
+                if (!this.finished) {
+                    this.finished = true;
+                    this.notifyAll();
+                }
+                return READ_TIMEOUT;
+            }
+
+            int length = length(this.cursor);
+            if (this.recordPos == length) {
+                // record done
+                this.cursor += UARTTraceRecorder.RECORD_HEADER_SIZE + length;
+                this.recordPos = 0;
+                continue;
+            }
+
+            if (this.trace[this.cursor] == UARTTraceRecorder.TX) {
+                // the driver has to send these bytes before what follows is received
+                this.txBefore += length;
+                this.pendingAnchor = time(this.cursor);
+                this.recordPos = length;
+                continue;
+            }
+
+            if (this.txWritten < this.txBefore) {
+                if (this.syncStart == 0)
+                    this.syncStart = now;
+                if (now - this.syncStart < this.syncTimeout)
+                    return 10;
+            }
+            this.syncStart = 0;
+
+            if (this.pendingAnchor >= 0) {
+                // the gap after a command counts from the moment the driver wrote it
+                this.anchorTime = this.pendingAnchor;
+                this.anchorWall = this.txWritten == this.txBefore ? this.lastWrite : now;
+                this.pendingAnchor = -1;
+            }
+
+            if (this.speed == 0)
+                return 0;
+
+            long due = this.anchorWall + (time(this.cursor) - this.anchorTime) / this.speed;
+            return due <= now ? 0 : due - now;
+        }
+    }
+
+    /**
+     * Position of the next record of the direction at or after pos
+     *
+     * @return -1 if none
+     */
+    private int nextRecord(int pos, int direction) {
+        while (pos < this.traceLength) {
+            if (this.trace[pos] == direction)
+                return pos;
+            pos += UARTTraceRecorder.RECORD_HEADER_SIZE + length(pos);
+        }
+        return -1;
+    }
+
+    private int length(int pos) {
+        return ((this.trace[pos + 5] & 0xFF) << 8) | (this.trace[pos + 6] & 0xFF);
+    }
+
+    private int time(int pos) {
+        return ((this.trace[pos + 1] & 0xFF) << 24) | ((this.trace[pos + 2] & 0xFF) << 16)
+                | ((this.trace[pos + 3] & 0xFF) << 8) | (this.trace[pos + 4] & 0xFF);
+    }
+}
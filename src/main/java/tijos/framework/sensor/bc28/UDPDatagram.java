@@ -0,0 +1,110 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Received UDP datagram, the object and its buffers are reused for the next
+ * datagram, copy what you need before returning from the listener
+ *
+ * @author lemon
+ */
+public class UDPDatagram {
+
+    int socketId;
+
+    // remote address in ASCII
+    byte[] address = new byte[40];
+    int addressLength;
+
+    int port;
+
+    byte[] data;
+    int offset;
+    int length;
+
+    // number of bytes still buffered in the module
+    int remaining;
+
+    public UDPDatagram(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    public int getSocketId() {
+        return this.socketId;
+    }
+
+    /**
+     * Remote address, a new string is created on each call
+     *
+     * @return
+     */
+    public String getAddress() {
+        return new String(this.address, 0, this.addressLength);
+    }
+
+    public byte[] getAddressBuffer() {
+        return this.address;
+    }
+
+    public int getAddressLength() {
+        return this.addressLength;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Payload buffer, valid from getOffset() for getLength() bytes
+     *
+     * @return
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Bytes still buffered in the module for this socket
+     *
+     * @return
+     */
+    public int getRemaining() {
+        return this.remaining;
+    }
+
+    /**
+     * Copy another datagram into this one
+     *
+     * @param other
+     */
+    public void copyFrom(UDPDatagram other) {
+        this.socketId = other.socketId;
+        this.setAddress(other.address, 0, other.addressLength);
+        this.port = other.port;
+
+        this.ensureCapacity(other.length);
+        System.arraycopy(other.data, other.offset, this.data, 0, other.length);
+        this.offset = 0;
+        this.length = other.length;
+        this.remaining = other.remaining;
+    }
+
+    void setAddress(byte[] buf, int off, int len) {
+        if (len > this.address.length)
+            len = this.address.length;
+
+        System.arraycopy(buf, off, this.address, 0, len);
+        this.addressLength = len;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (this.data.length < capacity)
+            this.data = new byte[capacity];
+    }
+}
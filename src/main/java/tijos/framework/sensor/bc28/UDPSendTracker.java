@@ -0,0 +1,115 @@
+package tijos.framework.sensor.bc28;
+
+/**
+ * Outstanding UDP datagrams sent with a sequence number
+ * The module reports +NSOSTR:&lt;socket&gt;,&lt;seq&gt;,&lt;status&gt; once the
+ * datagram went over the air or was given up. Sequences run from 1 to 255
+ * and are not reused while a datagram with the same sequence is outstanding.
+ *
+ * @author lemon
+ */
+public class UDPSendTracker {
+
+    public static final int MAX_SEQ = 255;
+
+    private int[] sockets;
+    private int[] seqs;
+    private int count = 0;
+
+    private int nextSeq = 1;
+
+    private IUDPSendListener listener;
+
+    public UDPSendTracker(int capacity) {
+        this.sockets = new int[capacity];
+        this.seqs = new int[capacity];
+    }
+
+    public void setListener(IUDPSendListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Number of datagrams waiting for +NSOSTR
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return this.count;
+    }
+
+    /**
+     * Register a new datagram
+     *
+     * @param socketId
+     * @return sequence of the datagram, -1 if too many are outstanding
+     */
+    public synchronized int add(int socketId) {
+        if (this.count == this.seqs.length)
+            return -1;
+
+        int seq;
+        do {
+            seq = this.nextSeq;
+            this.nextSeq = seq == MAX_SEQ ? 1 : seq + 1;
+        } while (this.indexOf(socketId, seq) >= 0);
+
+        this.sockets[this.count] = socketId;
+        this.seqs[this.count] = seq;
+        this.count++;
+        return seq;
+    }
+
+    /**
+     * The datagram was rejected by the module, no report will come for it
+     */
+    public void reject(int socketId, int seq) {
+        if (this.remove(socketId, seq))
+            notifyResult(socketId, seq, false);
+    }
+
+    /**
+     * The datagram was never written to the module, it is dropped silently
+     */
+    public void cancel(int socketId, int seq) {
+        this.remove(socketId, seq);
+    }
+
+    /**
+     * +NSOSTR report
+     *
+     * @param socketId
+     * @param seq
+     * @param status 1 - sent, 0 - failed
+     */
+    public void onReport(int socketId, int seq, int status) {
+        if (this.remove(socketId, seq))
+            notifyResult(socketId, seq, status == 1);
+    }
+
+    private synchronized boolean remove(int socketId, int seq) {
+        int pos = this.indexOf(socketId, seq);
+        if (pos < 0)
+            return false;
+
+        // order does not matter, the last entry fills the gap
+        this.count--;
+        this.sockets[pos] = this.sockets[this.count];
+        this.seqs[pos] = this.seqs[this.count];
+        return true;
+    }
+
+    private int indexOf(int socketId, int seq) {
+        for (int i = 0; i < this.count; i++) {
+            if (this.seqs[i] == seq && this.sockets[i] == socketId)
+                return i;
+        }
+        return -1;
+    }
+
+    private void notifyResult(int socketId, int seq, boolean sent) {
+        IUDPSendListener l = this.listener;
+        if (l != null)
+            l.onUDPSendResult(socketId, seq, sent);
+    }
+}
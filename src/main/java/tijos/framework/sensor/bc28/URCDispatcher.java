@@ -0,0 +1,116 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Routes unsolicited result codes to their handlers by the leading prefix of
+ * the line, e.g. "+NSONMI:"
+ * The prefixes are kept in a byte trie, a line is classified in one pass over
+ * its first bytes and the longest registered prefix wins, so "+NSMI:",
+ * "+NSONMI:" and "+NSOSTR:" or "+NPING:" and "+NPINGERR:" never shadow each
+ * other whatever the order of registration.
+ *
+ * @author lemon
+ */
+public class URCDispatcher {
+
+    private static class Node {
+        // next bytes and their nodes, searched linearly as a node has few children,
+        // keys is written last so that a reader seeing a key sees its child
+        volatile byte[] keys = new byte[0];
+        Node[] children = new Node[0];
+
+        volatile IURCHandler handler;
+        int type;
+        int prefixLength;
+    }
+
+    private Node root = new Node();
+
+    private BC28Metrics metrics;
+
+    /**
+     * @param metrics counts the handled URCs by type, may be null
+     */
+    public void setMetrics(BC28Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register the handler of a URC, replaces the handler of the same prefix
+     *
+     * @param prefix  leading text of the URC including ':', e.g. "+CEREG:"
+     * @param type    BC28Metrics.URC_XXX counted when the handler takes a line
+     * @param handler null to remove the handler
+     */
+    public synchronized void register(String prefix, int type, IURCHandler handler) {
+        if (prefix.length() == 0)
+            throw new IllegalArgumentException("Empty prefix");
+
+        Node node = this.root;
+        for (int i = 0; i < prefix.length(); i++) {
+            byte b = (byte) prefix.charAt(i);
+            Node next = child(node, b);
+            if (next == null) {
+                next = new Node();
+
+                // the reading thread may walk the node, replace the arrays instead of changing them
+                int n = node.keys.length;
+                byte[] keys = new byte[n + 1];
+                Node[] children = new Node[n + 1];
+                System.arraycopy(node.keys, 0, keys, 0, n);
+                System.arraycopy(node.children, 0, children, 0, n);
+                keys[n] = b;
+                children[n] = next;
+
+                node.children = children;
+                node.keys = keys;
+            }
+            node = next;
+        }
+
+        node.type = type;
+        node.prefixLength = prefix.length();
+        node.handler = handler;
+    }
+
+    /**
+     * Pass the line to the handler of its prefix
+     *
+     * @param line line buffer
+     * @param len  line length
+     * @return true if a handler took the line
+     * @throws IOException
+     */
+    public boolean dispatch(byte[] line, int len) throws IOException {
+        Node match = null;
+        Node node = this.root;
+        for (int i = 0; i < len; i++) {
+            node = child(node, line[i]);
+            if (node == null)
+                break;
+
+            if (node.handler != null)
+                match = node;
+        }
+
+        // the handler may be removed meanwhile
+        IURCHandler handler = match == null ? null : match.handler;
+        if (handler == null || !handler.onURC(line, match.prefixLength, len))
+            return false;
+
+        if (this.metrics != null)
+            this.metrics.recordURC(match.type);
+
+        return true;
+    }
+
+    private static Node child(Node node, byte b) {
+        byte[] keys = node.keys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == b)
+                return node.children[i];
+        }
+        return null;
+    }
+}
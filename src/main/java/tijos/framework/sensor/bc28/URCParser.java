@@ -0,0 +1,181 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Field cursor over a received line, parses the comma separated fields of
+ * +NSONMI, +NSORF and +NNMI directly from the line buffer without creating
+ * strings
+ *
+ * @author lemon
+ */
+public class URCParser {
+
+    private byte[] line;
+    private int pos;
+    private int end;
+
+    // bounds of the last field returned by nextField
+    private int fieldStart;
+    private int fieldEnd;
+
+    /**
+     * Check if the line starts with the prefix
+     *
+     * @param line   line buffer
+     * @param len    line length
+     * @param prefix ASCII prefix
+     * @return
+     */
+    public static boolean startsWith(byte[] line, int len, byte[] prefix) {
+        if (len < prefix.length)
+            return false;
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if the line starts with the ASCII prefix
+     *
+     * @param line   line buffer
+     * @param len    line length
+     * @param prefix ASCII prefix
+     * @return
+     */
+    public static boolean startsWith(byte[] line, int len, String prefix) {
+        int n = prefix.length();
+        if (len < n)
+            return false;
+
+        for (int i = 0; i < n; i++) {
+            if (line[i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start parsing a line
+     *
+     * @param line line buffer
+     * @param off  offset of the first field
+     * @param len  line length
+     */
+    public void reset(byte[] line, int off, int len) {
+        this.line = line;
+        this.pos = off;
+        this.end = len;
+    }
+
+    /**
+     * Move to the next comma separated field
+     *
+     * @return length of the field
+     * @throws IOException if no field is left
+     */
+    public int nextField() throws IOException {
+        if (this.pos > this.end)
+            throw new IOException("Wrong response");
+
+        this.fieldStart = this.pos;
+        while (this.pos < this.end && this.line[this.pos] != ',') {
+            this.pos++;
+        }
+        this.fieldEnd = this.pos;
+        this.pos++; // skip ','
+
+        return this.fieldEnd - this.fieldStart;
+    }
+
+    public int fieldStart() {
+        return this.fieldStart;
+    }
+
+    public int fieldLength() {
+        return this.fieldEnd - this.fieldStart;
+    }
+
+    /**
+     * Parse the next field as decimal integer
+     *
+     * @return
+     * @throws IOException
+     */
+    public int nextInt() throws IOException {
+        if (this.nextField() == 0)
+            throw new IOException("Wrong response");
+
+        int value = 0;
+        for (int i = this.fieldStart; i < this.fieldEnd; i++) {
+            int d = this.line[i] - '0';
+            if (d < 0 || d > 9) {
+                if (this.line[i] == ' ')
+                    continue;
+                throw new IOException("Wrong response");
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Decode the next field from hex
+     *
+     * @param dst    destination buffer
+     * @param dstOff offset in destination
+     * @return number of bytes decoded
+     * @throws IOException
+     */
+    public int nextHex(byte[] dst, int dstOff) throws IOException {
+        int len = this.nextField();
+        if (dst.length - dstOff < len / 2)
+            throw new IOException("Buffer too small");
+
+        int n = HexCodec.decode(this.line, this.fieldStart, len, dst, dstOff);
+        if (n < 0)
+            throw new IOException("Wrong response");
+
+        return n;
+    }
+
+    /**
+     * Hex length of the next field without moving the cursor
+     *
+     * @return
+     */
+    public int peekFieldLength() {
+        int p = this.pos;
+        while (p < this.end && this.line[p] != ',') {
+            p++;
+        }
+        return p - this.pos;
+    }
+
+    /**
+     * Parse +NSORF response "socket,ip,port,length,data,remaining" into the
+     * datagram, the payload is decoded into the datagram's own buffer
+     *
+     * @param line     line buffer
+     * @param len      line length
+     * @param datagram reusable datagram
+     * @throws IOException
+     */
+    public void parseDatagram(byte[] line, int len, UDPDatagram datagram) throws IOException {
+        this.reset(line, 0, len);
+
+        datagram.socketId = this.nextInt();
+        int addrLen = this.nextField();
+        datagram.setAddress(line, this.fieldStart, addrLen);
+        datagram.port = this.nextInt();
+        int length = this.nextInt();
+
+        datagram.ensureCapacity(length);
+        datagram.length = this.nextHex(datagram.data, 0);
+        datagram.offset = 0;
+        datagram.remaining = this.nextInt();
+    }
+}
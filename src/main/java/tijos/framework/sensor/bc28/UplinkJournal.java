@@ -0,0 +1,513 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.TimerTask;
+
+/**
+ * Store-and-forward journal of uplinks
+ * Payloads are appended to segment files first and sent in batches once the
+ * module is registered again, so that readings taken during a coverage gap
+ * are not lost. The journal is bounded, when it is full the oldest segment is
+ * dropped. Each record carries a CRC, a record torn by a power loss is
+ * detected and skipped on replay. The read position is saved after every
+ * batch, so a restart resends at most one batch. A batch is queued to the
+ * module under the journal lock and waited for outside of it, append does not
+ * wait for the module.
+ * coapSend and udpSend still fail with IOException and do not write to the
+ * journal, readings that must survive a coverage gap are appended here
+ * instead of sent directly.
+ *
+ * <pre>
+ * record: 0xA5, length (2 bytes), CRC-16/CCITT of the payload (2 bytes), payload
+ *
+ * UplinkJournal journal = new UplinkJournal(bc28, "/journal", 4096, 8);
+ * journal.setUDPTarget(socketId, "10.0.0.1", 9000);
+ * timer.schedule(journal, 1000, 5000);
+ * journal.append(data, 0, data.length);
+ * </pre>
+ *
+ * @author lemon
+ */
+public class UplinkJournal extends TimerTask {
+
+    private static final int MAGIC = 0xA5;
+    private static final int HEADER_SIZE = 5;
+
+    // readRecord results
+    private static final int END = -1;
+    private static final int CORRUPTED = -2;
+
+    private static final String PREFIX = "uplink.";
+    private static final String SUFFIX = ".jnl";
+
+    private TiBC28 modem;
+
+    private String dir;
+    private int segmentSize;
+    private int maxSegments;
+
+    // oldest and newest segment numbers
+    private int firstSegment = 0;
+    private int lastSegment = 0;
+
+    private RandomAccessFile writer;
+    private int writePos = 0;
+
+    // next record to send
+    private RandomAccessFile reader;
+    private int readSegment = 0;
+    private int readPos = 0;
+
+    private RandomAccessFile position;
+
+    private byte[] header = new byte[HEADER_SIZE];
+    private byte[] record;
+
+    // where reading continues after a corrupted record
+    private int skipTo;
+
+    // UDP target, CoAP if socketId < 0
+    private int socketId = -1;
+    private String remoteAddr;
+    private int remotePort;
+
+    // one batch at a time, taken before the journal lock
+    private final Object drainLock = new Object();
+    private int batchSize = 4;
+    private ATResponse[] batch;
+    private int[] batchEnds;
+    private int queued = 0;
+
+    // statistics
+    private int appended = 0;
+    private int sent = 0;
+    private int corrupted = 0;
+    private int evicted = 0;
+
+    /**
+     * Open the journal, records left from a previous run are kept
+     *
+     * @param modem       driver
+     * @param dir         directory of the segment files
+     * @param segmentSize max size of a segment file in bytes
+     * @param maxSegments max number of segment files, the journal holds up to
+     *                    segmentSize * maxSegments bytes
+     * @throws IOException
+     */
+    public UplinkJournal(TiBC28 modem, String dir, int segmentSize, int maxSegments) throws IOException {
+        this.modem = modem;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.record = new byte[TiBC28.MAX_DATAGRAM_SIZE];
+        this.setBatchSize(this.batchSize);
+
+        new File(dir).mkdirs();
+        this.scan();
+
+        this.position = new RandomAccessFile(new File(dir, "uplink.pos"), "rw");
+        if (this.position.length() >= 8) {
+            this.readSegment = this.position.readInt();
+            this.readPos = this.position.readInt();
+        }
+        if (this.readSegment < this.firstSegment || this.readSegment > this.lastSegment) {
+            this.readSegment = this.firstSegment;
+            this.readPos = 0;
+        }
+
+        this.openWriter();
+    }
+
+    /**
+     * Send the payloads as UDP datagrams
+     *
+     * @param socketId   socket created by createUDPSocket
+     * @param remoteAddr remote IP
+     * @param remotePort remote port
+     */
+    public synchronized void setUDPTarget(int socketId, String remoteAddr, int remotePort) {
+        this.socketId = socketId;
+        this.remoteAddr = remoteAddr;
+        this.remotePort = remotePort;
+    }
+
+    /**
+     * Send the payloads as CoAP messages to the CDP server (default)
+     */
+    public synchronized void setCoapTarget() {
+        this.socketId = -1;
+    }
+
+    /**
+     * Number of records sent back-to-back in one batch
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        synchronized (this.drainLock) {
+            synchronized (this) {
+                this.batchSize = batchSize;
+                this.batch = new ATResponse[batchSize];
+                this.batchEnds = new int[batchSize];
+            }
+        }
+    }
+
+    /**
+     * Store a payload, it is sent when the module is registered
+     *
+     * @param data
+     * @param off
+     * @param len  up to 512 bytes
+     * @throws IOException
+     */
+    public synchronized void append(byte[] data, int off, int len) throws IOException {
+        if (len > this.record.length)
+            throw new IOException("Payload too big");
+
+        if (this.writePos + HEADER_SIZE + len > this.segmentSize && this.writePos > 0)
+            this.roll();
+
+        int crc = crc16(data, off, len);
+        this.header[0] = (byte) MAGIC;
+        this.header[1] = (byte) (len >> 8);
+        this.header[2] = (byte) len;
+        this.header[3] = (byte) (crc >> 8);
+        this.header[4] = (byte) crc;
+
+        this.writer.seek(this.writePos);
+        this.writer.write(this.header, 0, HEADER_SIZE);
+        this.writer.write(data, off, len);
+        this.writePos += HEADER_SIZE + len;
+        this.appended++;
+    }
+
+    /**
+     * Check if records are waiting to be sent
+     *
+     * @return
+     */
+    public synchronized boolean isEmpty() {
+        return this.readSegment == this.lastSegment && this.readPos >= this.writePos;
+    }
+
+    public synchronized int getAppendedCount() {
+        return this.appended;
+    }
+
+    public synchronized int getSentCount() {
+        return this.sent;
+    }
+
+    /**
+     * Number of records skipped because of a wrong CRC or a torn write
+     *
+     * @return
+     */
+    public synchronized int getCorruptedCount() {
+        return this.corrupted;
+    }
+
+    /**
+     * Number of segments dropped unsent because the journal was full
+     *
+     * @return
+     */
+    public synchronized int getEvictedCount() {
+        return this.evicted;
+    }
+
+    /**
+     * Periodic check, drains the journal while the module is registered
+     */
+    @Override
+    public void run() {
+        if (this.modem.getNetworkStateManager().getState() < NetworkStateManager.STATE_REGISTERED)
+            return;
+
+        try {
+            while (this.drainBatch() > 0) {
+                if (this.modem.getNetworkStateManager().getState() < NetworkStateManager.STATE_REGISTERED)
+                    break;
+            }
+        } catch (IOException ex) {
+            // send failed, retried with the next run
+        }
+    }
+
+    /**
+     * Send one batch of records, the read position advances over the records
+     * accepted by the module
+     *
+     * @return number of records sent
+     * @throws IOException if a record was refused
+     */
+    public int drainBatch() throws IOException {
+        synchronized (this.drainLock) {
+            IOException full = null;
+            int segment;
+            synchronized (this) {
+                this.queued = 0;
+                try {
+                    this.queueBatch();
+                } catch (IOException ex) {
+                    // command queue full, the records queued so far are committed
+                    full = ex;
+                }
+                segment = this.readSegment;
+            }
+
+            // the module is waited for without the journal lock
+            IOException failure = null;
+            int accepted = 0;
+            for (int i = 0; i < this.queued; i++) {
+                ATResponse resp = this.batch[i];
+                this.batch[i] = null;
+                if (failure != null) {
+                    // sent again with the next batch
+                    this.modem.cancelCommand(resp);
+                    continue;
+                }
+
+                try {
+                    this.modem.await(resp);
+                    accepted++;
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+
+            // commit the records in order up to the first failure
+            synchronized (this) {
+                // unless the segment was dropped by append meanwhile
+                if (accepted > 0 && this.readSegment == segment)
+                    this.readPos = this.batchEnds[accepted - 1];
+
+                this.sent += accepted;
+                this.savePosition();
+            }
+
+            if (failure != null)
+                throw failure;
+            if (full != null)
+                throw full;
+
+            return this.queued;
+        }
+    }
+
+    /**
+     * Queue the next records to the module, must hold the journal lock
+     */
+    private void queueBatch() throws IOException {
+        int pos = this.readPos;
+        while (this.queued < this.batchSize) {
+            int len = this.readRecord(pos);
+            if (len == CORRUPTED) {
+                // the batch so far is committed first, then the record is skipped
+                if (this.queued > 0)
+                    break;
+
+                this.corrupted++;
+                this.readPos = pos = this.skipTo;
+                continue;
+            }
+
+            if (len == END) {
+                if (this.queued > 0 || !this.nextSegment())
+                    break;
+
+                pos = this.readPos;
+                continue;
+            }
+
+            // the record is hex encoded into the command, the buffer can be reused at once
+            if (this.socketId < 0) {
+                this.batch[this.queued] = this.modem.coapSendRawAsync(this.record, 0, len, null);
+            } else {
+                this.batch[this.queued] = this.modem.udpSendAsync(this.socketId, this.remoteAddr, this.remotePort,
+                        this.record, 0, len, null);
+            }
+
+            pos += HEADER_SIZE + len;
+            this.batchEnds[this.queued++] = pos;
+        }
+    }
+
+    /**
+     * Read the record at pos of the read segment into the record buffer
+     *
+     * @return payload length, END at the end of the segment or CORRUPTED
+     */
+    private int readRecord(int pos) throws IOException {
+        if (this.reader == null)
+            return END;
+
+        int end = this.readSegment == this.lastSegment ? this.writePos : (int) this.reader.length();
+        if (pos + HEADER_SIZE > end)
+            return END;
+
+        this.reader.seek(pos);
+        this.reader.readFully(this.header, 0, HEADER_SIZE);
+
+        int len = ((this.header[1] & 0xFF) << 8) | (this.header[2] & 0xFF);
+        int crc = ((this.header[3] & 0xFF) << 8) | (this.header[4] & 0xFF);
+        if ((this.header[0] & 0xFF) != MAGIC || len > this.record.length || pos + HEADER_SIZE + len > end) {
+            // no way to find the next record, skip the rest of the segment
+            this.skipTo = end;
+            return CORRUPTED;
+        }
+
+        this.reader.readFully(this.record, 0, len);
+        if (crc16(this.record, 0, len) != crc) {
+            this.skipTo = pos + HEADER_SIZE + len;
+            return CORRUPTED;
+        }
+
+        return len;
+    }
+
+    /**
+     * Move to the next segment when the read segment is used up
+     *
+     * @return false if the read segment is the newest one
+     */
+    private boolean nextSegment() throws IOException {
+        if (this.readSegment >= this.lastSegment)
+            return false;
+
+        if (this.reader != null) {
+            this.reader.close();
+            this.reader = null;
+        }
+        segmentFile(this.readSegment).delete();
+
+        this.readSegment++;
+        this.readPos = 0;
+        this.firstSegment = this.readSegment;
+        this.openReader();
+        this.savePosition();
+        return true;
+    }
+
+    /**
+     * Start a new segment, drop the oldest one if the journal is full
+     */
+    private void roll() throws IOException {
+        this.writer.close();
+        this.lastSegment++;
+        this.writePos = 0;
+
+        while (this.lastSegment - this.firstSegment + 1 > this.maxSegments) {
+            if (this.readSegment == this.firstSegment) {
+                if (this.reader != null) {
+                    this.reader.close();
+                    this.reader = null;
+                }
+                this.readSegment++;
+                this.readPos = 0;
+            }
+
+            segmentFile(this.firstSegment).delete();
+            this.firstSegment++;
+            this.evicted++;
+        }
+
+        this.openWriter();
+        this.savePosition();
+    }
+
+    private void openWriter() throws IOException {
+        this.writer = new RandomAccessFile(segmentFile(this.lastSegment), "rw");
+        if (this.readSegment == this.lastSegment || this.reader == null)
+            this.openReader();
+    }
+
+    private void openReader() throws IOException {
+        if (this.reader != null)
+            this.reader.close();
+
+        File file = segmentFile(this.readSegment);
+        this.reader = file.exists() ? new RandomAccessFile(file, "r") : null;
+    }
+
+    private void savePosition() throws IOException {
+        this.position.seek(0);
+        this.position.writeInt(this.readSegment);
+        this.position.writeInt(this.readPos);
+    }
+
+    /**
+     * Find the segments left from a previous run, the valid end of the newest
+     * one is where appending continues
+     */
+    private void scan() throws IOException {
+        String[] names = new File(this.dir).list();
+        boolean found = false;
+
+        for (int i = 0; names != null && i < names.length; i++) {
+            String name = names[i];
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+                continue;
+
+            int n;
+            try {
+                n = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+
+            if (!found || n < this.firstSegment)
+                this.firstSegment = n;
+            if (!found || n > this.lastSegment)
+                this.lastSegment = n;
+            found = true;
+        }
+
+        if (!found)
+            return;
+
+        // drop a record torn by a power loss at the end of the newest segment
+        RandomAccessFile file = new RandomAccessFile(segmentFile(this.lastSegment), "r");
+        try {
+            int length = (int) file.length();
+            int pos = 0;
+            while (pos + HEADER_SIZE <= length) {
+                file.seek(pos);
+                file.readFully(this.header, 0, HEADER_SIZE);
+                int len = ((this.header[1] & 0xFF) << 8) | (this.header[2] & 0xFF);
+                if ((this.header[0] & 0xFF) != MAGIC || pos + HEADER_SIZE + len > length)
+                    break;
+
+                pos += HEADER_SIZE + len;
+            }
+            this.writePos = pos;
+        } finally {
+            file.close();
+        }
+    }
+
+    private File segmentFile(int n) {
+        return new File(this.dir, PREFIX + n + SUFFIX);
+    }
+
+    /**
+     * CRC-16/CCITT-FALSE
+     */
+    static int crc16(byte[] data, int off, int len) {
+        int crc = 0xFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                if ((crc & 0x8000) != 0) {
+                    crc = (crc << 1) ^ 0x1021;
+                } else {
+                    crc <<= 1;
+                }
+            }
+        }
+        return crc & 0xFFFF;
+    }
+}
@@ -0,0 +1,237 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.util.TimerTask;
+
+/**
+ * Power saving aware uplink scheduler
+ * Payloads are queued and sent in one burst per wake window: when the radio
+ * is already connected, when enough payloads are queued or when the oldest
+ * one has waited too long. The commands of a burst are queued back-to-back,
+ * the last uplink asks the network to release the connection at once instead
+ * of waiting for the inactivity timer.
+ *
+ * <pre>
+ * UplinkScheduler scheduler = new UplinkScheduler(bc28, 8, 64);
+ * scheduler.setUDPTarget(socketId, "10.0.0.1", 9000);
+ * timer.schedule(scheduler, 1000, 1000);
+ * scheduler.submit(data, 0, data.length);
+ * </pre>
+ *
+ * @author lemon
+ */
+public class UplinkScheduler extends TimerTask implements IATResponseListener {
+
+    private TiBC28 modem;
+
+    // queued payloads
+    private byte[][] payloads;
+    private int[] lengths;
+    private int head = 0;
+    private int count = 0;
+
+    private long oldestTime = 0;
+
+    // UDP target, CoAP if socketId < 0
+    private int socketId = -1;
+    private String remoteAddr;
+    private int remotePort;
+
+    private int burstSize;
+    private int maxDelay = 15 * 60 * 1000;
+
+    // statistics, the results are counted in the UART reading thread
+    private final Object counters = new Object();
+    private int bursts = 0;
+    private int sent = 0;
+    private int failed = 0;
+
+    /**
+     * @param modem      driver
+     * @param capacity   max number of queued payloads
+     * @param maxPayload max size of a payload
+     */
+    public UplinkScheduler(TiBC28 modem, int capacity, int maxPayload) {
+        this.modem = modem;
+        this.payloads = new byte[capacity][maxPayload];
+        this.lengths = new int[capacity];
+        this.burstSize = capacity;
+    }
+
+    /**
+     * Send the payloads as UDP datagrams
+     *
+     * @param socketId   socket created by createUDPSocket
+     * @param remoteAddr remote IP
+     * @param remotePort remote port
+     */
+    public synchronized void setUDPTarget(int socketId, String remoteAddr, int remotePort) {
+        this.socketId = socketId;
+        this.remoteAddr = remoteAddr;
+        this.remotePort = remotePort;
+    }
+
+    /**
+     * Send the payloads as CoAP messages to the CDP server (default)
+     */
+    public synchronized void setCoapTarget() {
+        this.socketId = -1;
+    }
+
+    /**
+     * Flush when this number of payloads is queued
+     *
+     * @param burstSize
+     */
+    public synchronized void setBurstSize(int burstSize) {
+        this.burstSize = burstSize;
+    }
+
+    /**
+     * Flush when the oldest payload has waited this long, should be shorter
+     * than the periodic TAU if the data must not wait for the next wake up
+     *
+     * @param maxDelay time in ms
+     */
+    public synchronized void setMaxDelay(int maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Queue a payload, it is copied
+     *
+     * @param data
+     * @param off
+     * @param len
+     * @return false if the queue is full or the payload is too big
+     */
+    public synchronized boolean submit(byte[] data, int off, int len) {
+        if (this.count == this.payloads.length || len > this.payloads[0].length)
+            return false;
+
+        int pos = (this.head + this.count) % this.payloads.length;
+        System.arraycopy(data, off, this.payloads[pos], 0, len);
+        this.lengths[pos] = len;
+
+        if (this.count == 0)
+            this.oldestTime = System.currentTimeMillis();
+
+        this.count++;
+        return true;
+    }
+
+    /**
+     * Number of queued payloads
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return this.count;
+    }
+
+    public int getBurstCount() {
+        synchronized (this.counters) {
+            return this.bursts;
+        }
+    }
+
+    /**
+     * Number of uplinks accepted by the module
+     *
+     * @return
+     */
+    public int getSentCount() {
+        synchronized (this.counters) {
+            return this.sent;
+        }
+    }
+
+    /**
+     * Number of uplinks rejected by the module or not queued because the
+     * command queue was full
+     *
+     * @return
+     */
+    public int getFailedCount() {
+        synchronized (this.counters) {
+            return this.failed;
+        }
+    }
+
+    /**
+     * Result of an uplink command
+     */
+    @Override
+    public void onATResponse(ATResponse response) {
+        synchronized (this.counters) {
+            if (response.getResult() == ATResponse.OK)
+                this.sent++;
+            else
+                this.failed++;
+        }
+    }
+
+    /**
+     * Periodic check, flushes the queue when the radio is awake or a limit is
+     * reached
+     */
+    @Override
+    public void run() {
+        boolean due;
+        synchronized (this) {
+            if (this.count == 0)
+                return;
+
+            due = this.count >= this.burstSize
+                    || System.currentTimeMillis() - this.oldestTime >= this.maxDelay;
+        }
+
+        // the radio is connected anyway, piggyback on the wake window
+        if (!due && this.modem.getNetworkStateManager().getState() != NetworkStateManager.STATE_CONNECTED)
+            return;
+
+        try {
+            this.flush();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Send all queued payloads in one burst
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (this.count == 0)
+            return;
+
+        synchronized (this.counters) {
+            this.bursts++;
+        }
+        while (this.count > 0) {
+            byte[] data = this.payloads[this.head];
+            int len = this.lengths[this.head];
+
+            try {
+                // the last uplink of the burst lets the network release the connection
+                int rai = this.count == 1 ? TiBC28.RAI_RELEASE : TiBC28.RAI_NONE;
+                if (this.socketId < 0) {
+                    this.modem.coapSendAsync(data, 0, len, rai, this);
+                } else {
+                    this.modem.udpSendAsync(this.socketId, this.remoteAddr, this.remotePort, data, 0, len, rai, this);
+                }
+            } catch (IOException ex) {
+                // command queue full, the rest goes with the next burst
+                synchronized (this.counters) {
+                    this.failed++;
+                }
+                this.oldestTime = System.currentTimeMillis();
+                throw ex;
+            }
+
+            this.head = (this.head + 1) % this.payloads.length;
+            this.count--;
+        }
+    }
+}
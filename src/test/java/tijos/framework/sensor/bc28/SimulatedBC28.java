@@ -0,0 +1,710 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+
+/**
+ * Simulated BC28 module for testing TiBC28 on host without a real UART
+ * It answers the AT commands used by the driver, injects URCs and delivers
+ * the bytes no faster than the configured baud rate after a response delay.
+ *
+ * <pre>
+ * SimulatedBC28 sim = new SimulatedBC28(9600);
+ * TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+ * </pre>
+ *
+ * @author lemon
+ */
+public class SimulatedBC28 {
+
+    /**
+     * Bytes from the module, readable from the ready time on
+     */
+    private static class Chunk {
+        final byte[] data;
+        final long ready;
+
+        Chunk(byte[] data, long ready) {
+            this.data = data;
+            this.ready = ready;
+        }
+    }
+
+    /**
+     * Datagram waiting in the module for +NSORF
+     */
+    private static class Datagram {
+        final String ip;
+        final int port;
+        final byte[] data;
+
+        Datagram(String ip, int port, byte[] data) {
+            this.ip = ip;
+            this.port = port;
+            this.data = data;
+        }
+    }
+
+    // bytes from module to driver, each chunk becomes readable at its ready time
+    private Vector<Chunk> chunks = new Vector<Chunk>();
+    private int chunkPos = 0;
+    private long lastReadyTime = 0;
+
+    private int baudRate;
+    private int responseDelay = 5;
+    private int attachDelay = 200;
+
+    // command line being written by the driver
+    private StringBuffer command = new StringBuffer(64);
+    // responses of a concatenated command line, null for a single command
+    private Vector<String> concatenated;
+
+    // scripted responses, command -> lines
+    private Hashtable<String, String[]> scripts = new Hashtable<String, String[]>();
+
+    // datagrams waiting for +NSORF, one queue per socket
+    private Vector<Vector<Datagram>> datagrams = new Vector<Vector<Datagram>>();
+
+    private Timer urcTimer;
+
+    // module state
+    private int cfun = 1;
+    private int cgatt = 1;
+    private int ceregMode = 0;
+    private int cereg = 1;
+    private int csconMode = 0;
+    private int cscon = 0;
+    private int rssi = 20;
+    private boolean nsmi = false;
+    private boolean nnmi = false;
+    // kept over reboot
+    private boolean autoConnect = true;
+    private String ncdp = "180.101.147.115,5683";
+    private boolean udpEcho = false;
+    private int nextSocket = 0;
+    private int coapSent = 0;
+
+    private int commandCount = 0;
+
+    // false when the module hangs and ignores all commands
+    private volatile boolean responding = true;
+
+    private InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            if (read(b, 0, 1) > 0)
+                return b[0] & 0xFF;
+
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readFromModule(b, off, len, 200);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return readyBytes();
+        }
+    };
+
+    private OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            writeToModule((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                writeToModule(b[off + i]);
+            }
+        }
+    };
+
+    /**
+     * @param baudRate UART baud rate, 10 bits per byte
+     */
+    public SimulatedBC28(int baudRate) {
+        this.baudRate = baudRate;
+        for (int i = 0; i < 7; i++) {
+            this.datagrams.addElement(new Vector<Datagram>());
+        }
+    }
+
+    /**
+     * Stream from the module, pass it to TiBC28
+     *
+     * @return
+     */
+    public InputStream getInputStream() {
+        return this.input;
+    }
+
+    /**
+     * Stream to the module, pass it to TiBC28
+     *
+     * @return
+     */
+    public OutputStream getOutputStream() {
+        return this.output;
+    }
+
+    /**
+     * Time in ms the module takes before answering a command
+     *
+     * @param delay
+     */
+    public void setResponseDelay(int delay) {
+        this.responseDelay = delay;
+    }
+
+    /**
+     * Time in ms the module takes to attach after AT+CGATT=1
+     *
+     * @param delay
+     */
+    public void setAttachDelay(int delay) {
+        this.attachDelay = delay;
+    }
+
+    /**
+     * Start with the radio off and detached, like after a cold start with
+     * auto connect disabled
+     */
+    public synchronized void powerOff() {
+        this.cfun = 0;
+        this.cgatt = 0;
+        this.cereg = 0;
+        this.cscon = 0;
+    }
+
+    /**
+     * Start with the factory settings, nothing configured yet
+     */
+    public synchronized void factoryReset() {
+        this.powerOff();
+        this.autoConnect = false;
+        this.ncdp = "";
+    }
+
+    /**
+     * Make the module hang, commands get no answer until it responds again
+     *
+     * @param responding
+     */
+    public void setResponding(boolean responding) {
+        this.responding = responding;
+    }
+
+    public void setRSSI(int rssi) {
+        this.rssi = rssi;
+    }
+
+    /**
+     * Send every uplink datagram back as downlink on the same socket
+     *
+     * @param echo
+     */
+    public void setUDPEcho(boolean echo) {
+        this.udpEcho = echo;
+    }
+
+    /**
+     * Script the response of a command, the final result line must be included
+     *
+     * @param cmd   full command without CR/LF, e.g. "AT+CSQ"
+     * @param lines response lines, e.g. {"+CSQ:99,99", "OK"}
+     */
+    public void setResponse(String cmd, String[] lines) {
+        this.scripts.put(cmd, lines);
+    }
+
+    /**
+     * Number of commands received from the driver
+     *
+     * @return
+     */
+    public synchronized int getCommandCount() {
+        return this.commandCount;
+    }
+
+    /**
+     * Send an URC to the driver
+     *
+     * @param urc
+     */
+    public void injectURC(String urc) {
+        emit(new String[]{urc}, 0);
+    }
+
+    /**
+     * Send an URC to the driver periodically
+     *
+     * @param urc    URC line
+     * @param period period in ms
+     */
+    public synchronized void startURC(final String urc, int period) {
+        if (this.urcTimer == null)
+            this.urcTimer = new Timer(true);
+
+        this.urcTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                injectURC(urc);
+            }
+        }, period, period);
+    }
+
+    /**
+     * Stop all periodic URCs
+     */
+    public synchronized void stopURC() {
+        if (this.urcTimer != null) {
+            this.urcTimer.cancel();
+            this.urcTimer = null;
+        }
+    }
+
+    /**
+     * Downlink datagram, announced by +NSONMI and read with AT+NSORF
+     *
+     * @param socketId
+     * @param ip
+     * @param port
+     * @param data
+     */
+    public void pushDatagram(int socketId, String ip, int port, byte[] data) {
+        int pending;
+        synchronized (this) {
+            Vector<Datagram> queue = this.datagrams.elementAt(socketId);
+            queue.addElement(new Datagram(ip, port, data));
+            pending = queue.size();
+        }
+
+        // the module announces a socket only when its queue was empty
+        if (pending == 1)
+            injectURC("+NSONMI:" + socketId + "," + data.length);
+    }
+
+    /**
+     * CoAP downlink, reported by +NNMI
+     *
+     * @param data
+     */
+    public void pushCoapMessage(byte[] data) {
+        injectURC("+NNMI:" + data.length + "," + toHex(data));
+    }
+
+    /**
+     * Bytes ready to be read by the driver
+     */
+    private synchronized int readyBytes() {
+        long now = System.currentTimeMillis();
+        int total = 0;
+        for (int i = 0; i < this.chunks.size(); i++) {
+            Chunk chunk = this.chunks.elementAt(i);
+            if (chunk.ready > now)
+                break;
+
+            total += chunk.data.length;
+        }
+        return total - this.chunkPos;
+    }
+
+    private synchronized int readFromModule(byte[] b, int off, int len, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait = deadline - now;
+
+            if (this.chunks.size() > 0) {
+                Chunk chunk = this.chunks.elementAt(0);
+                long ready = chunk.ready;
+                if (ready <= now) {
+                    byte[] data = chunk.data;
+                    int n = Math.min(len, data.length - this.chunkPos);
+                    System.arraycopy(data, this.chunkPos, b, off, n);
+                    this.chunkPos += n;
+                    if (this.chunkPos == data.length) {
+                        this.chunks.removeElementAt(0);
+                        this.chunkPos = 0;
+                    }
+                    return n;
+                }
+                wait = Math.min(wait, ready - now);
+            }
+
+            if (now >= deadline)
+                return 0;
+
+            try {
+                this.wait(Math.max(wait, 1));
+            } catch (InterruptedException e) {
+                return 0;
+            }
+        }
+    }
+
+    private void writeToModule(byte b) {
+        if (b == '\r' || b == '\n') {
+            if (this.command.length() > 0) {
+                String cmd = this.command.toString();
+                this.command.setLength(0);
+                execute(cmd);
+            }
+            return;
+        }
+        this.command.append((char) b);
+    }
+
+    /**
+     * Queue lines to the driver, each line becomes readable after the delay
+     * and the transmission time at the baud rate
+     */
+    private synchronized void emit(String[] lines, int delay) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < lines.length; i++) {
+            sb.append("\r\n").append(lines[i]).append("\r\n");
+        }
+
+        byte[] data = sb.toString().getBytes();
+        long now = System.currentTimeMillis();
+        long start = Math.max(now + delay, this.lastReadyTime);
+        long ready = start + (long) data.length * 10000 / this.baudRate;
+        this.lastReadyTime = ready;
+
+        this.chunks.addElement(new Chunk(data, ready));
+        this.notifyAll();
+    }
+
+    private void respond(String[] lines) {
+        if (this.concatenated != null) {
+            for (int i = 0; i < lines.length; i++) {
+                this.concatenated.addElement(lines[i]);
+            }
+            return;
+        }
+
+        emit(lines, this.responseDelay);
+    }
+
+    private void ok() {
+        respond(new String[]{"OK"});
+    }
+
+    private void ok(String line) {
+        respond(new String[]{line, "OK"});
+    }
+
+    /**
+     * "AT+CMD1;+CMD2", the information responses of all commands and one
+     * final result, the commands after a failed one are not run
+     */
+    private void executeConcatenated(String line) {
+        this.concatenated = new Vector<String>();
+        String cmd = line;
+        while (cmd != null) {
+            int end = cmd.indexOf(";+");
+            String next = end > 0 ? "AT" + cmd.substring(end + 1) : null;
+            execute(end > 0 ? cmd.substring(0, end) : cmd);
+
+            int last = this.concatenated.size() - 1;
+            if (last < 0 || !this.concatenated.elementAt(last).equals("OK"))
+                break;
+
+            if (next != null)
+                this.concatenated.removeElementAt(last);
+            cmd = next;
+        }
+
+        String[] lines = new String[this.concatenated.size()];
+        this.concatenated.copyInto(lines);
+        this.concatenated = null;
+        respond(lines);
+    }
+
+    private void execute(String cmd) {
+        if (!this.responding)
+            return;
+
+        synchronized (this) {
+            this.commandCount++;
+        }
+
+        if (cmd.indexOf(";+") > 0) {
+            executeConcatenated(cmd);
+            return;
+        }
+
+        String[] script = this.scripts.get(cmd);
+        if (script != null) {
+            respond(script);
+            return;
+        }
+
+        int eq = cmd.indexOf('=');
+        String name = eq > 0 ? cmd.substring(0, eq) : cmd;
+        String arg = eq > 0 ? cmd.substring(eq + 1) : "";
+
+        if (cmd.equals("AT")) {
+            ok();
+        } else if (cmd.equals("AT+CFUN?")) {
+            ok("+CFUN:" + this.cfun);
+        } else if (name.equals("AT+CFUN")) {
+            this.cfun = Integer.parseInt(arg);
+            if (this.cfun == 0) {
+                this.cgatt = 0;
+                this.cereg = 0;
+            }
+            ok();
+        } else if (cmd.equals("AT+CGATT?")) {
+            ok("+CGATT:" + this.cgatt);
+        } else if (name.equals("AT+CGATT")) {
+            ok();
+            attach(Integer.parseInt(arg));
+        } else if (cmd.equals("AT+CEREG?")) {
+            ok("+CEREG:" + this.ceregMode + "," + this.cereg);
+        } else if (name.equals("AT+CEREG")) {
+            this.ceregMode = Integer.parseInt(arg);
+            ok();
+        } else if (cmd.equals("AT+CSCON?")) {
+            ok("+CSCON:" + this.csconMode + "," + this.cscon);
+        } else if (name.equals("AT+CSCON")) {
+            this.csconMode = Integer.parseInt(arg);
+            ok();
+        } else if (cmd.equals("AT+CSQ")) {
+            ok("+CSQ:" + this.rssi + ",99");
+        } else if (cmd.equals("AT+CIMI")) {
+            ok("460111174590523");
+        } else if (cmd.equals("AT+CGSN=1")) {
+            ok("+CGSN:863703036054326");
+        } else if (cmd.equals("AT+CGPADDR=0")) {
+            ok("+CGPADDR:0,10.45.12.7");
+        } else if (cmd.equals("AT+CCLK?")) {
+            ok("+CCLK:18/11/20,08:30:00+32");
+        } else if (cmd.equals("AT+NUESTATS")) {
+            respond(new String[]{"Signal power:-781", "Total power:-708", "TX power:-32768", "TX time:0",
+                    "RX time:1023", "Cell ID:123045", "ECL:0", "SNR:223", "EARFCN:2506", "PCI:42",
+                    "RSRQ:-108", "OK"});
+        } else if (cmd.equals("AT+NQMGS")) {
+            ok("PENDING=0,SENT=" + this.coapSent + ",ERROR=0");
+        } else if (cmd.equals("AT+NCDP?")) {
+            ok("+NCDP:" + this.ncdp);
+        } else if (name.equals("AT+NCDP")) {
+            this.ncdp = arg;
+            ok();
+        } else if (cmd.equals("AT+NSMI?")) {
+            ok("+NSMI:" + (this.nsmi ? 1 : 0));
+        } else if (name.equals("AT+NSMI")) {
+            this.nsmi = arg.equals("1");
+            ok();
+        } else if (cmd.equals("AT+NNMI?")) {
+            ok("+NNMI:" + (this.nnmi ? 1 : 0));
+        } else if (name.equals("AT+NNMI")) {
+            this.nnmi = arg.equals("1");
+            ok();
+        } else if (cmd.equals("AT+NCONFIG?")) {
+            respond(new String[]{"+NCONFIG:AUTOCONNECT," + (this.autoConnect ? "TRUE" : "FALSE"),
+                    "+NCONFIG:CR_0354_0338_SCRAMBLING,TRUE", "+NCONFIG:CR_0859_SI_AVOID,TRUE", "OK"});
+        } else if (name.equals("AT+NCONFIG")) {
+            if (arg.startsWith("AUTOCONNECT,"))
+                this.autoConnect = arg.endsWith("TRUE");
+            ok();
+        } else if (name.equals("AT+NMGS") || name.equals("AT+NMGSEXT")) {
+            this.coapSent++;
+            ok();
+            if (this.nsmi)
+                emit(new String[]{"+NSMI:SENT"}, this.responseDelay * 4);
+            connected();
+
+            // release assistance on AT+NMGSEXT=<length>,<data>,<mode>
+            String[] f = split(arg);
+            if (f.length > 2 && (Integer.decode(f[2]).intValue() & 0x001) != 0)
+                released();
+        } else if (name.equals("AT+NSOCR")) {
+            ok(String.valueOf(this.nextSocket++));
+        } else if (name.equals("AT+NSOST")) {
+            nsost(arg);
+        } else if (name.equals("AT+NSOSTF")) {
+            nsostf(arg);
+        } else if (name.equals("AT+NSORF")) {
+            nsorf(arg);
+        } else if (name.equals("AT+NPING")) {
+            ok();
+            emit(new String[]{"+NPING:" + arg + ",64,120"}, 120);
+        } else if (cmd.equals("AT+NRB")) {
+            respond(new String[]{"REBOOTING"});
+            reboot();
+        } else if (name.equals("AT+NSOCL") || name.equals("AT+CPSMS") || name.equals("AT+CEDRXS")) {
+            ok();
+        } else {
+            respond(new String[]{"ERROR"});
+        }
+    }
+
+    private void reboot() {
+        this.cfun = this.autoConnect ? 1 : 0;
+        this.ceregMode = 0;
+        this.csconMode = 0;
+        this.cscon = 0;
+        this.nsmi = false;
+        this.nnmi = false;
+        this.nextSocket = 0;
+        emit(new String[]{"REBOOT_CAUSE_APPLICATION_AT", "Neul", "OK"}, 500);
+    }
+
+    private void attach(final int state) {
+        if (state == 0) {
+            attached(0);
+            return;
+        }
+
+        new Timer(true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                attached(state);
+            }
+        }, this.attachDelay);
+    }
+
+    private synchronized void attached(int state) {
+        this.cfun = 1;
+        this.cgatt = state;
+        this.cereg = state;
+
+        if (this.ceregMode == 1)
+            emit(new String[]{"+CEREG:" + state}, 0);
+        else if (this.ceregMode == 2)
+            emit(new String[]{"+CEREG:" + state + ",\"5A04\",\"0EB3D4E2\",7"}, 0);
+
+        if (state == 1)
+            connected();
+    }
+
+    private void connected() {
+        if (this.cscon == 1)
+            return;
+
+        this.cscon = 1;
+        if (this.csconMode > 0)
+            emit(new String[]{"+CSCON:1"}, this.responseDelay);
+    }
+
+    private void nsost(String arg) {
+        String[] f = split(arg);
+        int socketId = Integer.parseInt(f[0]);
+        int length = Integer.parseInt(f[3]);
+        ok(socketId + "," + length);
+        connected();
+        sent(socketId, f, 5);
+
+        if (this.udpEcho) {
+            pushDatagram(socketId, f[1], Integer.parseInt(f[2]), fromHex(f[4]));
+        }
+    }
+
+    private void nsostf(String arg) {
+        String[] f = split(arg);
+        int socketId = Integer.parseInt(f[0]);
+        int flag = Integer.decode(f[3]).intValue();
+        int length = Integer.parseInt(f[4]);
+        ok(socketId + "," + length);
+        connected();
+        sent(socketId, f, 6);
+
+        // release assistance, the connection is released right after the uplink
+        if ((flag & 0x200) != 0)
+            released();
+    }
+
+    /**
+     * +NSOSTR once the datagram went over the air, only if a sequence was given
+     */
+    private void sent(int socketId, String[] f, int seqIndex) {
+        if (f.length > seqIndex)
+            emit(new String[]{"+NSOSTR:" + socketId + "," + f[seqIndex] + ",1"}, this.responseDelay * 4);
+    }
+
+    private synchronized void released() {
+        if (this.cscon == 0)
+            return;
+
+        this.cscon = 0;
+        if (this.csconMode > 0)
+            emit(new String[]{"+CSCON:0"}, this.responseDelay * 4);
+    }
+
+    private void nsorf(String arg) {
+        String[] f = split(arg);
+        int socketId = Integer.parseInt(f[0]);
+        int max = Integer.parseInt(f[1]);
+
+        Datagram dgram;
+        byte[] part;
+        int remaining = 0;
+        synchronized (this) {
+            Vector<Datagram> queue = this.datagrams.elementAt(socketId);
+            if (queue.size() == 0) {
+                ok();
+                return;
+            }
+
+            dgram = queue.elementAt(0);
+            byte[] data = dgram.data;
+            int len = Math.min(max, data.length);
+            part = new byte[len];
+            System.arraycopy(data, 0, part, 0, len);
+
+            if (len < data.length) {
+                // the rest of the datagram stays in the module
+                byte[] rest = new byte[data.length - len];
+                System.arraycopy(data, len, rest, 0, rest.length);
+                queue.setElementAt(new Datagram(dgram.ip, dgram.port, rest), 0);
+            } else {
+                queue.removeElementAt(0);
+            }
+
+            for (int i = 0; i < queue.size(); i++) {
+                remaining += queue.elementAt(i).data.length;
+            }
+        }
+
+        ok(socketId + "," + dgram.ip + "," + dgram.port + "," + part.length + "," + toHex(part) + "," + remaining);
+    }
+
+    private static String[] split(String s) {
+        Vector<String> v = new Vector<String>();
+        int begin = 0;
+        int pos;
+        while ((pos = s.indexOf(',', begin)) >= 0) {
+            v.addElement(s.substring(begin, pos));
+            begin = pos + 1;
+        }
+        v.addElement(s.substring(begin));
+
+        String[] res = new String[v.size()];
+        v.copyInto(res);
+        return res;
+    }
+
+    private static String toHex(byte[] data) {
+        byte[] hex = new byte[data.length * 2];
+        HexCodec.encode(data, 0, data.length, hex, 0);
+        return new String(hex);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        HexCodec.decode(hex, 0, hex.length(), data, 0);
+        return data;
+    }
+}
@@ -0,0 +1,202 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated per message on the simulated module, uplinks by the
+ * sending thread and downlinks by the UART reading thread, next to the string
+ * based hex encoding and decoding used before HexCodec.
+ * Uses the allocation counter of the host JVM, runs on host only.
+ */
+public class TiBC28AllocationSample {
+
+    static final String HEX = "0123456789ABCDEF";
+
+    static int received = 0;
+
+    public static void main(String[] args) {
+
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        SimulatedBC28 sim = new SimulatedBC28(115200);
+
+        // the simulator parses the commands in the writing thread, hand them over to another one
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), new Handoff(sim.getOutputStream()));
+        bc28.setRawDataListener(new IRawDataListener() {
+            @Override
+            public void onCoapData(byte[] buffer, int offset, int length) {
+                synchronized (TiBC28AllocationSample.class) {
+                    received++;
+                    TiBC28AllocationSample.class.notifyAll();
+                }
+            }
+
+            @Override
+            public void onUDPData(UDPDatagram datagram) {
+            }
+        });
+
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+
+        try {
+            int socketId = bc28.createUDPSocket(5000);
+
+            // warm up
+            for (int i = 0; i < 50; i++) {
+                bc28.udpSend(socketId, "10.0.0.1", 9000, data);
+            }
+
+            Thread self = Thread.currentThread();
+            long begin = allocated(self);
+            for (int i = 0; i < count; i++) {
+                bc28.udpSend(socketId, "10.0.0.1", 9000, data);
+            }
+            long uplink = (allocated(self) - begin) / count;
+
+            begin = allocated(self);
+            int sink = 0;
+            for (int i = 0; i < count; i++) {
+                String cmd = "AT+NSOST=" + socketId + ",10.0.0.1,9000," + data.length + "," + toHexString(data);
+                sink += (cmd + "\r\n").getBytes().length;
+            }
+            long uplinkOld = (allocated(self) - begin) / count;
+
+            String urc = "+NNMI:" + size + "," + toHexString(data);
+            receive(sim, urc, 50);
+            begin = allocated(bc28);
+            receive(sim, urc, count);
+            long downlink = (allocated(bc28) - begin) / count;
+
+            begin = allocated(self);
+            for (int i = 0; i < count; i++) {
+                // line string from the reader, then the payload after ','
+                String line = new String(urc.getBytes());
+                sink += hexStringToByte(line.substring(line.indexOf(',') + 1)).length;
+            }
+            long downlinkOld = (allocated(self) - begin) / count;
+
+            System.out.println("payload bytes        : " + size + " (" + sink % 2 + ")");
+            System.out.println("uplink   B/message   : " + uplink + " (string encoding " + uplinkOld + ")");
+            System.out.println("downlink B/message   : " + downlink + " (string decoding " + downlinkOld + ")");
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    static void receive(SimulatedBC28 sim, String urc, int count) throws IOException {
+        synchronized (TiBC28AllocationSample.class) {
+            received = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            sim.injectURC(urc);
+        }
+
+        // the burst takes a while at the baud rate, give up when nothing comes in
+        synchronized (TiBC28AllocationSample.class) {
+            int last = 0;
+            long end = System.currentTimeMillis() + 1000;
+            while (received < count) {
+                if (received != last) {
+                    last = received;
+                    end = System.currentTimeMillis() + 1000;
+                }
+                if (System.currentTimeMillis() > end)
+                    throw new IOException("Downlinks lost");
+                try {
+                    TiBC28AllocationSample.class.wait(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    static long allocated(Thread thread) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * Hex string as built before HexCodec, one char per nibble
+     */
+    static String toHexString(byte[] data) {
+        StringBuffer sb = new StringBuffer(data.length * 2);
+        for (int i = 0; i < data.length; i++) {
+            sb.append(HEX.charAt((data[i] >> 4) & 0x0F)).append(HEX.charAt(data[i] & 0x0F));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decoder used before HexCodec
+     */
+    static byte[] hexStringToByte(String str) {
+        byte[] byteArray = new byte[str.length() / 2];
+        for (int i = 0; i < byteArray.length; i++) {
+            String subStr = str.substring(2 * i, 2 * i + 2);
+            byteArray[i] = ((byte) Integer.parseInt(subStr, 16));
+        }
+        return byteArray;
+    }
+
+    /**
+     * Passes the written bytes to the module in its own thread
+     */
+    static class Handoff extends OutputStream implements Runnable {
+        private byte[] ring = new byte[1 << 16];
+        private int head = 0;
+        private int count = 0;
+        private OutputStream output;
+
+        Handoff(OutputStream output) {
+            this.output = output;
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            this.ring[(this.head + this.count++) & 0xFFFF] = (byte) b;
+            this.notifyAll();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                this.ring[(this.head + this.count++) & 0xFFFF] = b[off + i];
+            }
+            this.notifyAll();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[4096];
+            try {
+                while (true) {
+                    int n;
+                    synchronized (this) {
+                        while (this.count == 0) {
+                            this.wait();
+                        }
+                        n = Math.min(this.count, buffer.length);
+                        for (int i = 0; i < n; i++) {
+                            buffer[i] = this.ring[(this.head + i) & 0xFFFF];
+                        }
+                        this.head += n;
+                        this.count -= n;
+                    }
+                    this.output.write(buffer, 0, n);
+                }
+            } catch (Exception ex) {
+                // daemon, ends with the sample
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Burst of UDP downlinks on the simulated module, more datagrams than one
+ * AT+NSORF returns are waiting behind a single +NSONMI. Checks that every
+ * datagram reaches the listener in order and that the remaining count of the
+ * last one is 0, with one and with several reads queued at once.
+ */
+public class TiBC28BurstSample {
+
+    static final Object lock = new Object();
+
+    static int received;
+    static int outOfOrder;
+    static int lastRemaining;
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        try {
+            for (int batch = 1; batch <= 4; batch <<= 1) {
+                run(baudRate, count, batch);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    static void run(int baudRate, int count, int batch) throws IOException {
+        SimulatedBC28 sim = new SimulatedBC28(baudRate);
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+        bc28.setUDPReceiveBatch(batch);
+
+        synchronized (lock) {
+            received = 0;
+            outOfOrder = 0;
+            lastRemaining = -1;
+        }
+
+        bc28.setRawDataListener(new IRawDataListener() {
+            @Override
+            public void onCoapData(byte[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void onUDPData(UDPDatagram datagram) {
+                byte[] data = datagram.getData();
+                int seq = ((data[datagram.getOffset()] & 0xFF) << 8) | (data[datagram.getOffset() + 1] & 0xFF);
+
+                synchronized (lock) {
+                    if (seq != received)
+                        outOfOrder++;
+
+                    received++;
+                    lastRemaining = datagram.getRemaining();
+                    lock.notifyAll();
+                }
+            }
+        });
+
+        int socketId = bc28.createUDPSocket(5000);
+
+        // sizes up to one full read, only the first push raises +NSONMI
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[2 + (i * 37) % (TiBC28.MAX_DATAGRAM_SIZE - 1)];
+            data[0] = (byte) (i >> 8);
+            data[1] = (byte) i;
+            sim.pushDatagram(socketId, "10.0.0.1", 9000, data);
+        }
+
+        synchronized (lock) {
+            int last = 0;
+            long end = System.currentTimeMillis() + 2000;
+            while (received < count) {
+                if (received != last) {
+                    last = received;
+                    end = System.currentTimeMillis() + 2000;
+                }
+                if (System.currentTimeMillis() > end)
+                    break;
+
+                try {
+                    lock.wait(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            long elapsed = System.currentTimeMillis() - begin;
+            boolean ok = received == count && outOfOrder == 0 && lastRemaining == 0;
+            System.out.println("reads " + batch + " : received " + received + " of " + count + ", out of order "
+                    + outOfOrder + ", last remaining " + lastRemaining + ", " + elapsed + " ms "
+                    + (ok ? "OK" : "FAILED"));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Compares the bring-up one command after another with the InitProfile on
+ * the simulated module, from a factory new module and after a watchdog reset
+ * with the settings in place, prints the time until registered
+ */
+public class TiBC28InitSample {
+
+    static final String SERVER = "180.101.147.115";
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int responseDelay = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        try {
+            for (int factory = 1; factory >= 0; factory--) {
+                String start = factory == 1 ? "factory" : "warm   ";
+                System.out.println(start + " sequential : " + run(baudRate, responseDelay, factory == 1, false) + " ms");
+                System.out.println(start + " profile    : " + run(baudRate, responseDelay, factory == 1, true) + " ms");
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    static long run(int baudRate, int responseDelay, boolean factory, boolean profile) throws IOException {
+        SimulatedBC28 sim = new SimulatedBC28(baudRate);
+        sim.setResponseDelay(responseDelay);
+        if (factory)
+            sim.factoryReset();
+
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+        NetworkStateManager network = bc28.getNetworkStateManager();
+
+        long begin = System.currentTimeMillis();
+        if (profile) {
+            // reports before the attach so that its +CEREG is seen, the attach goes on while the module is configured
+            InitProfile init = new InitProfile().registrationReport(2).connectionReport().radioOn().attach()
+                    .autoConnect(true).cdpServer(SERVER, 5683).sendNotification().newMessageNotification();
+            bc28.initialize(init);
+
+            for (int i = 0; i < init.size(); i++) {
+                System.out.println("  " + init.getCommand(i) + " : query " + init.getQueryTime(i) + " ms, "
+                        + (init.isSkipped(i) ? "skipped" : init.getCommandTime(i) + " ms"));
+            }
+        } else {
+            network.bringUp();
+            bc28.setCDPServer(SERVER, 5683);
+            bc28.enableMsgNotification(true);
+            bc28.enableNewArriveMessage();
+            bc28.configAutoConnect(true);
+        }
+
+        if (!network.awaitRegistered(10000))
+            throw new IOException("Not registered");
+
+        return System.currentTimeMillis() - begin;
+    }
+}
@@ -0,0 +1,118 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import tijos.framework.util.Delay;
+
+/**
+ * Measures how late responses and URCs reach the driver on the simulated
+ * module, once through the blocking stream of the simulator as reference and
+ * once through TiUartInputStream polling the simulated UART with its back-off.
+ * The difference is the delay added by polling the UART.
+ */
+public class TiBC28LatencySample {
+
+    static final Object lock = new Object();
+    static long received = 0;
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        try {
+            run("blocking stream  ", baudRate, count, false);
+            run("TiUartInputStream", baudRate, count, true);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    static void run(String name, int baudRate, int count, boolean polled) throws IOException {
+        SimulatedBC28 sim = new SimulatedBC28(baudRate);
+
+        InputStream input = sim.getInputStream();
+        if (polled) {
+            final InputStream module = input;
+
+            // TiUART.read does not wait, neither does this one
+            TiUartInputStream uart = new TiUartInputStream(null) {
+                @Override
+                int readUART(byte[] b, int off, int len) throws IOException {
+                    int n = module.available();
+                    return n > 0 ? module.read(b, off, Math.min(n, len)) : 0;
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return module.available();
+                }
+            };
+            uart.setReadTimeout(200);
+            input = uart;
+        }
+
+        TiBC28 bc28 = new TiBC28(input, sim.getOutputStream());
+        bc28.setURCHandler("+TEST:", new IURCHandler() {
+            @Override
+            public boolean onURC(byte[] line, int off, int len) {
+                synchronized (lock) {
+                    received = System.currentTimeMillis();
+                    lock.notifyAll();
+                }
+                return true;
+            }
+        });
+
+        Random random = new Random(1);
+
+        // AT round trip after an idle time, the module answers after its response delay
+        long rttSum = 0;
+        long rttMax = 0;
+        for (int i = 0; i < count; i++) {
+            Delay.msDelay(random.nextInt(100));
+
+            long begin = System.currentTimeMillis();
+            ATResponse resp = bc28.sendCommandAsync("AT", null);
+            if (!resp.waitFor() || resp.getResult() != ATResponse.OK)
+                throw new IOException("No answer");
+
+            long rtt = System.currentTimeMillis() - begin;
+            rttSum += rtt;
+            rttMax = Math.max(rttMax, rtt);
+        }
+
+        // URC after an idle time, the reader has backed off by then
+        long urcSum = 0;
+        long urcMax = 0;
+        for (int i = 0; i < count; i++) {
+            Delay.msDelay(random.nextInt(100));
+
+            long begin;
+            synchronized (lock) {
+                received = 0;
+                begin = System.currentTimeMillis();
+                sim.injectURC("+TEST:" + i);
+
+                while (received == 0) {
+                    try {
+                        lock.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (System.currentTimeMillis() - begin > 1000)
+                        throw new IOException("URC lost");
+                }
+            }
+
+            long latency = received - begin;
+            urcSum += latency;
+            urcMax = Math.max(urcMax, latency);
+        }
+
+        System.out.println(name + " : AT round trip avg " + rttSum / count + " max " + rttMax + " ms, URC avg "
+                + urcSum / count + " max " + urcMax + " ms");
+    }
+}
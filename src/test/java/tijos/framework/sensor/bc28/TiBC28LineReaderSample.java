@@ -0,0 +1,183 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Time and bytes allocated to split a stream of AT+NSORF responses into
+ * lines, ATLineReader scanning its ring buffer in place next to the per byte
+ * state machine used before. The stream returns at most a few bytes per read
+ * as the UART FIFO does, 16 bytes at about 9600 baud and 128 bytes at about
+ * 115200 baud.
+ * Uses the allocation counter of the host JVM, runs on host only.
+ */
+public class TiBC28LineReaderSample {
+
+    public static void main(String[] args) {
+
+        int responses = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < responses; i++) {
+            sb.append("\r\n0,10.0.0.1,9000,512,");
+            for (int j = 0; j < 512; j++) {
+                sb.append("A5");
+            }
+            sb.append(",0\r\n\r\nOK\r\n+CEREG:1\r\n");
+        }
+        byte[] data = sb.toString().getBytes();
+
+        System.out.println("input bytes : " + data.length);
+        try {
+            int[] chunks = {16, 128};
+            for (int c = 0; c < chunks.length; c++) {
+                // best of the rounds, the first ones warm up
+                long oldTime = Long.MAX_VALUE;
+                long newTime = Long.MAX_VALUE;
+                long oldAlloc = 0;
+                long newAlloc = 0;
+                int oldLines = 0;
+                int lines = 0;
+                for (int r = 0; r < rounds; r++) {
+                    Thread self = Thread.currentThread();
+
+                    long a0 = allocated(self);
+                    long t0 = System.nanoTime();
+                    OldLineReader old = new OldLineReader(new ChunkedInput(data, chunks[c]), 256);
+                    oldLines = 0;
+                    while (old.readLine() >= 0) {
+                        oldLines++;
+                    }
+
+                    long a1 = allocated(self);
+                    long t1 = System.nanoTime();
+                    ATLineReader reader = new ATLineReader(new ChunkedInput(data, chunks[c]), 256);
+                    lines = 0;
+                    while (reader.readLine() >= 0) {
+                        lines++;
+                    }
+
+                    long a2 = allocated(self);
+                    long t2 = System.nanoTime();
+                    oldTime = Math.min(oldTime, t1 - t0);
+                    newTime = Math.min(newTime, t2 - t1);
+                    oldAlloc = a1 - a0;
+                    newAlloc = a2 - a1;
+                }
+
+                System.out.println("read " + chunks[c] + " bytes : lines " + oldLines + "/" + lines + ", per byte "
+                        + oldTime / 1000 + " us " + oldAlloc + " B, ATLineReader " + newTime / 1000 + " us "
+                        + newAlloc + " B");
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    static long allocated(Thread thread) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(thread.getId());
+    }
+
+    /**
+     * Returns at most chunk bytes per read and 0 at the end like the UART
+     */
+    static class ChunkedInput extends InputStream {
+        private byte[] data;
+        private int pos = 0;
+        private int chunk;
+
+        ChunkedInput(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return this.pos < this.data.length ? this.data[this.pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(Math.min(len, this.chunk), this.data.length - this.pos);
+            System.arraycopy(this.data, this.pos, b, off, n);
+            this.pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * Line framer used before the ring buffer, every byte goes through the
+     * state machine
+     */
+    static class OldLineReader {
+        private InputStream input;
+
+        private byte[] chunk = new byte[256];
+        private int chunkPos = 0;
+        private int chunkLen = 0;
+
+        private byte[] line;
+        private int lineLen = 0;
+        private boolean lineReady = false;
+
+        // last byte was CR, a following LF belongs to the same terminator
+        private boolean cr = false;
+
+        OldLineReader(InputStream input, int lineLength) {
+            this.input = input;
+            this.line = new byte[lineLength];
+        }
+
+        int readLine() throws IOException {
+            if (this.lineReady) {
+                this.lineReady = false;
+                this.lineLen = 0;
+            }
+
+            while (true) {
+                while (this.chunkPos < this.chunkLen) {
+                    if (this.feed(this.chunk[this.chunkPos++] & 0xFF)) {
+                        this.lineReady = true;
+                        return this.lineLen;
+                    }
+                }
+
+                int len = this.input.read(this.chunk, 0, this.chunk.length);
+                if (len < 0)
+                    throw new IOException("End of stream");
+
+                this.chunkPos = 0;
+                this.chunkLen = len;
+                if (len == 0)
+                    return -1;
+            }
+        }
+
+        private boolean feed(int val) {
+            if (val == '\r') {
+                this.cr = true;
+                return this.lineLen > 0;
+            }
+
+            if (val == '\n') {
+                if (this.cr) {
+                    this.cr = false;
+                    return false;
+                }
+                return this.lineLen > 0;
+            }
+
+            this.cr = false;
+            if (this.lineLen == this.line.length) {
+                byte[] temp = new byte[this.line.length * 2];
+                System.arraycopy(this.line, 0, temp, 0, this.lineLen);
+                this.line = temp;
+            }
+            this.line[this.lineLen++] = (byte) val;
+            return false;
+        }
+    }
+}
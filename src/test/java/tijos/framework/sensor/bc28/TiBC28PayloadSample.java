@@ -0,0 +1,158 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * PayloadSchema checks on the simulated module: every field type survives
+ * encode and decode, truncated messages and other message ids are refused,
+ * the report of TiBC28Sample is sent as the same AT+NMGS frame as the array
+ * built by hand before, and the bytes allocated per report by the sending
+ * thread with a reused message against a new array.
+ * Uses the allocation counter of the host JVM, runs on host only.
+ */
+public class TiBC28PayloadSample {
+
+    static int failures = 0;
+
+    public static void main(String[] args) {
+
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+        try {
+            roundTrip();
+            wire(cycles);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            failures++;
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+    }
+
+    static void roundTrip() {
+        PayloadSchema schema = new PayloadSchema(0x22).add(PayloadSchema.UINT8).add(PayloadSchema.INT8)
+                .add(PayloadSchema.UINT16).add(PayloadSchema.INT16).add(PayloadSchema.INT32)
+                .add(PayloadSchema.FLOAT).add(PayloadSchema.BYTES, 3).add(PayloadSchema.VARBYTES, 10)
+                .add(PayloadSchema.VARBYTES, 300);
+
+        PayloadMessage msg = schema.newMessage();
+        msg.setInt(0, 200).setInt(1, -5).setInt(2, 60000).setInt(3, -1234).setInt(4, -123456789)
+                .setFloat(5, 3.25f).setBytes(6, new byte[]{1, 2}, 0, 2).setBytes(7, "hello".getBytes(), 0, 5)
+                .setBytes(8, new byte[280], 0, 280);
+
+        byte[] buffer = new byte[schema.getMaxSize()];
+        int n = schema.encode(msg, buffer, 0);
+        check("encoded length " + n + " matches encodedLength", n == schema.encodedLength(msg));
+
+        PayloadMessage decoded = schema.newMessage();
+        check("decode", schema.decode(buffer, 0, n, decoded));
+        check("UINT8, INT8, UINT16, INT16, INT32", decoded.getInt(0) == 200 && decoded.getInt(1) == -5
+                && decoded.getInt(2) == 60000 && decoded.getInt(3) == -1234 && decoded.getInt(4) == -123456789);
+        check("FLOAT", decoded.getFloat(5) == 3.25f);
+
+        byte[] bytes = decoded.getBytes(6);
+        check("BYTES padded with 0", bytes[0] == 1 && bytes[1] == 2 && bytes[2] == 0);
+        check("VARBYTES", "hello".equals(new String(decoded.getBytes(7), 0, decoded.getLength(7))));
+        check("VARBYTES with 2 byte length", decoded.getLength(8) == 280);
+
+        check("truncated message refused", !schema.decode(buffer, 0, n - 1, decoded));
+        check("other message id refused", !new PayloadSchema(1).decode(buffer, 0, n, decoded));
+
+        boolean frozen = false;
+        try {
+            schema.add(PayloadSchema.UINT8);
+        } catch (IllegalStateException ex) {
+            frozen = true;
+        }
+        check("no field added once a message exists", frozen);
+    }
+
+    static void wire(int cycles) throws IOException {
+        SimulatedBC28 sim = new SimulatedBC28(115200);
+
+        // the frames written to the module, the simulator runs in another thread
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        final boolean[] recording = new boolean[1];
+        final OutputStream module = new TiBC28AllocationSample.Handoff(sim.getOutputStream());
+        OutputStream tap = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (recording[0])
+                    frames.write(b);
+                module.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (recording[0])
+                    frames.write(b, off, len);
+                module.write(b, off, len);
+            }
+        };
+
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), tap);
+        bc28.enableMsgNotification(true);
+
+        // the report of TiBC28Sample
+        PayloadSchema report = new PayloadSchema(0x00).add(PayloadSchema.UINT8).add(PayloadSchema.UINT8)
+                .add(PayloadSchema.UINT8).add(PayloadSchema.UINT8);
+        PayloadMessage msg = report.newMessage();
+        msg.setInt(0, 7).setInt(1, 8).setInt(2, 1).setInt(3, 1);
+
+        recording[0] = true;
+        bc28.coapSendAsync(msg, TiBC28.RAI_NONE);
+        bc28.await(bc28.sendCommandAsync("AT", null));
+        String schemaFrame = firstLine(frames);
+
+        frames.reset();
+        bc28.coapSend(new byte[]{0, 7, 8, 1, 1});
+        String arrayFrame = firstLine(frames);
+        recording[0] = false;
+
+        check("schema frame " + schemaFrame + " equals array frame " + arrayFrame, schemaFrame.equals(arrayFrame));
+
+        Thread self = Thread.currentThread();
+        long array = 0;
+        long schema = 0;
+        for (int i = 0; i < cycles + 10; i++) {
+            long begin = TiBC28AllocationSample.allocated(self);
+            byte[] data = new byte[5];
+            data[1] = (byte) i;
+            data[2] = (byte) (i + 1);
+            data[3] = 1;
+            data[4] = 1;
+            bc28.coapSendAsync(data, 0, data.length);
+            long middle = TiBC28AllocationSample.allocated(self);
+
+            msg.setInt(0, i).setInt(1, i + 1);
+            bc28.coapSendAsync(msg, TiBC28.RAI_NONE);
+            long end = TiBC28AllocationSample.allocated(self);
+
+            // the first ones warm up
+            if (i >= 10) {
+                array += middle - begin;
+                schema += end - middle;
+            }
+
+            bc28.await(bc28.sendCommandAsync("AT", null));
+        }
+
+        System.out.println("bytes per report : new array " + array / cycles + ", reused message " + schema / cycles);
+        // the JIT may keep the short array off the heap, then both are the same
+        check("reused message allocates no more than a new array", schema <= array);
+    }
+
+    static String firstLine(ByteArrayOutputStream frames) {
+        String s = frames.toString();
+        int end = s.indexOf('\r');
+        return end < 0 ? s : s.substring(0, end);
+    }
+
+    static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK     " : "FAILED ") + name);
+        if (!ok)
+            failures++;
+    }
+}
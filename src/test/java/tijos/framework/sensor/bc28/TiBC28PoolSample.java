@@ -0,0 +1,123 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Aggregate uplink throughput of several simulated modules, each with its own
+ * TiBC28 reading thread against all of them in one BC28Pool. One sending
+ * thread per module calls udpSend, on its own module or on the pool. The pool
+ * is run again with one module hanging from the start to show the fail over.
+ */
+public class TiBC28PoolSample {
+
+    static final int PAYLOAD = 64;
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int modules = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        try {
+            System.out.println("independent      : " + independent(baudRate, modules, count));
+            System.out.println("pool             : " + pool(baudRate, modules, count, false));
+            System.out.println("pool, one hangs  : " + pool(baudRate, modules, count, true));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends count datagrams per thread
+     */
+    static abstract class Sender extends Thread {
+        int count;
+        int failed = 0;
+
+        Sender(int count) {
+            this.count = count;
+        }
+
+        abstract void send(byte[] data) throws IOException;
+
+        @Override
+        public void run() {
+            byte[] data = new byte[PAYLOAD];
+            for (int i = 0; i < this.count; i++) {
+                try {
+                    this.send(data);
+                } catch (IOException ex) {
+                    this.failed++;
+                }
+            }
+        }
+    }
+
+    static String independent(int baudRate, int modules, int count) throws Exception {
+        Sender[] senders = new Sender[modules];
+        for (int i = 0; i < modules; i++) {
+            SimulatedBC28 sim = new SimulatedBC28(baudRate);
+            final TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+            final int socketId = bc28.createUDPSocket(5000);
+
+            senders[i] = new Sender(count) {
+                @Override
+                void send(byte[] data) throws IOException {
+                    bc28.udpSend(socketId, "10.0.0.1", 9000, data);
+                }
+            };
+        }
+
+        return run(senders, count);
+    }
+
+    static String pool(int baudRate, int modules, int count, boolean hang) throws Exception {
+        final BC28Pool pool = new BC28Pool(modules);
+        SimulatedBC28[] sims = new SimulatedBC28[modules];
+        for (int i = 0; i < modules; i++) {
+            sims[i] = new SimulatedBC28(baudRate);
+            pool.add(sims[i].getInputStream(), sims[i].getOutputStream());
+        }
+        pool.openUDPSockets(5000);
+
+        if (hang)
+            sims[0].setResponding(false);
+
+        Sender[] senders = new Sender[modules];
+        for (int i = 0; i < modules; i++) {
+            senders[i] = new Sender(count) {
+                @Override
+                void send(byte[] data) throws IOException {
+                    pool.udpSend("10.0.0.1", 9000, data);
+                }
+            };
+        }
+
+        String result = run(senders, count);
+        pool.close();
+
+        int healthy = 0;
+        for (int i = 0; i < modules; i++) {
+            if (pool.isHealthy(i))
+                healthy++;
+        }
+        return result + ", " + healthy + " of " + modules + " in service";
+    }
+
+    static String run(Sender[] senders, int count) throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < senders.length; i++) {
+            senders[i].start();
+        }
+
+        int failed = 0;
+        for (int i = 0; i < senders.length; i++) {
+            senders[i].join();
+            failed += senders[i].failed;
+        }
+        long elapsed = Math.max(System.currentTimeMillis() - begin, 1);
+
+        int total = senders.length * count;
+        return (total - failed) * 1000L / elapsed + " datagrams/s, " + failed + " failed, " + elapsed + " ms";
+    }
+}
@@ -0,0 +1,100 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+import tijos.framework.util.Delay;
+
+/**
+ * Release assistance and +NSOSTR send tracking on the simulated module.
+ * Checks that a plain uplink leaves the radio connected while RAI_RELEASE
+ * makes the module report +CSCON:0, for UDP and CoAP, and that every tracked
+ * datagram is acknowledged by +NSOSTR.
+ */
+public class TiBC28ReleaseSample {
+
+    static final Object lock = new Object();
+    static int acks = 0;
+
+    static int failures = 0;
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int tracked = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        SimulatedBC28 sim = new SimulatedBC28(baudRate);
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+        bc28.setUDPSendListener(new IUDPSendListener() {
+            @Override
+            public void onUDPSendResult(int socketId, int seq, boolean sent) {
+                synchronized (lock) {
+                    if (sent)
+                        acks++;
+                    lock.notifyAll();
+                }
+            }
+        });
+
+        try {
+            bc28.enableConnectionReport(true);
+            bc28.enableMsgNotification(true);
+
+            ResponseCache cache = bc28.getResponseCache();
+            int socketId = bc28.createUDPSocket(5000);
+            byte[] data = new byte[32];
+
+            bc28.udpSend(socketId, "10.0.0.1", 9000, data);
+            Delay.msDelay(300);
+            check("AT+NSOST leaves the radio connected", cache.getInt(ResponseCache.CSCON) == 1);
+
+            bc28.udpSend(socketId, "10.0.0.1", 9000, data, TiBC28.RAI_RELEASE);
+            Delay.msDelay(300);
+            check("AT+NSOSTF with RAI_RELEASE releases it", cache.getInt(ResponseCache.CSCON) == 0);
+
+            bc28.coapSend(data, 0, data.length, TiBC28.RAI_NONE);
+            Delay.msDelay(300);
+            check("AT+NMGS leaves the radio connected", cache.getInt(ResponseCache.CSCON) == 1);
+
+            bc28.coapSend(data, 0, data.length, TiBC28.RAI_RELEASE);
+            Delay.msDelay(300);
+            check("AT+NMGSEXT with RAI_RELEASE releases it", cache.getInt(ResponseCache.CSCON) == 0);
+
+            long begin = System.currentTimeMillis();
+            int last = 0;
+            for (int i = 0; i < tracked; i++) {
+                int seq = bc28.udpSendTracked(socketId, "10.0.0.1", 9000, data, 0, data.length, TiBC28.RAI_NONE);
+                check("sequence " + seq + " follows " + last, seq == last + 1);
+                last = seq;
+            }
+
+            synchronized (lock) {
+                while (acks < tracked && System.currentTimeMillis() - begin < 5000) {
+                    try {
+                        lock.wait(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            check(acks + " of " + tracked + " datagrams acknowledged by +NSOSTR in "
+                    + (System.currentTimeMillis() - begin) + " ms", acks == tracked);
+            check("no datagram left pending", bc28.getPendingUDPCount() == 0);
+
+            BC28Metrics metrics = bc28.getMetrics();
+            System.out.println("AT+NSOSTF " + metrics.getCommandCount(BC28Metrics.CMD_NSOSTF) + ", AT+NMGSEXT "
+                    + metrics.getCommandCount(BC28Metrics.CMD_NMGSEXT) + ", +NSOSTR "
+                    + metrics.getURCCount(BC28Metrics.URC_NSOSTR));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            failures++;
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+    }
+
+    static void check(String name, boolean ok) {
+        System.out.println((ok ? "OK     " : "FAILED ") + name);
+        if (!ok)
+            failures++;
+    }
+}
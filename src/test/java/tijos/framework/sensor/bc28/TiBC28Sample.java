@@ -24,11 +24,41 @@ class BC95EventListener implements IDeviceEventListener {
     }
 }
 
+/**
+ * 平台下发命令, messageId 0x01, 1字节开关状态
+ */
+class CommandListener implements IRawDataListener {
+
+    static final PayloadSchema COMMAND = new PayloadSchema(0x01).add(PayloadSchema.UINT8);
+
+    // 复用的命令字段
+    PayloadMessage command = COMMAND.newMessage();
+
+    @Override
+    public void onCoapData(byte[] buffer, int offset, int length) {
+        if (COMMAND.decode(buffer, offset, length, command)) {
+            System.out.println("switch " + command.getInt(0));
+        }
+    }
+
+    @Override
+    public void onUDPData(UDPDatagram datagram) {
+        System.out.println("onUDPDataArrived");
+    }
+}
+
 class DataAcquireTask extends TimerTask {
 
+    //通讯结构需要与电信平台中定义的Profile和插件一致， 具体请参考电信平台相关文档
+    static final PayloadSchema REPORT = new PayloadSchema(0x00).add(PayloadSchema.UINT8).add(PayloadSchema.UINT8)
+            .add(PayloadSchema.UINT8).add(PayloadSchema.UINT8);
+
     TiBC28 bc28;
     int counter = 0;
 
+    // 每次上报复用, 不分配新的数组
+    PayloadMessage report = REPORT.newMessage();
+
     public DataAcquireTask(TiBC28 bc28) {
         this.bc28 = bc28;
     }
@@ -38,18 +68,11 @@ class DataAcquireTask extends TimerTask {
         System.out.println("report to OC platform");
 
         //COAP data transmission
-        byte[] data = new byte[5];
-
-        //通讯结构需要与电信平台中定义的Profile和插件一致， 具体请参考电信平台相关文档
         counter++;
-        data[0] = 0x00;
-        data[1] = (byte) counter;
-        data[2] = (byte) (counter + 1);
-        data[3] = 1;
-        data[4] = 1;
+        report.setInt(0, counter).setInt(1, counter + 1).setInt(2, 1).setInt(3, 1);
 
         try {
-            bc28.coapSend(data);
+            bc28.coapSendAsync(report, TiBC28.RAI_NONE);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -70,32 +93,22 @@ public class TiBC28Sample {
 
             TiBC28 bc28 = new TiBC28(uart);
             bc28.setEventListener(new BC95EventListener());
+            bc28.setRawDataListener(new CommandListener());
 
             System.out.println("Start...");
-            //查询模块射频功能状态
-            if (!bc28.isMTOn()) {
-                System.out.println("Turn ON MT ...");
-                bc28.turnOnMT();
-                int counter = 0;
-                while (!bc28.isMTOn()) {
-                    Delay.msDelay(2000);
-                    if (counter++ > 10) {
-                        bc28.turnOnMT();
-                        counter = 0;
-                    }
-                }
-            }
+            //电信物联网平台分配的IP, 请换成实际的服务器IP
+            String serverIp = "180.101.147.115";
 
-            //查询网络是否激活
-            if (!bc28.isNetworkActived()) {
-                System.out.println("Active network ...");
-                bc28.activeNetwork();
-                Delay.msDelay(1000);
-                while (!bc28.isNetworkActived()) {
-                    Delay.msDelay(1000);
-                }
-            }
+            //开启上报, 打开射频并激活网络, 配置CDP服务器, 已正确的设置只查询不重复设置
+            InitProfile init = new InitProfile().registrationReport(2).connectionReport().radioOn().attach()
+                    .autoConnect(true).cdpServer(serverIp, 5683).sendNotification().newMessageNotification();
+            bc28.initialize(init);
+            System.out.println("Init time ms : " + init.getTotalTime());
 
+            NetworkStateManager network = bc28.getNetworkStateManager();
+            while (!network.awaitRegistered(30000)) {
+                System.out.println("Waiting for network registration ...");
+            }
 
             String[] status = bc28.queryUEStatistics();
 
@@ -112,13 +125,6 @@ public class TiBC28Sample {
             System.out.println("IP Address " + bc28.getIPAddress());
             System.out.println("Date time " + bc28.getDateTime());
 
-            //电信物联网平台分配的IP, 请换成实际的服务器IP
-            String serverIp = "180.101.147.115";
-
-            bc28.setCDPServer(serverIp, 5683);
-            bc28.enableMsgNotification(true);
-            bc28.enableNewArriveMessage();
-
             java.util.Timer timer = new Timer(true);
             timer.schedule(new DataAcquireTask(bc28), 1000, 1 * 60 * 1000); //每1分钟执行
 
@@ -0,0 +1,95 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Runs TiBC28 against the simulated module on host, prints the command
+ * throughput under URC load so that regressions show up before flashing
+ */
+public class TiBC28SimulatorSample {
+
+    static int coapCount = 0;
+    static int udpCount = 0;
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int duration = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        SimulatedBC28 sim = new SimulatedBC28(baudRate);
+        sim.setUDPEcho(true);
+
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+        bc28.setEventListener(new IDeviceEventListener() {
+            @Override
+            public void onCoapDataArrived(byte[] message) {
+                coapCount++;
+            }
+
+            @Override
+            public void onUDPDataArrived(byte[] packet) {
+                udpCount++;
+            }
+        });
+
+        // URC load
+        sim.startURC("+CEREG:1", 500);
+        sim.startURC("+NNMI:4,AABBCCDD", 300);
+
+        try {
+            System.out.println("IMEI : " + bc28.getIMEI());
+            System.out.println("IMSI : " + bc28.getIMSI());
+
+            int socketId = bc28.createUDPSocket(5000);
+            byte[] data = new byte[64];
+
+            int queries = 0;
+            int sends = 0;
+            long begin = System.currentTimeMillis();
+            while (System.currentTimeMillis() - begin < duration) {
+                bc28.getRSSI();
+                queries++;
+
+                bc28.udpSend(socketId, "10.0.0.1", 9000, data);
+                sends++;
+            }
+            long elapsed = System.currentTimeMillis() - begin;
+
+            System.out.println("Baud rate        : " + baudRate);
+            System.out.println("Queries          : " + queries);
+            System.out.println("UDP sends        : " + sends);
+            System.out.println("Round-trip avg ms: " + (elapsed / (double) (queries + sends)));
+            System.out.println("UDP received     : " + udpCount);
+            System.out.println("CoAP received    : " + coapCount);
+            System.out.println("Module commands  : " + sim.getCommandCount());
+            System.out.println("RSSI cache hits  : " + bc28.getResponseCache().getHits(ResponseCache.RSSI));
+
+            BC28Metrics metrics = new BC28Metrics();
+            bc28.getMetrics().snapshot(metrics, true);
+            System.out.println("Bytes sent/recv  : " + metrics.getBytesSent() + "/" + metrics.getBytesReceived());
+            System.out.println("Lines sent/recv  : " + metrics.getLinesSent() + "/" + metrics.getLinesReceived());
+            System.out.println("URC NNMI/CEREG   : " + metrics.getURCCount(BC28Metrics.URC_NNMI) + "/"
+                    + metrics.getURCCount(BC28Metrics.URC_CEREG));
+            System.out.println("Dispatch avg/max : " + metrics.getAverageDispatchTime() + "/"
+                    + metrics.getMaxDispatchTime() + " ms");
+            for (int type = 0; type < BC28Metrics.CMD_COUNT; type++) {
+                if (metrics.getCommandCount(type) == 0 && metrics.getTimeoutCount(type) == 0)
+                    continue;
+
+                String hist = "";
+                for (int b = 0; b < BC28Metrics.BUCKET_COUNT; b++) {
+                    hist += " " + metrics.getHistogram(type, b);
+                }
+                System.out.println(BC28Metrics.commandName(type) + " : count " + metrics.getCommandCount(type)
+                        + " avg " + metrics.getAverageLatency(type) + " max " + metrics.getMaxLatency(type)
+                        + " timeout " + metrics.getTimeoutCount(type) + " error " + metrics.getErrorCount(type)
+                        + " buckets" + hist);
+            }
+
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        sim.stopURC();
+    }
+}
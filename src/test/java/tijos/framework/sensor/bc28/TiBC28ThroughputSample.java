@@ -0,0 +1,68 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.IOException;
+
+/**
+ * Command throughput on the simulated module, one command at a time as the
+ * old sendCommand did, against commands queued back-to-back in a window.
+ * Each round is an AT+NSOST followed by an AT+CSQ.
+ */
+public class TiBC28ThroughputSample {
+
+    public static void main(String[] args) {
+
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        try {
+            for (int window = 1; window <= 8; window <<= 1) {
+                System.out.println("window " + window + " : " + run(baudRate, rounds, window) + " commands/s");
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @param window max commands queued at once, 1 waits for each command
+     * @return commands per second
+     */
+    static long run(int baudRate, int rounds, int window) throws IOException {
+        SimulatedBC28 sim = new SimulatedBC28(baudRate);
+        TiBC28 bc28 = new TiBC28(sim.getInputStream(), sim.getOutputStream());
+
+        int socketId = bc28.createUDPSocket(5000);
+        byte[] data = new byte[64];
+
+        ATResponse[] pending = new ATResponse[window];
+        int head = 0;
+        int count = 0;
+
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < rounds * 2; i++) {
+            if (count == window) {
+                bc28.await(pending[head]);
+                head = (head + 1) % window;
+                count--;
+            }
+
+            ATResponse resp;
+            if (i % 2 == 0) {
+                resp = bc28.udpSendAsync(socketId, "10.0.0.1", 9000, data, null);
+            } else {
+                resp = bc28.sendCommandAsync("AT+CSQ", null);
+            }
+            pending[(head + count) % window] = resp;
+            count++;
+        }
+
+        while (count > 0) {
+            bc28.await(pending[head]);
+            head = (head + 1) % window;
+            count--;
+        }
+        long elapsed = System.currentTimeMillis() - begin;
+
+        return rounds * 2 * 1000L / Math.max(elapsed, 1);
+    }
+}
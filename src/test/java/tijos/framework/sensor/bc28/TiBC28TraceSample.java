@@ -0,0 +1,136 @@
+package tijos.framework.sensor.bc28;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records a session with the simulated module, then replays the capture into
+ * a new driver at several speeds. The same steps run against a capture taken
+ * in the field give a regression test with the real serial stream.
+ */
+public class TiBC28TraceSample {
+
+    static int udpCount = 0;
+
+    public static void main(String[] args) {
+
+        String path = args.length > 0 ? args[0] : "bc28.trc";
+        int baudRate = args.length > 1 ? Integer.parseInt(args[1]) : 9600;
+
+        try {
+            SimulatedBC28 sim = new SimulatedBC28(baudRate);
+            sim.setUDPEcho(true);
+            sim.startURC("+CEREG:1", 200);
+
+            UARTTraceRecorder recorder = new UARTTraceRecorder(path, 4096);
+            TiBC28 bc28 = new TiBC28(recorder.wrap(sim.getInputStream()), recorder.wrap(sim.getOutputStream()));
+            java.util.Timer timer = new java.util.Timer(true);
+            timer.schedule(recorder, 1000, 1000);
+
+            long begin = System.currentTimeMillis();
+            run(bc28, sim);
+            long elapsed = System.currentTimeMillis() - begin;
+            sim.stopURC();
+            recorder.close();
+
+            System.out.println("Recorded         : " + elapsed + " ms, " + recorder.getRecordedBytes() + " bytes, "
+                    + recorder.getFlushCount() + " flushes, " + recorder.getDroppedBytes() + " dropped");
+            System.out.println("UDP received     : " + udpCount);
+
+            int[] speeds = {1, 10};
+            for (int i = 0; i < speeds.length; i++) {
+                udpCount = 0;
+                UARTTraceReplay replay = new UARTTraceReplay(path, speeds[i]);
+                bc28 = new TiBC28(replay.getInputStream(), replay.getOutputStream());
+
+                begin = System.currentTimeMillis();
+                run(bc28, null);
+                replay.awaitEnd(10000);
+                elapsed = System.currentTimeMillis() - begin;
+
+                System.out.println("Replay x" + speeds[i] + (speeds[i] < 10 ? " " : "") + "      : " + elapsed + " ms, UDP received " + udpCount
+                        + ", bytes written " + replay.getWrittenBytes() + ", mismatches "
+                        + replay.getMismatchCount());
+            }
+
+            // the last record cut short as by a reset during the capture
+            String cut = path + ".cut";
+            copy(path, cut, 3);
+            udpCount = 0;
+            UARTTraceReplay replay = new UARTTraceReplay(cut, 10);
+            bc28 = new TiBC28(replay.getInputStream(), replay.getOutputStream());
+            try {
+                run(bc28, null);
+            } catch (IOException ex) {
+                // the response in the dropped record never comes
+                System.out.println("Last command     : " + ex.getMessage());
+            }
+            System.out.println("Replay cut       : finished " + replay.awaitEnd(10000) + ", UDP received " + udpCount
+                    + ", truncated bytes " + replay.getTruncatedBytes());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Copy a file without its last bytes
+     */
+    static void copy(String from, String to, int cut) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] data = new byte[in.available()];
+            int n = 0;
+            while (n < data.length) {
+                n += in.read(data, n, data.length - n);
+            }
+            out.write(data, 0, data.length - cut);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Steps of the session, sim is null when replaying
+     */
+    static void run(TiBC28 bc28, SimulatedBC28 sim) throws IOException {
+        bc28.setEventListener(new IDeviceEventListener() {
+            @Override
+            public void onCoapDataArrived(byte[] message) {
+            }
+
+            @Override
+            public void onUDPDataArrived(byte[] packet) {
+                udpCount++;
+            }
+        });
+
+        bc28.getIMEI();
+        bc28.getIMSI();
+
+        int socketId = bc28.createUDPSocket(5000);
+        byte[] data = new byte[64];
+        for (int i = 0; i < 20; i++) {
+            data[0] = (byte) i;
+            bc28.udpSend(socketId, "10.0.0.1", 9000, data);
+        }
+
+        // the module does not answer, the command times out
+        if (sim != null)
+            sim.setResponding(false);
+        try {
+            bc28.getDateTime();
+        } catch (IOException ex) {
+            System.out.println("Timeout          : " + ex.getMessage());
+        }
+        if (sim != null)
+            sim.setResponding(true);
+
+        for (int i = 0; i < 10; i++) {
+            bc28.getDateTime();
+        }
+    }
+}